@@ -32,6 +32,14 @@ public abstract class BaseCommand {
         return false;
     }
 
+    /**
+     * Whether the command should run against an offline bulk-load
+     * graph, given its arguments.
+     */
+    public boolean isBulkLoad(String[] args) throws Exception {
+        return false;
+    }
+
     protected Optional<String> getLogMessage(String msg) {
         return msg.trim().isEmpty() ? Optional.<String>absent() : Optional.of(msg);
     }
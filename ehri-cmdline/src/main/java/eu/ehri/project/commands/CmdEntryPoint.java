@@ -5,6 +5,7 @@ import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
 import com.tinkerpop.frames.FramedGraph;
 import com.tinkerpop.frames.FramedGraphFactory;
 import com.tinkerpop.frames.modules.javahandler.JavaHandlerModule;
+import eu.ehri.project.utils.BulkLoadNeo4jGraph;
 import eu.ehri.project.utils.TxCheckedNeo4jGraph;
 import org.apache.commons.cli.*;
 
@@ -42,6 +43,10 @@ public class CmdEntryPoint extends BaseCommand {
         mmap.put(GraphML.NAME, GraphML.class);
         // adaptation of UserAdd for adding countries
         mmap.put(CountryAdd.NAME, CountryAdd.class);
+        mmap.put(PartitionIndexes.NAME, PartitionIndexes.class);
+        mmap.put(Reindex.NAME, Reindex.class);
+        mmap.put(MarkRestricted.NAME, MarkRestricted.class);
+        mmap.put(StoreDepths.NAME, StoreDepths.class);
         
         COMMANDS = Collections.unmodifiableMap(mmap);
     }
@@ -81,8 +86,13 @@ public class CmdEntryPoint extends BaseCommand {
                     newArgs.add(args[i]);
                 }
                 Command cmd = CmdEntryPoint.COMMANDS.get(args[1]).getConstructor().newInstance();
+                String[] cmdArgs = newArgs.toArray(new String[newArgs.size()]);
                 FramedGraph<? extends TransactionalGraph> graph;
-                if (cmd.isReadOnly()) {
+                if (cmd.isBulkLoad(cmdArgs)) {
+                    // Write directly to the store, bypassing transactions
+                    graph = new FramedGraphFactory(new JavaHandlerModule()).create(
+                            new BulkLoadNeo4jGraph(args[0]));
+                } else if (cmd.isReadOnly()) {
                     // Get the graph
 //                    graph = new FramedGraph<Neo4jGraph>(
 //                            new Neo4jGraph(new EmbeddedReadOnlyGraphDatabase(args[0])));
@@ -96,7 +106,7 @@ public class CmdEntryPoint extends BaseCommand {
                 }
 
                 try {
-                    cmd.exec(graph, newArgs.toArray(new String[newArgs.size()]));
+                    return cmd.exec(graph, cmdArgs);
                 } catch (MissingArgumentException e) {
                 	// options or parameters where not correct, so print the correct usage
                     System.err.println(e.getMessage());
@@ -127,7 +137,6 @@ public class CmdEntryPoint extends BaseCommand {
                 return 1;
             }
         }
-        return 0;
     }
 
     /**
@@ -8,6 +8,7 @@ public interface Command {
     public String getHelp();
     public String getUsage();
     public boolean isReadOnly();
+    public boolean isBulkLoad(String[] args) throws Exception;
     public int execWithOptions(final FramedGraph<? extends TransactionalGraph> graph, CommandLine cmdLine) throws Exception;
     public int exec(FramedGraph<? extends TransactionalGraph> graph, String[] args) throws Exception;
 }
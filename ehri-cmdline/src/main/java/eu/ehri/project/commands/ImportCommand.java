@@ -5,17 +5,20 @@
 package eu.ehri.project.commands;
 
 import com.google.common.collect.Lists;
+import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.TransactionalGraph;
 import com.tinkerpop.frames.FramedGraph;
 import eu.ehri.project.acl.SystemScope;
 import eu.ehri.project.core.GraphManager;
 import eu.ehri.project.core.GraphManagerFactory;
+import eu.ehri.project.definitions.Ontology;
 import eu.ehri.project.importers.AbstractImporter;
 import eu.ehri.project.importers.ImportLog;
 import eu.ehri.project.importers.SaxImportManager;
 import eu.ehri.project.importers.SaxXmlHandler;
 import eu.ehri.project.models.UserProfile;
 import eu.ehri.project.models.base.PermissionScope;
+import eu.ehri.project.utils.BulkLoadNeo4jGraph;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 
@@ -51,6 +54,14 @@ public abstract class ImportCommand extends BaseCommand implements Command{
                 "Don't error if a file is not valid."));
         options.addOption(new Option("log", true,
                 "Log message for action."));
+        options.addOption(new Option("offline", false,
+                "Bulk load directly into the (stopped) database, bypassing transactions."));
+    }
+
+    @Override
+    public boolean isBulkLoad(String[] args) throws Exception {
+        setCustomOptions();
+        return parser.parse(options, args).hasOption("offline");
     }
     
      @Override
@@ -58,7 +69,14 @@ public abstract class ImportCommand extends BaseCommand implements Command{
             CommandLine cmdLine) throws Exception {
 
         GraphManager manager = GraphManagerFactory.getInstance(graph);
-
+        boolean bulkLoad = graph.getBaseGraph() instanceof BulkLoadNeo4jGraph;
+        if (bulkLoad && GraphManagerFactory.getDefaultImplementation()
+                == GraphManagerFactory.Implementation.PARTITIONED_INDEX) {
+            // Bulk loads only write the single item index.
+            System.err.println("Error: --offline cannot be used with the "
+                    + GraphManagerFactory.Implementation.PARTITIONED_INDEX + " graph manager");
+            return 1;
+        }
 
         List<String> filePaths = Lists.newArrayList();
         if (cmdLine.hasOption("files-from")) {
@@ -82,6 +100,12 @@ public abstract class ImportCommand extends BaseCommand implements Command{
             PermissionScope scope = SystemScope.getInstance();
             if (cmdLine.hasOption("scope")) {
                 scope = manager.getFrame(cmdLine.getOptionValue("scope"), PermissionScope.class);
+                if (bulkLoad && hasItems(scope)) {
+                    // Re-importing may update or delete existing items,
+                    // which a bulk load can't do.
+                    System.err.println("Error: --offline can only import into an empty scope");
+                    return 1;
+                }
             }
 
             // Find the user
@@ -102,6 +126,9 @@ public abstract class ImportCommand extends BaseCommand implements Command{
                             entry.getValue());
                 }
             }
+            if (bulkLoad) {
+                return verifyBulkLoad((BulkLoadNeo4jGraph) graph.getBaseGraph());
+            }
         } catch (Exception e) {
             e.printStackTrace();
             return 1;
@@ -109,6 +136,40 @@ public abstract class ImportCommand extends BaseCommand implements Command{
         return 0;
     }
 
+    /**
+     * Shut down an offline bulk load, which writes its deferred index
+     * entries, and check that all the created items can be found. A load
+     * which asked to be rolled back fails, since it can't be undone.
+     *
+     * @param graph
+     * @return The command's exit status
+     */
+    private int verifyBulkLoad(BulkLoadNeo4jGraph graph) {
+        graph.shutdown();
+        if (graph.isFailed()) {
+            System.err.println("Error: the import requested a rollback, but"
+                    + " data already bulk-loaded cannot be undone.");
+        }
+        List<String> missing = graph.verify();
+        System.out.println("Verified: " + (graph.getCreatedIds().size() - missing.size())
+                + ", Missing: " + missing.size());
+        for (String id : missing) {
+            System.out.println(" - " + id);
+        }
+        return missing.isEmpty() && !graph.isFailed() ? 0 : 1;
+    }
+
+    /**
+     * Determine if any items already belong to the given scope.
+     *
+     * @param scope
+     * @return Whether the scope has items
+     */
+    private boolean hasItems(PermissionScope scope) {
+        return scope.asVertex().getEdges(Direction.IN,
+                Ontology.HAS_PERMISSION_SCOPE).iterator().hasNext();
+    }
+
     /**
      * Read a set of file paths from an input, either a file or standard in
      * if given the path '-'.
@@ -0,0 +1,55 @@
+package eu.ehri.project.commands;
+
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.acl.AclManager;
+import org.apache.commons.cli.CommandLine;
+
+/**
+ * Set the restriction marker of all accessible items from their access
+ * edges, so the ACL filter can pass unrestricted items without reading
+ * their edges. Only needed for databases written before the marker was
+ * kept.
+ *
+ * Example usage:
+ * - stop the server
+ *   $NEO4J_HOME/bin/neo4j stop
+ * - set the markers
+ *   ./scripts/cmd mark-restricted
+ * - start server
+ *   $NEO4J_HOME/bin/neo4j start
+ *
+ */
+public class MarkRestricted extends BaseCommand implements Command {
+
+    final static String NAME = "mark-restricted";
+
+    public MarkRestricted() {
+    }
+
+    @Override
+    public String getHelp() {
+        return "Mark which items have access restrictions."
+                + "\n" + getUsage();
+    }
+
+    @Override
+    public String getUsage() {
+        return "Usage: mark-restricted";
+    }
+
+    /**
+     * Command-line entry-point (for testing.)
+     *
+     * @param graph
+     * @param cmdLine
+     * @throws Exception
+     */
+    @Override
+    public int execWithOptions(final FramedGraph<? extends TransactionalGraph> graph,
+            CommandLine cmdLine) throws Exception {
+        long count = AclManager.markRestrictedItems(graph);
+        System.out.println("Restricted items: " + count);
+        return 0;
+    }
+}
@@ -0,0 +1,53 @@
+package eu.ehri.project.commands;
+
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.core.impl.PartitionedIndexGraphManager;
+import org.apache.commons.cli.CommandLine;
+
+/**
+ * Build the per-type index partitions used by the partitioned GraphManager.
+ *
+ * Example usage:
+ * - stop the server
+ *   $NEO4J_HOME/bin/neo4j stop
+ * - build the partitions
+ *   ./scripts/cmd partition-indexes
+ * - add -Dehri.graphManager=partitioned_index to the server's JVM options
+ * - start server
+ *   $NEO4J_HOME/bin/neo4j start
+ *
+ */
+public class PartitionIndexes extends BaseCommand implements Command {
+
+    final static String NAME = "partition-indexes";
+
+    public PartitionIndexes() {
+    }
+
+    @Override
+    public String getHelp() {
+        return "Rebuild the item indexes as one partition per entity type."
+                + "\n" + getUsage();
+    }
+
+    @Override
+    public String getUsage() {
+        return "Usage: partition-indexes";
+    }
+
+    /**
+     * Command-line entry-point (for testing.)
+     *
+     * @param graph
+     * @param cmdLine
+     * @throws Exception
+     */
+    @Override
+    public int execWithOptions(final FramedGraph<? extends TransactionalGraph> graph,
+            CommandLine cmdLine) throws Exception {
+        long count = new PartitionedIndexGraphManager(graph).rebuildIndexes();
+        System.out.println("Indexed items: " + count);
+        return 0;
+    }
+}
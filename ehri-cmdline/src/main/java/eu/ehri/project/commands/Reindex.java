@@ -0,0 +1,95 @@
+package eu.ehri.project.commands;
+
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.core.GraphManagerFactory;
+import eu.ehri.project.core.impl.GraphReindexer;
+import eu.ehri.project.core.impl.PartitionedIndexGraphManager;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+
+import java.io.File;
+
+/**
+ * Rebuild the item indexes so they only hold the keys given by the
+ * current index policy, shrinking stores indexed under an older one.
+ *
+ * Example usage:
+ * - stop the server
+ *   $NEO4J_HOME/bin/neo4j stop
+ * - rebuild the indexes, recording progress in a checkpoint file
+ *   ./scripts/cmd reindex --threads 4 --batch-size 10000 --checkpoint reindex.log
+ * - if interrupted, the same command resumes from the last committed batch
+ * - start server
+ *   $NEO4J_HOME/bin/neo4j start
+ *
+ */
+public class Reindex extends BaseCommand implements Command {
+
+    final static String NAME = "reindex";
+
+    public Reindex() {
+    }
+
+    @Override
+    public String getHelp() {
+        return "Rebuild the item indexes according to the index policy."
+                + " The threading, batch and checkpoint options only apply"
+                + " to the single item index."
+                + "\n" + getUsage();
+    }
+
+    @Override
+    public String getUsage() {
+        return "Usage: reindex [--threads <n>] [--batch-size <n>] [--checkpoint <file>]";
+    }
+
+    @Override
+    protected void setCustomOptions() {
+        options.addOption(new Option("t", "threads", true,
+                "Number of indexing threads"));
+        options.addOption(new Option("b", "batch-size", true,
+                "Number of nodes to index per transaction"));
+        options.addOption(new Option("c", "checkpoint", true,
+                "File recording committed batches, used to resume"));
+    }
+
+    /**
+     * Command-line entry-point (for testing.)
+     *
+     * @param graph
+     * @param cmdLine
+     * @throws Exception
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public int execWithOptions(final FramedGraph<? extends TransactionalGraph> graph,
+            CommandLine cmdLine) throws Exception {
+        switch (GraphManagerFactory.getDefaultImplementation()) {
+            case PARTITIONED_INDEX:
+                // The partitions are rebuilt in a single pass, which can't
+                // be split up or resumed.
+                if (cmdLine.hasOption("t") || cmdLine.hasOption("b") || cmdLine.hasOption("c")) {
+                    System.err.println("Error: --threads, --batch-size and --checkpoint"
+                            + " are not supported by the "
+                            + GraphManagerFactory.Implementation.PARTITIONED_INDEX
+                            + " graph manager");
+                    return 1;
+                }
+                long count = new PartitionedIndexGraphManager(graph).rebuildIndexes();
+                System.out.println("Indexed items: " + count);
+                break;
+            default:
+                int threads = Integer.parseInt(cmdLine.getOptionValue("t",
+                        String.valueOf(GraphReindexer.DEFAULT_THREADS)));
+                int batchSize = Integer.parseInt(cmdLine.getOptionValue("b",
+                        String.valueOf(GraphReindexer.DEFAULT_BATCH_SIZE)));
+                File checkpoint = cmdLine.hasOption("c")
+                        ? new File(cmdLine.getOptionValue("c")) : null;
+                long indexed = new GraphReindexer(graph, threads, batchSize,
+                        checkpoint).reindex(GraphReindexer.INDEX_NAME);
+                System.out.println("Indexed items: " + indexed);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,55 @@
+package eu.ehri.project.commands;
+
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.frames.FramedGraph;
+import eu.ehri.project.models.utils.HierarchyDepth;
+import org.apache.commons.cli.CommandLine;
+
+/**
+ * Recompute and store the hierarchy depths of all documentary units and
+ * concepts, so depth filters can use them rather than walking up to the
+ * top of each item's hierarchy. Only needed for databases written before
+ * depths were kept.
+ *
+ * Example usage:
+ * - stop the server
+ *   $NEO4J_HOME/bin/neo4j stop
+ * - store the depths
+ *   ./scripts/cmd store-depths
+ * - start server
+ *   $NEO4J_HOME/bin/neo4j start
+ *
+ */
+public class StoreDepths extends BaseCommand implements Command {
+
+    final static String NAME = "store-depths";
+
+    public StoreDepths() {
+    }
+
+    @Override
+    public String getHelp() {
+        return "Store the hierarchy depths of all items in a hierarchy."
+                + "\n" + getUsage();
+    }
+
+    @Override
+    public String getUsage() {
+        return "Usage: store-depths";
+    }
+
+    /**
+     * Command-line entry-point (for testing.)
+     *
+     * @param graph
+     * @param cmdLine
+     * @throws Exception
+     */
+    @Override
+    public int execWithOptions(final FramedGraph<? extends TransactionalGraph> graph,
+            CommandLine cmdLine) throws Exception {
+        long count = HierarchyDepth.storeDepths(graph);
+        System.out.println("Stored depths: " + count);
+        return 0;
+    }
+}
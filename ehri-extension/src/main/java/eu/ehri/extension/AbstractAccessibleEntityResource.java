@@ -14,6 +14,7 @@ import eu.ehri.project.persistance.Mutation;
 import eu.ehri.project.persistance.MutationState;
 import org.neo4j.graphdb.GraphDatabaseService;
 
+import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.tinkerpop.blueprints.Vertex;
@@ -27,6 +28,7 @@ import eu.ehri.project.models.utils.ClassUtils;
 import eu.ehri.project.persistance.Bundle;
 import eu.ehri.project.views.impl.LoggingCrudViews;
 import eu.ehri.project.views.Query;
+import eu.ehri.project.views.QueryProfile;
 
 /**
  * Handle CRUD operations on AccessibleEntity's by using the
@@ -71,10 +73,34 @@ public class AbstractAccessibleEntityResource<E extends AccessibleEntity>
     public StreamingOutput page(Integer offset, Integer limit,
             Iterable<String> order, Iterable<String> filters)
             throws ItemNotFound, BadRequester {
+        return page(offset, limit, order, filters, null);
+    }
+
+    /**
+     * List instances of the 'entity' accessible to the given user,
+     * following the given page cursor if it is not null. Cursor pages
+     * can be ordered by id, or by one indexed property, and other orders
+     * are a bad request. If the request asks for a profile the page
+     * includes the query's profile.
+     *
+     * @return List of entities
+     * @throws ItemNotFound
+     * @throws BadRequester
+     */
+    public StreamingOutput page(Integer offset, Integer limit,
+            Iterable<String> order, Iterable<String> filters, String cursor)
+            throws ItemNotFound, BadRequester {
         graph.getBaseGraph().checkNotInTransaction();
-        final Query.Page<E> page = querier.setOffset(offset).setLimit(limit)
-                .orderBy(order).filter(filters).page(getRequesterUserProfile());
-        return streamingPage(page);
+        try {
+            Optional<QueryProfile> profile = getQueryProfile();
+            final Query.Page<E> page = querier.setOffset(offset).setLimit(limit)
+                    .orderBy(order).filter(filters).setCursor(cursor)
+                    .setProfile(profile.orNull())
+                    .page(getRequesterUserProfile());
+            return streamingPage(page, profile);
+        } catch (InvalidCursor e) {
+            throw new WebApplicationException(e, Status.BAD_REQUEST);
+        }
     }
 
     /**
@@ -94,6 +120,8 @@ public class AbstractAccessibleEntityResource<E extends AccessibleEntity>
 
     /**
      * List all instances of the 'entity' accessible to the given user.
+     * If the request asks for a profile the list is returned with the
+     * query's profile.
      *
      * @return List of entities
      * @throws ItemNotFound
@@ -103,9 +131,10 @@ public class AbstractAccessibleEntityResource<E extends AccessibleEntity>
             Iterable<String> order, Iterable<String> filters)
             throws ItemNotFound, BadRequester {
         graph.getBaseGraph().checkNotInTransaction();
+        Optional<QueryProfile> profile = getQueryProfile();
         final Query<E> query = querier.setOffset(offset).setLimit(limit)
-                .orderBy(order).filter(filters);
-        return streamingList(query.list(getRequesterUserProfile()));
+                .orderBy(order).filter(filters).setProfile(profile.orNull());
+        return streamingList(query.list(getRequesterUserProfile()), profile);
     }
 
     /**
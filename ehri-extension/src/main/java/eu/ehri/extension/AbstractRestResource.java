@@ -24,6 +24,7 @@ import com.google.common.collect.ListMultimap;
 import com.tinkerpop.frames.FramedGraph;
 
 import eu.ehri.extension.errors.BadRequester;
+import eu.ehri.project.acl.AclManager;
 import eu.ehri.project.acl.AnonymousAccessor;
 import eu.ehri.project.core.GraphManager;
 import eu.ehri.project.core.GraphManagerFactory;
@@ -32,6 +33,7 @@ import eu.ehri.project.exceptions.SerializationError;
 import eu.ehri.project.models.base.Accessor;
 import eu.ehri.project.persistance.Serializer;
 import eu.ehri.project.views.Query;
+import eu.ehri.project.views.QueryProfile;
 
 public abstract class AbstractRestResource implements TxCheckedResource {
 
@@ -44,6 +46,9 @@ public abstract class AbstractRestResource implements TxCheckedResource {
     public static final String FILTER_PARAM = "filter";
     public static final String LIMIT_PARAM = "limit";
     public static final String OFFSET_PARAM = "offset";
+    public static final String CURSOR_PARAM = "cursor";
+    public static final String PROFILE_PARAM = "profile";
+    public static final String SERIALIZATION_STAGE = "serialization";
     public static final String ACCESSOR_PARAM = "accessibleTo";
     public static final String GROUP_PARAM = "group";
 
@@ -150,6 +155,26 @@ public abstract class AbstractRestResource implements TxCheckedResource {
         return Optional.absent();
     }
 
+    /**
+     * Get a new query profile if the request asks for one with the
+     * {@value #PROFILE_PARAM} parameter. Only admin users can profile
+     * queries, since a profile reveals how many items are hidden from
+     * the requester and bypasses the query cache.
+     *
+     * @return A profile, or absent
+     * @throws BadRequester
+     */
+    protected Optional<QueryProfile> getQueryProfile() throws BadRequester {
+        String profile = uriInfo.getQueryParameters().getFirst(PROFILE_PARAM);
+        if (!Boolean.parseBoolean(profile)) {
+            return Optional.absent();
+        }
+        if (!new AclManager(graph).belongsToAdmin(getRequesterUserProfile())) {
+            throw new WebApplicationException(Response.Status.FORBIDDEN);
+        }
+        return Optional.of(new QueryProfile());
+    }
+
     /**
      * Stream a single page with total, limit, and offset info.
      * 
@@ -158,9 +183,23 @@ public abstract class AbstractRestResource implements TxCheckedResource {
      */
     protected <T extends Frame> StreamingOutput streamingPage(
             final Query.Page<T> page) {
+        return streamingPage(page, Optional.<QueryProfile>absent());
+    }
+
+    /**
+     * Stream a single page with total, limit, and offset info and,
+     * if given, the profile of the query which produced it, with the
+     * time taken to serialize the items.
+     *
+     * @param page
+     * @param profile
+     * @return
+     */
+    protected <T extends Frame> StreamingOutput streamingPage(
+            final Query.Page<T> page, final Optional<QueryProfile> profile) {
         return MediaType.TEXT_XML_TYPE.equals(checkMediaType())
-                ? getStreamingXmlOutput(page, serializer)
-                : getStreamingJsonOutput(page, serializer);
+                ? getStreamingXmlOutput(page, serializer, profile)
+                : getStreamingJsonOutput(page, serializer, profile);
     }
     
     /**
@@ -172,15 +211,19 @@ public abstract class AbstractRestResource implements TxCheckedResource {
      */
     protected <T extends Frame> StreamingOutput streamingPage(
             final Query.Page<T> page, final Serializer serializer) {
+        Optional<QueryProfile> profile = Optional.absent();
         return MediaType.TEXT_XML_TYPE.equals(checkMediaType())
-                ? getStreamingXmlOutput(page, serializer)
-                : getStreamingJsonOutput(page, serializer);
+                ? getStreamingXmlOutput(page, serializer, profile)
+                : getStreamingJsonOutput(page, serializer, profile);
     }
 
-    private <T extends Frame> StreamingOutput getStreamingXmlOutput(final Query.Page<T> page, final Serializer serializer) {
+    private <T extends Frame> StreamingOutput getStreamingXmlOutput(final Query.Page<T> page,
+            final Serializer serializer, final Optional<QueryProfile> profile) {
         final Charset utf8 = Charset.forName("UTF-8");
-        final String header = String.format("<page total=\"%d\" offset=\"%d\" limit=\"%d\">\n",
-                page.getCount(), page.getOffset(), page.getLimit());
+        final String header = String.format("<page total=\"%d\" offset=\"%d\" limit=\"%d\"%s>\n",
+                page.getCount(), page.getOffset(), page.getLimit(),
+                page.getNextCursor() == null ? ""
+                        : String.format(" next=\"%s\"", page.getNextCursor()));
         final String tail = "</page>\n";
 
         return new StreamingOutput() {
@@ -188,20 +231,28 @@ public abstract class AbstractRestResource implements TxCheckedResource {
             public void write(OutputStream os) throws IOException,
                     WebApplicationException {
                 os.write(header.getBytes(utf8));
+                long mark = profile.isPresent() ? profile.get().start() : 0L;
+                long count = 0L;
                 try {
                     for (T item : page.getIterable()) {
                         os.write(serializer.vertexFrameToXmlString(item)
                                 .getBytes(utf8));
+                        count++;
                     }
                 } catch (SerializationError serializationError) {
                     throw new RuntimeException(serializationError);
                 }
+                if (profile.isPresent()) {
+                    profile.get().record(SERIALIZATION_STAGE, mark, count, count);
+                    os.write(getXmlProfile(profile.get()).getBytes(utf8));
+                }
                 os.write(tail.getBytes(utf8));
             }
         };
     }
 
-    private <T extends Frame> StreamingOutput getStreamingJsonOutput(final Query.Page<T> page, final Serializer serializer) {
+    private <T extends Frame> StreamingOutput getStreamingJsonOutput(final Query.Page<T> page,
+            final Serializer serializer, final Optional<QueryProfile> profile) {
         final ObjectMapper mapper = new ObjectMapper();
         final JsonFactory f = new JsonFactory();
         return new StreamingOutput() {
@@ -213,16 +264,11 @@ public abstract class AbstractRestResource implements TxCheckedResource {
                 g.writeNumberField("total", page.getCount());
                 g.writeNumberField("offset", page.getOffset());
                 g.writeNumberField("limit", page.getLimit());
-                g.writeFieldName("values");
-                g.writeStartArray();
-                for (T item : page.getIterable()) {
-                    try {
-                        mapper.writeValue(g, serializer.vertexFrameToData(item));
-                    } catch (SerializationError e) {
-                        throw new RuntimeException(e);
-                    }
+                if (page.getNextCursor() != null) {
+                    g.writeStringField("next", page.getNextCursor());
                 }
-                g.writeEndArray();
+                g.writeFieldName("values");
+                writeJsonValues(g, mapper, page.getIterable(), serializer, profile);
                 g.writeEndObject();
                 g.close();
             }
@@ -237,9 +283,23 @@ public abstract class AbstractRestResource implements TxCheckedResource {
      */
     protected <T extends Frame> StreamingOutput streamingList(
             final Iterable<T> list) {
+        return streamingList(list, Optional.<QueryProfile>absent());
+    }
+
+    /**
+     * Return a streaming response from an iterable. If a query profile
+     * is given the list is returned as the "values" of an object (or
+     * the items of a list element) holding the profile too.
+     *
+     * @param list
+     * @param profile
+     * @return
+     */
+    protected <T extends Frame> StreamingOutput streamingList(
+            final Iterable<T> list, final Optional<QueryProfile> profile) {
         return MediaType.TEXT_XML_TYPE.equals(checkMediaType())
-                ? getStreamingXmlOutput(list, serializer)
-                : getStreamingJsonOutput(list, serializer);
+                ? getStreamingXmlOutput(list, serializer, profile)
+                : getStreamingJsonOutput(list, serializer, profile);
     }
         
     /**
@@ -251,12 +311,14 @@ public abstract class AbstractRestResource implements TxCheckedResource {
      */
     protected <T extends Frame> StreamingOutput streamingList(
             final Iterable<T> list, final Serializer serializer) {
+        Optional<QueryProfile> profile = Optional.absent();
         return MediaType.TEXT_XML_TYPE.equals(checkMediaType())
-                ? getStreamingXmlOutput(list, serializer)
-                : getStreamingJsonOutput(list, serializer);
+                ? getStreamingXmlOutput(list, serializer, profile)
+                : getStreamingJsonOutput(list, serializer, profile);
     }
 
-    private <T extends Frame> StreamingOutput getStreamingXmlOutput(final Iterable<T> list, final Serializer serializer) {
+    private <T extends Frame> StreamingOutput getStreamingXmlOutput(final Iterable<T> list,
+            final Serializer serializer, final Optional<QueryProfile> profile) {
         final Charset utf8 = Charset.forName("UTF-8");
         final String header = "<list>\n";
         final String tail = "</list>\n";
@@ -266,20 +328,28 @@ public abstract class AbstractRestResource implements TxCheckedResource {
             public void write(OutputStream os) throws IOException,
                     WebApplicationException {
                 os.write(header.getBytes(utf8));
+                long mark = profile.isPresent() ? profile.get().start() : 0L;
+                long count = 0L;
                 try {
                     for (T item : list) {
                         os.write(serializer.vertexFrameToXmlString(item)
                         .getBytes(utf8));
+                        count++;
                     }
                 } catch (SerializationError e) {
                     throw new RuntimeException(e);
                 }
+                if (profile.isPresent()) {
+                    profile.get().record(SERIALIZATION_STAGE, mark, count, count);
+                    os.write(getXmlProfile(profile.get()).getBytes(utf8));
+                }
                 os.write(tail.getBytes(utf8));
             }
         };
     }
 
-    private <T extends Frame> StreamingOutput getStreamingJsonOutput(final Iterable<T> list, final Serializer serializer) {
+    private <T extends Frame> StreamingOutput getStreamingJsonOutput(final Iterable<T> list,
+            final Serializer serializer, final Optional<QueryProfile> profile) {
         final ObjectMapper mapper = new ObjectMapper();
         final JsonFactory f = new JsonFactory();
         return new StreamingOutput() {
@@ -287,20 +357,58 @@ public abstract class AbstractRestResource implements TxCheckedResource {
             public void write(OutputStream arg0) throws IOException,
                     WebApplicationException {
                 JsonGenerator g = f.createJsonGenerator(arg0);
-                g.writeStartArray();
-                for (T item : list) {
-                    try {
-                        mapper.writeValue(g, serializer.vertexFrameToData(item));
-                    } catch (SerializationError e) {
-                        throw new RuntimeException(e);
-                    }
+                if (profile.isPresent()) {
+                    g.writeStartObject();
+                    g.writeFieldName("values");
+                    writeJsonValues(g, mapper, list, serializer, profile);
+                    g.writeEndObject();
+                } else {
+                    writeJsonValues(g, mapper, list, serializer, profile);
                 }
-                g.writeEndArray();
                 g.close();
             }
         };
     }
 
+    /**
+     * Write items as a JSON array and then, if a query profile is given,
+     * a "profile" field holding it.
+     */
+    private <T extends Frame> void writeJsonValues(JsonGenerator g, ObjectMapper mapper,
+            Iterable<T> items, Serializer serializer, Optional<QueryProfile> profile)
+            throws IOException {
+        long mark = profile.isPresent() ? profile.get().start() : 0L;
+        long count = 0L;
+        g.writeStartArray();
+        for (T item : items) {
+            try {
+                mapper.writeValue(g, serializer.vertexFrameToData(item));
+            } catch (SerializationError e) {
+                throw new RuntimeException(e);
+            }
+            count++;
+        }
+        g.writeEndArray();
+        if (profile.isPresent()) {
+            profile.get().record(SERIALIZATION_STAGE, mark, count, count);
+            g.writeFieldName("profile");
+            mapper.writeValue(g, profile.get().getData());
+        }
+    }
+
+    /**
+     * Get a query profile as an XML element.
+     */
+    private String getXmlProfile(QueryProfile profile) {
+        StringBuilder xml = new StringBuilder("<profile>\n");
+        for (Map.Entry<String, QueryProfile.Stage> stage : profile.getStages().entrySet()) {
+            xml.append(String.format("<stage name=\"%s\" in=\"%d\" out=\"%d\" ms=\"%.3f\"/>\n",
+                    stage.getKey(), stage.getValue().getIn(), stage.getValue().getOut(),
+                    stage.getValue().getNanos() / 1000000.0));
+        }
+        return xml.append("</profile>\n").toString();
+    }
+
     /**
      * Return a streaming response from an iterable, using the given
      * entity converter.
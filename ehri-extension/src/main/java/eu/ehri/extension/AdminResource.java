@@ -3,6 +3,9 @@ package eu.ehri.extension;
 // Borrowed, temporarily, from Michael Hunger:
 // https://github.com/jexp/neo4j-clean-remote-db-addon
 
+import java.util.Map;
+
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
@@ -11,14 +14,15 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Maps;
+import eu.ehri.project.core.impl.VertexIdCache;
 import eu.ehri.project.definitions.Ontology;
 import eu.ehri.project.views.Crud;
 import eu.ehri.project.views.ViewFactory;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.neo4j.graphdb.GraphDatabaseService;
 
-import com.tinkerpop.blueprints.CloseableIterable;
-import com.tinkerpop.blueprints.Vertex;
-
 import eu.ehri.project.acl.AclManager;
 import eu.ehri.project.acl.PermissionType;
 import eu.ehri.project.models.EntityClass;
@@ -77,21 +81,31 @@ public class AdminResource extends AbstractRestResource {
         }
     }
 
+    /**
+     * Fetch hit/miss counters for the id-to-node lookup cache.
+     *
+     * @return A JSON object of cache statistics
+     * @throws Exception
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/idCacheStats")
+    public Response idCacheStats() throws Exception {
+        VertexIdCache cache = VertexIdCache.forDatabase(database);
+        CacheStats stats = cache.stats();
+        Map<String, Object> data = Maps.newLinkedHashMap();
+        data.put("size", cache.size());
+        data.put("hits", stats.hitCount());
+        data.put("misses", stats.missCount());
+        data.put("hitRate", stats.hitRate());
+        data.put("evictions", stats.evictionCount());
+        return Response.ok(new ObjectMapper().writeValueAsBytes(data)).build();
+    }
+
     // Helpers...
 
     private String getNextDefaultUserId() {
-        // FIXME: It's crappy to have to iterate all the items to count them...
-        long userCount = 0;
-        CloseableIterable<Vertex> query = manager
-                .getVertices(EntityClass.USER_PROFILE);
-        try {
-            for (@SuppressWarnings("unused")
-            Vertex _ : query)
-                userCount++;
-        } finally {
-            query.close();
-        }
-        long start = userCount + 1;
+        long start = manager.countVertices(EntityClass.USER_PROFILE) + 1;
         while (manager.exists(String.format(DEFAULT_USER_ID_FORMAT,
                 DEFAULT_USER_ID_PREFIX, start)))
             start++;
@@ -70,9 +70,10 @@ public class CountryResource extends
             @QueryParam(OFFSET_PARAM) @DefaultValue("0") int offset,
             @QueryParam(LIMIT_PARAM) @DefaultValue("" + DEFAULT_LIST_LIMIT) int limit,
             @QueryParam(SORT_PARAM) List<String> order,
-            @QueryParam(FILTER_PARAM) List<String> filters)
+            @QueryParam(FILTER_PARAM) List<String> filters,
+            @QueryParam(CURSOR_PARAM) String cursor)
             throws ItemNotFound, BadRequester {
-        return page(offset, limit, order, filters);
+        return page(offset, limit, order, filters, cursor);
     }
 
     @GET
@@ -14,6 +14,13 @@ import org.neo4j.server.plugins.PluginLifecycle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.frames.FramedGraph;
+import com.tinkerpop.frames.FramedGraphFactory;
+
+import eu.ehri.project.acl.AclNodeRegistry;
+import eu.ehri.project.core.GraphManagerFactory;
+
 
 // in start do a one time 'initialization' like setting Handlers
 public class EhriInitializer implements PluginLifecycle {
@@ -27,6 +34,10 @@ public class EhriInitializer implements PluginLifecycle {
 		
 		//logger.info("========= EhriInitializer start called");
 		System.out.println("========= EhriInitializer start called");
+
+		// load the content type and permission nodes shared by the AclManagers
+		FramedGraph<Neo4jGraph> graph = new FramedGraphFactory().create(new Neo4jGraph(service));
+		AclNodeRegistry.forDatabase(service).getLookups(GraphManagerFactory.getInstance(graph));
 		
 		/* TODO regsiter handler when we want to use it, but leave it disabled for now!
 		EhriTxEventHandler handler = new EhriTxEventHandler(); 
@@ -212,6 +212,27 @@ public class DocumentaryUnitRestClientTest extends BaseRestClientTest {
         assertEquals(FIRST_DOC_ID, c1data.get(Ontology.IDENTIFIER_KEY));
     }
 
+    @Test
+    public void testListProfileRequiresAdmin() throws Exception {
+        URI uri = UriBuilder.fromPath(getExtensionEntryPointUri())
+                .segment(Entities.DOCUMENTARY_UNIT).segment("list")
+                .queryParam(AbstractRestResource.PROFILE_PARAM, "true").build();
+        ClientResponse response = client.resource(uri)
+                .accept(MediaType.APPLICATION_JSON)
+                .header(AbstractRestResource.AUTH_HEADER_NAME,
+                        getRegularUserProfileId()).get(ClientResponse.class);
+        assertEquals(Response.Status.FORBIDDEN.getStatusCode(),
+                response.getStatus());
+
+        response = client.resource(uri)
+                .accept(MediaType.APPLICATION_JSON)
+                .header(AbstractRestResource.AUTH_HEADER_NAME,
+                        getAdminUserProfileId()).get(ClientResponse.class);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        JsonNode root = new ObjectMapper().readTree(response.getEntity(String.class));
+        assertTrue(root.has("profile"));
+    }
+
     @Test
     public void testCountDocumentaryUnits() throws Exception {
         Long data = getEntityCount(
@@ -0,0 +1,206 @@
+package eu.ehri.project.acl;
+
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Sets;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.frames.FramedGraph;
+
+import eu.ehri.project.core.GraphManager;
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.utils.TxCheckedNeo4jGraph;
+
+/**
+ * Process-wide cache of the access restrictions of each database, i.e.
+ * the restricted items and the accessors each is accessible to, so the
+ * items hidden from an accessor can be found without reading every
+ * user's and group's access edges.
+ *
+ * A transaction event handler discards the restrictions when a
+ * transaction adds or removes access relationships. The cache is only
+ * used on a transaction-checked graph outside a transaction, so
+ * uncommitted restrictions are never cached; otherwise they are loaded
+ * afresh.
+ *
+ * @author mike
+ */
+public final class AccessRestrictionCache {
+
+    private static final LoadingCache<GraphDatabaseService, AccessRestrictionCache> registries
+            = CacheBuilder.newBuilder().weakKeys()
+            .build(new CacheLoader<GraphDatabaseService, AccessRestrictionCache>() {
+                @Override
+                public AccessRestrictionCache load(GraphDatabaseService database) {
+                    AccessRestrictionCache cache = new AccessRestrictionCache();
+                    database.registerTransactionEventHandler(cache.new InvalidationHandler());
+                    return cache;
+                }
+            });
+
+    // Guarded by this. The generation is bumped on each invalidation so
+    // restrictions loaded concurrently with a change are not kept.
+    private Restrictions restrictions = null;
+    private long generation = 0L;
+
+    private AccessRestrictionCache() {
+    }
+
+    /**
+     * Get the shared cache for the given database.
+     *
+     * @param database
+     * @return The database's restriction cache
+     */
+    public static AccessRestrictionCache forDatabase(GraphDatabaseService database) {
+        try {
+            return registries.get(database);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get the access restrictions of the given graph, via the shared
+     * cache if the graph is not in a transaction.
+     *
+     * @param graph
+     * @param manager
+     * @return The graph's restrictions
+     */
+    public static Restrictions getRestrictions(FramedGraph<?> graph, GraphManager manager) {
+        if (graph.getBaseGraph() instanceof TxCheckedNeo4jGraph) {
+            TxCheckedNeo4jGraph baseGraph = (TxCheckedNeo4jGraph) graph.getBaseGraph();
+            if (!baseGraph.isInTransaction()) {
+                return forDatabase(baseGraph.getRawGraph()).getRestrictions(manager);
+            }
+        }
+        return Restrictions.load(manager);
+    }
+
+    /**
+     * Get the access restrictions, loading them if necessary.
+     *
+     * @param manager
+     * @return The database's restrictions
+     */
+    public Restrictions getRestrictions(GraphManager manager) {
+        long loadGeneration;
+        synchronized (this) {
+            if (restrictions != null) {
+                return restrictions;
+            }
+            loadGeneration = generation;
+        }
+        Restrictions loaded = Restrictions.load(manager);
+        synchronized (this) {
+            if (generation == loadGeneration) {
+                restrictions = loaded;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Discard the restrictions, so they are reloaded on next use.
+     */
+    public synchronized void invalidate() {
+        restrictions = null;
+        generation++;
+    }
+
+    /**
+     * The restricted items of a database, by id, and the ids of the
+     * users and groups each is accessible to.
+     */
+    public static final class Restrictions {
+        private final ImmutableSetMultimap<Object, Object> accessors;
+
+        private Restrictions(ImmutableSetMultimap<Object, Object> accessors) {
+            this.accessors = accessors;
+        }
+
+        static Restrictions load(GraphManager manager) {
+            ImmutableSetMultimap.Builder<Object, Object> accessors
+                    = ImmutableSetMultimap.builder();
+            for (EntityClass type : new EntityClass[] { EntityClass.USER_PROFILE,
+                    EntityClass.GROUP }) {
+                for (Vertex accessor : manager.getVertices(type)) {
+                    for (Vertex item : accessor.getVertices(Direction.IN,
+                            Ontology.IS_ACCESSIBLE_TO)) {
+                        accessors.put(item.getId(), accessor.getId());
+                    }
+                }
+            }
+            return new Restrictions(accessors.build());
+        }
+
+        /**
+         * Get the ids of the restricted items which are not accessible to
+         * any of the given accessors.
+         *
+         * @param accessorIds the ids of a user and all its groups
+         * @return A set of vertex ids
+         */
+        public Set<Object> getHiddenIds(Set<Object> accessorIds) {
+            Set<Object> hidden = Sets.newHashSet();
+            for (Object itemId : accessors.keySet()) {
+                if (Sets.intersection(accessors.get(itemId), accessorIds).isEmpty()) {
+                    hidden.add(itemId);
+                }
+            }
+            return hidden;
+        }
+    }
+
+    /**
+     * Transaction hook which discards the restrictions when access
+     * relationships are added or removed.
+     */
+    private class InvalidationHandler implements TransactionEventHandler<Boolean> {
+        public Boolean beforeCommit(TransactionData data) throws Exception {
+            return touchesRestrictions(data);
+        }
+
+        public void afterCommit(TransactionData data, Boolean touched) {
+            if (touched != null && touched) {
+                invalidate();
+            }
+        }
+
+        public void afterRollback(TransactionData data, Boolean touched) {
+            if (touched != null && touched) {
+                invalidate();
+            }
+        }
+
+        private boolean touchesRestrictions(TransactionData data) {
+            for (Relationship rel : data.createdRelationships()) {
+                if (isAccessRelationship(rel)) {
+                    return true;
+                }
+            }
+            for (Relationship rel : data.deletedRelationships()) {
+                if (isAccessRelationship(rel)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isAccessRelationship(Relationship rel) {
+            return Ontology.IS_ACCESSIBLE_TO.equals(rel.getType().name());
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package eu.ehri.project.acl;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.frames.FramedGraph;
+
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.models.Group;
+import eu.ehri.project.models.base.Accessor;
+import eu.ehri.project.utils.TxCheckedNeo4jGraph;
+
+/**
+ * Process-wide cache of the group closures of the accessors of each
+ * database, i.e. the ids of each accessor and all the groups it belongs
+ * to, directly or otherwise, and whether any of them is the admin group,
+ * of the {@link EffectivePermissions} granted to those closures, and of
+ * the {@link GrantIndex} of each accessor's own grants.
+ *
+ * A transaction event handler discards everything when a committed
+ * transaction changes group membership or permission grants, from
+ * whatever path. The cache is only used on a transaction-checked graph
+ * outside a transaction, so uncommitted changes are never cached;
+ * otherwise closures and permissions are computed afresh.
+ *
+ * @author mike
+ */
+public final class AccessorClosureCache {
+
+    public static final long MAX_CACHED_ACCESSORS = 10000L;
+
+    private static final Set<String> GRANT_AND_MEMBERSHIP_LABELS = ImmutableSet.of(
+            Ontology.ACCESSOR_BELONGS_TO_GROUP,
+            Ontology.PERMISSION_GRANT_HAS_SUBJECT,
+            Ontology.PERMISSION_GRANT_HAS_PERMISSION,
+            Ontology.PERMISSION_GRANT_HAS_TARGET,
+            Ontology.PERMISSION_GRANT_HAS_SCOPE);
+
+    private static final LoadingCache<GraphDatabaseService, AccessorClosureCache> registries
+            = CacheBuilder.newBuilder().weakKeys()
+            .build(new CacheLoader<GraphDatabaseService, AccessorClosureCache>() {
+                @Override
+                public AccessorClosureCache load(GraphDatabaseService database) {
+                    AccessorClosureCache cache = new AccessorClosureCache();
+                    database.registerTransactionEventHandler(cache.new InvalidationHandler());
+                    return cache;
+                }
+            });
+
+    private final Cache<Object, Closure> closures = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_ACCESSORS).build();
+    private final Cache<Object, EffectivePermissions> permissions = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_ACCESSORS).build();
+    private final Cache<Object, GrantIndex> grants = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_ACCESSORS).build();
+
+    // Guarded by this. The generation is bumped on each invalidation so
+    // closures loaded concurrently with a change are not kept.
+    private long generation = 0L;
+
+    private AccessorClosureCache() {
+    }
+
+    /**
+     * Get the shared cache for the given database.
+     *
+     * @param database
+     * @return The database's closure cache
+     */
+    public static AccessorClosureCache forDatabase(GraphDatabaseService database) {
+        try {
+            return registries.get(database);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get the closure of an accessor in the given graph, via the shared
+     * cache if the graph is not in a transaction.
+     *
+     * @param graph
+     * @param accessor
+     * @return The accessor's closure
+     */
+    public static Closure getClosure(FramedGraph<?> graph, Accessor accessor) {
+        if (graph.getBaseGraph() instanceof TxCheckedNeo4jGraph) {
+            TxCheckedNeo4jGraph baseGraph = (TxCheckedNeo4jGraph) graph.getBaseGraph();
+            if (!baseGraph.isInTransaction()) {
+                return forDatabase(baseGraph.getRawGraph()).getClosure(accessor);
+            }
+        }
+        return Closure.load(accessor);
+    }
+
+    /**
+     * Get the effective permissions of an accessor in the given graph,
+     * via the shared cache if the graph is not in a transaction.
+     *
+     * @param graph
+     * @param accessor
+     * @param lookups
+     * @return The accessor's permissions
+     */
+    public static EffectivePermissions getPermissions(FramedGraph<?> graph,
+            Accessor accessor, AclNodeRegistry.NodeLookups lookups) {
+        if (graph.getBaseGraph() instanceof TxCheckedNeo4jGraph) {
+            TxCheckedNeo4jGraph baseGraph = (TxCheckedNeo4jGraph) graph.getBaseGraph();
+            if (!baseGraph.isInTransaction()) {
+                return forDatabase(baseGraph.getRawGraph())
+                        .getPermissions(graph, accessor, lookups);
+            }
+        }
+        return EffectivePermissions.load(graph, Closure.load(accessor).getIds(), lookups);
+    }
+
+    /**
+     * Get the index of the grants made directly to an accessor in the
+     * given graph, via the shared cache if the graph is not in a
+     * transaction.
+     *
+     * @param graph
+     * @param accessor
+     * @param lookups
+     * @return The accessor's grant index
+     */
+    public static GrantIndex getGrantIndex(FramedGraph<?> graph, Accessor accessor,
+            AclNodeRegistry.NodeLookups lookups) {
+        if (graph.getBaseGraph() instanceof TxCheckedNeo4jGraph) {
+            TxCheckedNeo4jGraph baseGraph = (TxCheckedNeo4jGraph) graph.getBaseGraph();
+            if (!baseGraph.isInTransaction()) {
+                return forDatabase(baseGraph.getRawGraph()).getGrantIndex(accessor, lookups);
+            }
+        }
+        return accessor instanceof AnonymousAccessor
+                ? GrantIndex.empty()
+                : GrantIndex.load(accessor.asVertex(), lookups);
+    }
+
+    /**
+     * Get the closure of an accessor, loading it if necessary.
+     *
+     * @param accessor
+     * @return The accessor's closure
+     */
+    public Closure getClosure(Accessor accessor) {
+        if (accessor instanceof AnonymousAccessor) {
+            return Closure.load(accessor);
+        }
+        Vertex vertex = accessor.asVertex();
+        Closure closure = closures.getIfPresent(vertex.getId());
+        if (closure != null) {
+            return closure;
+        }
+        long loadGeneration;
+        synchronized (this) {
+            loadGeneration = generation;
+        }
+        Closure loaded = Closure.load(accessor);
+        synchronized (this) {
+            if (generation == loadGeneration) {
+                closures.put(vertex.getId(), loaded);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Get the effective permissions of an accessor, loading them if
+     * necessary.
+     *
+     * @param graph
+     * @param accessor
+     * @param lookups
+     * @return The accessor's permissions
+     */
+    public EffectivePermissions getPermissions(FramedGraph<?> graph, Accessor accessor,
+            AclNodeRegistry.NodeLookups lookups) {
+        Closure closure = getClosure(accessor);
+        if (accessor instanceof AnonymousAccessor) {
+            return EffectivePermissions.load(graph, closure.getIds(), lookups);
+        }
+        Object id = accessor.asVertex().getId();
+        EffectivePermissions cached = permissions.getIfPresent(id);
+        if (cached != null) {
+            return cached;
+        }
+        long loadGeneration;
+        synchronized (this) {
+            loadGeneration = generation;
+        }
+        EffectivePermissions loaded = EffectivePermissions.load(graph, closure.getIds(), lookups);
+        synchronized (this) {
+            if (generation == loadGeneration) {
+                permissions.put(id, loaded);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Get the index of the grants made directly to an accessor, loading
+     * it if necessary.
+     *
+     * @param accessor
+     * @param lookups
+     * @return The accessor's grant index
+     */
+    public GrantIndex getGrantIndex(Accessor accessor, AclNodeRegistry.NodeLookups lookups) {
+        if (accessor instanceof AnonymousAccessor) {
+            return GrantIndex.empty();
+        }
+        Vertex vertex = accessor.asVertex();
+        GrantIndex cached = grants.getIfPresent(vertex.getId());
+        if (cached != null) {
+            return cached;
+        }
+        long loadGeneration;
+        synchronized (this) {
+            loadGeneration = generation;
+        }
+        GrantIndex loaded = GrantIndex.load(vertex, lookups);
+        synchronized (this) {
+            if (generation == loadGeneration) {
+                grants.put(vertex.getId(), loaded);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Discard all closures, permissions and grant indexes, so they are
+     * reloaded on next use.
+     */
+    public synchronized void invalidate() {
+        closures.invalidateAll();
+        permissions.invalidateAll();
+        grants.invalidateAll();
+        generation++;
+    }
+
+    /**
+     * The ids of an accessor and all its groups, and whether it belongs
+     * to the admin group.
+     */
+    public static final class Closure {
+        private final ImmutableSet<Object> ids;
+        private final boolean admin;
+
+        private Closure(Set<Object> ids, boolean admin) {
+            this.ids = ImmutableSet.copyOf(ids);
+            this.admin = admin;
+        }
+
+        static Closure load(Accessor accessor) {
+            if (accessor instanceof AnonymousAccessor) {
+                return new Closure(ImmutableSet.of(), false);
+            }
+            Vertex vertex = accessor.asVertex();
+            Set<Object> ids = Sets.newHashSet(vertex.getId());
+            List<Vertex> pending = Lists.newArrayList(vertex);
+            boolean admin = false;
+            while (!pending.isEmpty()) {
+                Vertex item = pending.remove(pending.size() - 1);
+                admin = admin || Group.ADMIN_GROUP_IDENTIFIER.equals(
+                        item.getProperty(Ontology.IDENTIFIER_KEY));
+                for (Vertex parent : item.getVertices(Direction.OUT,
+                        Ontology.ACCESSOR_BELONGS_TO_GROUP)) {
+                    if (ids.add(parent.getId())) {
+                        pending.add(parent);
+                    }
+                }
+            }
+            return new Closure(ids, admin);
+        }
+
+        /**
+         * Get the ids of the accessor and all its groups.
+         *
+         * @return A set of vertex ids
+         */
+        public Set<Object> getIds() {
+            return ids;
+        }
+
+        /**
+         * Whether the given vertex is the accessor or one of its groups.
+         *
+         * @param vertex
+         * @return
+         */
+        public boolean contains(Vertex vertex) {
+            return ids.contains(vertex.getId());
+        }
+
+        /**
+         * Whether the accessor is, or belongs to, the admin group.
+         *
+         * @return
+         */
+        public boolean isAdmin() {
+            return admin;
+        }
+    }
+
+    /**
+     * Transaction hook which discards the closures, permissions and grant
+     * indexes when group membership, permission grants, or the identity
+     * of the admin group change.
+     */
+    private class InvalidationHandler implements TransactionEventHandler<Boolean> {
+        public Boolean beforeCommit(TransactionData data) throws Exception {
+            return touchesAccess(data);
+        }
+
+        public void afterCommit(TransactionData data, Boolean touched) {
+            if (touched != null && touched) {
+                invalidate();
+            }
+        }
+
+        public void afterRollback(TransactionData data, Boolean touched) {
+        }
+
+        private boolean touchesAccess(TransactionData data) {
+            for (Relationship rel : data.createdRelationships()) {
+                if (isAccessRelationship(rel)) {
+                    return true;
+                }
+            }
+            for (Relationship rel : data.deletedRelationships()) {
+                if (isAccessRelationship(rel)) {
+                    return true;
+                }
+            }
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                if (isAdminIdentifier(entry.key(), entry.value())
+                        || isAdminIdentifier(entry.key(), entry.previouslyCommitedValue())) {
+                    return true;
+                }
+            }
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                if (isAdminIdentifier(entry.key(), entry.previouslyCommitedValue())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isAccessRelationship(Relationship rel) {
+            return GRANT_AND_MEMBERSHIP_LABELS.contains(rel.getType().name());
+        }
+
+        private boolean isAdminIdentifier(String key, Object value) {
+            return Ontology.IDENTIFIER_KEY.equals(key)
+                    && Group.ADMIN_GROUP_IDENTIFIER.equals(value);
+        }
+    }
+}
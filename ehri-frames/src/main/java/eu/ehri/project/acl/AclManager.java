@@ -1,12 +1,12 @@
 package eu.ehri.project.acl;
 
 import java.util.*;
-import java.util.Map.Entry;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.*;
 import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.TransactionalGraph;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.frames.FramedGraph;
 import com.tinkerpop.pipes.PipeFunction;
@@ -40,21 +40,17 @@ import eu.ehri.project.models.base.*;
  */
 public final class AclManager {
 
+    // Number of items whose restriction marker is set per transaction.
+    private static final int MARK_BATCH_SIZE = 5000;
+
     private final FramedGraph<?> graph;
     private final GraphManager manager;
     private final PermissionScope scope;
     private final HashSet<Vertex> scopes;
 
     // Lookups to convert between the enum and node representations
-    // of content and permission types.
-    private final Map<PermissionType, Permission> enumPermissionMap = Maps
-            .newEnumMap(PermissionType.class);
-    private final Map<ContentTypes, ContentType> enumContentTypeMap = Maps
-            .newEnumMap(ContentTypes.class);
-    private final Map<Vertex, PermissionType> permissionEnumMap = Maps
-            .newHashMap();
-    private final Map<Vertex, ContentTypes> contentTypeEnumMap = Maps
-            .newHashMap();
+    // of content and permission types, shared via the node registry.
+    private final AclNodeRegistry.NodeLookups lookups;
 
     /**
      * Scoped constructor.
@@ -67,7 +63,7 @@ public final class AclManager {
         this.scope = Optional.<PermissionScope> fromNullable(scope).or(
                 SystemScope.getInstance());
         this.scopes = getAllScopes();
-        populateEnumNodeLookups();
+        this.lookups = AclNodeRegistry.getLookups(graph, manager);
     }
 
     /**
@@ -86,13 +82,7 @@ public final class AclManager {
      * @return User belongs to the admin group
      */
     public boolean belongsToAdmin(Accessor accessor) {
-        if (accessor.isAdmin())
-            return true;
-        for (Accessor parent : accessor.getParents()) {
-            if (belongsToAdmin(parent))
-                return true;
-        }
-        return false;
+        return getClosure(accessor).isAdmin();
     }
 
     /**
@@ -127,21 +117,17 @@ public final class AclManager {
             return true;
         }
 
-        // Otherwise, check if there are specified permissions.
-        List<Accessor> accessors = new ArrayList<Accessor>();
+        // Otherwise, check if there are specified permissions, and if
+        // so whether the accessor or one of its groups has one.
+        Set<Object> all = getAllAccessors(accessor);
+        boolean restricted = false;
         for (Accessor acc : entity.getAccessors()) {
-            accessors.add(acc);
-        }
-
-        if (accessors.isEmpty()) {
-            return true;
-        } else if (isAnonymous(accessor)) {
-            return false;
-        } else {
-            List<Accessor> initial = new ArrayList<Accessor>();
-            initial.add(accessor);
-            return !searchAccess(initial, accessors).isEmpty();
+            if (all.contains(acc.asVertex().getId())) {
+                return true;
+            }
+            restricted = true;
         }
+        return !restricted;
     }
 
     /**
@@ -155,6 +141,8 @@ public final class AclManager {
             if (acc.equals(accessor))
                 entity.removeAccessor(accessor);
         }
+        entity.asVertex().setProperty(AccessibleEntity.RESTRICTED_KEY,
+                entity.getAccessors().iterator().hasNext());
     }
 
     /**
@@ -188,6 +176,48 @@ public final class AclManager {
                 entity.addAccessor(accessor);
             }
         }
+        entity.asVertex().setProperty(AccessibleEntity.RESTRICTED_KEY,
+                !accessorVertices.isEmpty());
+    }
+
+    /**
+     * Set the restriction marker of every accessible item in the graph
+     * from its access edges, for items last written before the marker was
+     * kept. Commits in batches.
+     *
+     * @param graph
+     * @return The number of items which are restricted
+     */
+    public static long markRestrictedItems(FramedGraph<? extends TransactionalGraph> graph) {
+        GraphManager manager = GraphManagerFactory.getInstance(graph);
+        long count = 0L;
+        long restricted = 0L;
+        try {
+            for (EntityClass type : EntityClass.values()) {
+                if (!AccessibleEntity.class.isAssignableFrom(type.getEntityClass())) {
+                    continue;
+                }
+                for (Vertex vertex : manager.getVertices(type)) {
+                    boolean isRestricted = vertex.getVertices(Direction.OUT,
+                            Ontology.IS_ACCESSIBLE_TO).iterator().hasNext();
+                    if (!Boolean.valueOf(isRestricted).equals(
+                            vertex.getProperty(AccessibleEntity.RESTRICTED_KEY))) {
+                        vertex.setProperty(AccessibleEntity.RESTRICTED_KEY, isRestricted);
+                    }
+                    if (isRestricted) {
+                        restricted++;
+                    }
+                    if (++count % MARK_BATCH_SIZE == 0) {
+                        graph.getBaseGraph().commit();
+                    }
+                }
+            }
+            graph.getBaseGraph().commit();
+            return restricted;
+        } catch (RuntimeException e) {
+            graph.getBaseGraph().rollback();
+            throw e;
+        }
     }
 
     /**
@@ -280,10 +310,9 @@ public final class AclManager {
             throws PermissionDenied {
         checkNoGrantOnAdminOrAnon(accessor);
 
-        for (Entry<ContentTypes, ContentType> centry : enumContentTypeMap
-                .entrySet()) {
-            ContentType target = centry.getValue();
-            List<PermissionType> pset = globals.get(centry.getKey());
+        for (ContentTypes contentType : lookups.getContentTypes()) {
+            ContentType target = vertexForContentType(contentType);
+            List<PermissionType> pset = globals.get(contentType);
             if (pset == null)
                 continue;
             for (PermissionType perm : PermissionType.values()) {
@@ -375,7 +404,8 @@ public final class AclManager {
 
     /**
      * Build a gremlin filter function that passes through items readable by a
-     * given accessor.
+     * given accessor. Items marked as unrestricted are passed without
+     * reading their access edges.
      * 
      * @param accessor
      * @return A PipeFunction for filtering a set of vertices as the given user
@@ -385,9 +415,11 @@ public final class AclManager {
         if (belongsToAdmin(accessor))
             return noopFilterFunction();
 
-        final HashSet<Vertex> all = getAllAccessors(accessor);
+        final Set<Object> all = getAllAccessors(accessor);
         return new PipeFunction<Vertex, Boolean>() {
             public Boolean compute(Vertex v) {
+                if (Boolean.FALSE.equals(v.getProperty(AccessibleEntity.RESTRICTED_KEY)))
+                    return true;
                 Iterable<Vertex> verts = v.getVertices(Direction.OUT,
                         Ontology.IS_ACCESSIBLE_TO);
                 // If there's no Access conditions, it's
@@ -395,7 +427,7 @@ public final class AclManager {
                 if (!verts.iterator().hasNext())
                     return true;
                 for (Vertex other : verts) {
-                    if (all.contains(other))
+                    if (all.contains(other.getId()))
                         return true;
                 }
                 return false;
@@ -403,6 +435,31 @@ public final class AclManager {
         };
     }
 
+    /**
+     * Get the restricted items which the given accessor cannot see. These
+     * are found from the database's access restrictions, which are shared
+     * between queries outside transactions (see
+     * {@link AccessRestrictionCache}), so the cost is proportional to the
+     * number of restricted items rather than the number of items, and other
+     * items can be passed as visible without reading their edges.
+     *
+     * @param accessor
+     * @return The vertices hidden from the accessor
+     */
+    public Set<Vertex> getInaccessibleItems(Accessor accessor) {
+        Preconditions.checkNotNull(accessor, "Accessor is null");
+        Set<Vertex> hidden = Sets.newHashSet();
+        if (belongsToAdmin(accessor))
+            return hidden;
+
+        Set<Object> all = getAllAccessors(accessor);
+        for (Object id : AccessRestrictionCache.getRestrictions(graph, manager)
+                .getHiddenIds(all)) {
+            hidden.add(graph.getVertex(id));
+        }
+        return hidden;
+    }
+
     /**
      * Check if a user has permission to perform an action on the given content type.
      * @param contentType       The content type
@@ -411,7 +468,7 @@ public final class AclManager {
      * @return
      */
     public boolean hasPermission(ContentTypes contentType, PermissionType permissionType, Accessor accessor) {
-        return hasPermission(contentType, permissionType, accessor, scopes);
+        return hasPermission(contentType, permissionType, accessor, getIds(scopes));
     }
 
     /**
@@ -425,10 +482,8 @@ public final class AclManager {
 
         // Get a list of our current context scopes, plus
         // the parent scopes of the item.
-        Set<Vertex> allScopes = Sets.newHashSet(scopes);
-        for (PermissionScope scope : entity.getPermissionScopes()) {
-            allScopes.add(scope.asVertex());
-        }
+        Set<Object> allScopes = getIds(scopes);
+        allScopes.addAll(getScopeIds(entity));
 
         // Check if the user has content type permissions on this item, using
         // the parent scope of the item...
@@ -438,7 +493,8 @@ public final class AclManager {
         }
 
         // Otherwise, we have to check the item's permissions...
-        return hasScopedPermission(entity, permissionType, accessor, allScopes);
+        return getPermissions(accessor).hasItemPermission(entity.asVertex().getId(),
+                permissionType, allScopes);
     }
 
     // Helpers...
@@ -467,68 +523,65 @@ public final class AclManager {
      * @param contentType
      * @param permissionType
      * @param accessor
-     * @param scopes
+     * @param scopeIds
      * @return
      */
     private boolean hasPermission(ContentTypes contentType, PermissionType permissionType, Accessor accessor,
-            Collection<Vertex> scopes) {
-
-        ContentType contentTypeNode = enumContentTypeMap.get(contentType);
-        // Check the user themselves...
-        return belongsToAdmin(accessor) || hasScopedPermission(contentTypeNode, permissionType, accessor, scopes);
+            Collection<Object> scopeIds) {
+        return belongsToAdmin(accessor) || getPermissions(accessor)
+                .hasContentTypePermission(contentType, permissionType, scopeIds);
     }
 
     /**
-     * Attempt to find a permission, searching the accessor's parent hierarchy.
-     * @param target
-     * @param permissionType
+     * Get the effective permissions of an accessor and its groups, from
+     * the shared cache if possible.
+     *
      * @param accessor
-     * @param scopes
      * @return
      */
-    private boolean hasScopedPermission(PermissionGrantTarget target, PermissionType permissionType, Accessor accessor,
-            Collection<Vertex> scopes) {
-
-        for (PermissionGrant grant : accessor.getPermissionGrants()) {
-            PermissionType grantPermissionType = enumForPermission(grant.getPermission());
-
-            // If it's not the permission type we want, skip it...
-            if (!grantPermissionType.contains(permissionType)) {
-                continue;
-            }
-
-            // Get the content type node and check it matches the grant target
-            for (PermissionGrantTarget tg : grant.getTargets()) {
-                if (!target.equals(tg)) {
-                    continue;
-                }
+    private EffectivePermissions getPermissions(Accessor accessor) {
+        return AccessorClosureCache.getPermissions(graph, accessor, lookups);
+    }
 
-                // Now check the scope - if there is none we're good.
-                if (grant.getScope() == null || scopes.contains(grant.getScope().asVertex())) {
-                    return true;
-                }
-            }
-        }
+    /**
+     * Get the ids of an item's permission scopes, from the shared scope
+     * cache if possible.
+     *
+     * @param entity
+     * @return
+     */
+    private List<Object> getScopeIds(AccessibleEntity entity) {
+        return PermissionScopeCache.getScopeIds(graph, entity.asVertex());
+    }
 
-        // If no joy, check if they inherit the permission...
-        for (Accessor ancestor : accessor.getParents()) {
-            if (hasScopedPermission(target, permissionType, ancestor, scopes)) {
-                return true;
-            }
+    private static Set<Object> getIds(Collection<Vertex> vertices) {
+        Set<Object> ids = Sets.newHashSet();
+        for (Vertex vertex : vertices) {
+            ids.add(vertex.getId());
         }
-
-        // Default case, return false....
-        return false;
+        return ids;
     }
 
     /**
-     * Get the permission type enum for a given node.
+     * Get the node for a given permission type enum.
      * 
      * @param perm
      * @return
      */
     private Permission vertexForPermission(PermissionType perm) {
-        return enumPermissionMap.get(perm);
+        Object id = lookups.getPermissionId(perm);
+        return id == null ? null : graph.frame(graph.getVertex(id), Permission.class);
+    }
+
+    /**
+     * Get the node for a given content type enum.
+     * 
+     * @param contentType
+     * @return
+     */
+    private ContentType vertexForContentType(ContentTypes contentType) {
+        Object id = lookups.getContentTypeId(contentType);
+        return id == null ? null : graph.frame(graph.getVertex(id), ContentType.class);
     }
 
     /**
@@ -538,7 +591,7 @@ public final class AclManager {
      * @return
      */
     private PermissionType enumForPermission(Frame perm) {
-        return permissionEnumMap.get(perm.asVertex());
+        return lookups.getPermissionType(perm.asVertex());
     }
 
     /**
@@ -555,30 +608,11 @@ public final class AclManager {
         if (belongsToAdmin(accessor)) {
             return Lists.newArrayList(PermissionType.values());
         } else {
-            List<PermissionType> list = Lists.newLinkedList();
-            // Cache a set of permission scopes. This is the hierarchy on which
-            // permissions are granted. For most items it will contain zero
-            // entries and thus be pretty fast, but for deeply nested
-            // documentary units there might be quite a few.
-            HashSet<Vertex> scopes = Sets.newHashSet();
-            for (PermissionScope scope : entity.getPermissionScopes())
-                scopes.add(scope.asVertex());
-
-            PermissionGrantTarget target = graph.frame(entity.asVertex(),
-                    PermissionGrantTarget.class);
-
-            for (PermissionGrant grant : accessor.getPermissionGrants()) {
-                if (Iterables.contains(grant.getTargets(), target)) {
-                    list.add(enumForPermission(grant.getPermission()));
-                } else if (grant.getScope() != null) {
-                    // If there isn't a direct grant to the entity, search its
-                    // parent scopes for an appropriate scoped permission
-                    if (scopes.contains(grant.getScope().asVertex())) {
-                        list.add(enumForPermission(grant.getPermission()));
-                    }
-                }
-            }
-            return list;
+            // The permission scopes are the hierarchy on which permissions
+            // are granted. For most items there are none, but for deeply
+            // nested documentary units there might be quite a few.
+            return AccessorClosureCache.getGrantIndex(graph, accessor, lookups)
+                    .getPermissions(entity.asVertex().getId(), getScopeIds(entity));
         }
     }
 
@@ -593,20 +627,62 @@ public final class AclManager {
      */
     private Optional<PermissionGrant> findPermission(Accessor accessor,
             PermissionGrantTarget entity, PermissionType permType) {
-        PermissionGrantTarget target = graph.frame(entity.asVertex(),
-                PermissionGrantTarget.class);
+        // The anonymous user has no grants.
+        if (accessor instanceof AnonymousAccessor) {
+            return Optional.absent();
+        }
 
-        Permission perm = enumPermissionMap.get(permType);
-        for (PermissionGrant grant : accessor.getPermissionGrants()) {
-            if (isInScope(grant)
-                    && Iterables.contains(grant.getTargets(), target)
-                    && grant.getPermission().equals(perm)) {
-                return Optional.of(grant);
+        // Search the grants on the target and those of the accessor in
+        // step, since either can have many more grants than the other,
+        // e.g. a content type has the global grants of every accessor.
+        // A matching grant is on both sides, so once either side is
+        // exhausted without finding one there is none.
+        Vertex subject = accessor.asVertex();
+        Vertex targetVertex = entity.asVertex();
+        Permission perm = vertexForPermission(permType);
+        if (perm == null) {
+            return Optional.absent();
+        }
+        Iterator<Vertex> targetGrants = targetVertex.getVertices(Direction.IN,
+                Ontology.PERMISSION_GRANT_HAS_TARGET).iterator();
+        Iterator<Vertex> subjectGrants = subject.getVertices(Direction.IN,
+                Ontology.PERMISSION_GRANT_HAS_SUBJECT).iterator();
+        while (targetGrants.hasNext() && subjectGrants.hasNext()) {
+            for (Vertex grant : new Vertex[] { targetGrants.next(), subjectGrants.next() }) {
+                if (isGrantOf(grant, subject, targetVertex, perm.asVertex())) {
+                    return Optional.of(graph.frame(grant, PermissionGrant.class));
+                }
             }
         }
         return Optional.absent();
     }
 
+    /**
+     * Determine if a grant vertex gives the given accessor the given
+     * permission on the given target, within the current scope.
+     *
+     * @param grant
+     * @param subject
+     * @param target
+     * @param perm
+     * @return
+     */
+    private boolean isGrantOf(Vertex grant, Vertex subject, Vertex target, Vertex perm) {
+        return hasAdjacent(grant, Ontology.PERMISSION_GRANT_HAS_SUBJECT, subject)
+                && hasAdjacent(grant, Ontology.PERMISSION_GRANT_HAS_TARGET, target)
+                && hasAdjacent(grant, Ontology.PERMISSION_GRANT_HAS_PERMISSION, perm)
+                && isInScope(graph.frame(grant, PermissionGrant.class));
+    }
+
+    private static boolean hasAdjacent(Vertex vertex, String label, Vertex other) {
+        for (Vertex adjacent : vertex.getVertices(Direction.OUT, label)) {
+            if (adjacent.equals(other)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private PermissionGrant createPermissionGrant() throws IntegrityError,
             IdGenerationError {
         Vertex vertex = manager.createVertex(
@@ -637,55 +713,28 @@ public final class AclManager {
     }
 
     /**
-     * Search the group hierarchy of the given accessors to find an intersection
-     * with those who can access a resource.
+     * For a given user, fetch a lookup of the ids of all the inherited
+     * accessors it belongs to, and its own. The anonymous user has none.
      * 
-     * @param accessing
-     *            The user(s) accessing the resource
-     * @return The accessors in the given list able to access the resource
-     */
-    private List<Accessor> searchAccess(List<Accessor> accessing,
-            List<Accessor> allowedAccessors) {
-        if (accessing.isEmpty()) {
-            return new ArrayList<Accessor>();
-        } else {
-            List<Accessor> intersection = new ArrayList<Accessor>();
-            for (Accessor acc : allowedAccessors) {
-                if (accessing.contains(acc)) {
-                    intersection.add(acc);
-                }
-            }
-
-            List<Accessor> parentPerms = new ArrayList<Accessor>();
-            parentPerms.addAll(intersection);
-            for (Accessor acc : accessing) {
-                List<Accessor> parents = new ArrayList<Accessor>();
-                for (Accessor parent : acc.getAllParents())
-                    parents.add(parent);
-                parentPerms.addAll(searchAccess(parents, allowedAccessors));
-            }
-
-            return parentPerms;
+     * @param accessor
+     * @return
+     */
+    private Set<Object> getAllAccessors(Accessor accessor) {
+        if (isAnonymous(accessor)) {
+            return Collections.emptySet();
         }
+        return getClosure(accessor).getIds();
     }
 
     /**
-     * For a given user, fetch a lookup of all the inherited accessors it
-     * belongs to.
-     * 
+     * Get the group closure of an accessor, from the shared cache if
+     * possible.
+     *
      * @param accessor
      * @return
      */
-    private HashSet<Vertex> getAllAccessors(Accessor accessor) {
-
-        final HashSet<Vertex> all = Sets.newHashSet();
-        if (!isAnonymous(accessor)) {
-            Iterable<Accessor> parents = accessor.getAllParents();
-            for (Accessor a : parents)
-                all.add(a.asVertex());
-            all.add(accessor.asVertex());
-        }
-        return all;
+    private AccessorClosureCache.Closure getClosure(Accessor accessor) {
+        return AccessorClosureCache.getClosure(graph, accessor);
     }
 
     /**
@@ -706,8 +755,8 @@ public final class AclManager {
                         Permission permission = grant.getPermission();
                         if (permission != null) {
                             permmap.put(
-                                    contentTypeEnumMap.get(target.asVertex()),
-                                    permissionEnumMap.get(permission.asVertex()));
+                                    lookups.getContentType(target.asVertex()),
+                                    lookups.getPermissionType(permission.asVertex()));
                         }
                     }
                 }
@@ -745,23 +794,6 @@ public final class AclManager {
         };
     }
 
-    private void populateEnumNodeLookups() {
-        // Build a lookup of content types and permissions keyed by their
-        // identifier.
-        for (ContentType c : manager.getFrames(EntityClass.CONTENT_TYPE,
-                ContentType.class)) {
-            ContentTypes ct = ContentTypes.withName(c.getId());
-            enumContentTypeMap.put(ct, c);
-            contentTypeEnumMap.put(c.asVertex(), ct);
-        }
-        for (Permission p : manager.getFrames(EntityClass.PERMISSION,
-                Permission.class)) {
-            PermissionType pt = PermissionType.withName(p.getId());
-            enumPermissionMap.put(pt, p);
-            permissionEnumMap.put(p.asVertex(), pt);
-        }
-    }
-
     // Get a list of the current scope and its parents
     private HashSet<Vertex> getAllScopes() {
         HashSet<Vertex> all = Sets.newHashSet();
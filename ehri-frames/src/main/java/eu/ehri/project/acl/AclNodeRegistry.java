@@ -0,0 +1,257 @@
+package eu.ehri.project.acl;
+
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashBiMap;
+import com.google.common.collect.ImmutableBiMap;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.frames.FramedGraph;
+
+import eu.ehri.project.core.GraphManager;
+import eu.ehri.project.models.ContentType;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.Permission;
+import eu.ehri.project.models.annotations.EntityType;
+
+/**
+ * Process-wide registry of the content type and permission nodes of each
+ * database, which map the {@link ContentTypes} and {@link PermissionType}
+ * enums to and from their graph representations.
+ *
+ * The lookups are loaded once, typically when the plugin starts, and
+ * shared by every AclManager. A transaction event handler discards them
+ * when a transaction adds or removes content type or permission nodes,
+ * so they are reloaded on next use.
+ *
+ * @author mike
+ */
+public final class AclNodeRegistry {
+
+    private static final LoadingCache<GraphDatabaseService, AclNodeRegistry> registries
+            = CacheBuilder.newBuilder().weakKeys()
+            .build(new CacheLoader<GraphDatabaseService, AclNodeRegistry>() {
+                @Override
+                public AclNodeRegistry load(GraphDatabaseService database) {
+                    AclNodeRegistry registry = new AclNodeRegistry();
+                    database.registerTransactionEventHandler(registry.new InvalidationHandler());
+                    return registry;
+                }
+            });
+
+    // Guarded by this. The generation is bumped on each invalidation so
+    // lookups loaded concurrently with a change are not kept.
+    private NodeLookups lookups = null;
+    private long generation = 0L;
+
+    private AclNodeRegistry() {
+    }
+
+    /**
+     * Get the shared registry for the given database.
+     *
+     * @param database
+     * @return The database's registry
+     */
+    public static AclNodeRegistry forDatabase(GraphDatabaseService database) {
+        try {
+            return registries.get(database);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get the node lookups for the given graph, via the shared registry
+     * if it is a Neo4j graph.
+     *
+     * @param graph
+     * @param manager
+     * @return The node lookups
+     */
+    public static NodeLookups getLookups(FramedGraph<?> graph, GraphManager manager) {
+        if (graph.getBaseGraph() instanceof Neo4jGraph) {
+            return forDatabase(((Neo4jGraph) graph.getBaseGraph()).getRawGraph())
+                    .getLookups(manager);
+        }
+        return NodeLookups.load(manager);
+    }
+
+    /**
+     * Get the node lookups, loading them with the given manager if
+     * necessary. Incomplete lookups, i.e. those of a graph which is still
+     * being initialised, are not kept.
+     *
+     * @param manager
+     * @return The node lookups
+     */
+    public NodeLookups getLookups(GraphManager manager) {
+        long loadGeneration;
+        synchronized (this) {
+            if (lookups != null) {
+                return lookups;
+            }
+            loadGeneration = generation;
+        }
+        NodeLookups loaded = NodeLookups.load(manager);
+        synchronized (this) {
+            if (generation == loadGeneration && loaded.isComplete()) {
+                lookups = loaded;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Discard the lookups, so they are reloaded on next use.
+     */
+    public synchronized void invalidate() {
+        lookups = null;
+        generation++;
+    }
+
+    /**
+     * Immutable mapping between the content type and permission enums
+     * and the ids of their nodes.
+     */
+    public static final class NodeLookups {
+        private final ImmutableBiMap<ContentTypes, Object> contentTypes;
+        private final ImmutableBiMap<PermissionType, Object> permissions;
+
+        private NodeLookups(BiMap<ContentTypes, Object> contentTypes,
+                BiMap<PermissionType, Object> permissions) {
+            this.contentTypes = ImmutableBiMap.copyOf(contentTypes);
+            this.permissions = ImmutableBiMap.copyOf(permissions);
+        }
+
+        static NodeLookups load(GraphManager manager) {
+            // Build a lookup of content types and permissions keyed by their
+            // identifier.
+            BiMap<ContentTypes, Object> contentTypes = HashBiMap.create();
+            for (ContentType c : manager.getFrames(EntityClass.CONTENT_TYPE,
+                    ContentType.class)) {
+                contentTypes.put(ContentTypes.withName(c.getId()), c.asVertex().getId());
+            }
+            BiMap<PermissionType, Object> permissions = HashBiMap.create();
+            for (Permission p : manager.getFrames(EntityClass.PERMISSION,
+                    Permission.class)) {
+                permissions.put(PermissionType.withName(p.getId()), p.asVertex().getId());
+            }
+            return new NodeLookups(contentTypes, permissions);
+        }
+
+        /**
+         * Whether there is a node for every content and permission type.
+         *
+         * @return
+         */
+        public boolean isComplete() {
+            return contentTypes.size() == ContentTypes.values().length
+                    && permissions.size() == PermissionType.values().length;
+        }
+
+        /**
+         * Get the content types which have nodes.
+         *
+         * @return
+         */
+        public Set<ContentTypes> getContentTypes() {
+            return contentTypes.keySet();
+        }
+
+        /**
+         * Get the node id for a content type, or null.
+         *
+         * @param contentType
+         * @return
+         */
+        public Object getContentTypeId(ContentTypes contentType) {
+            return contentTypes.get(contentType);
+        }
+
+        /**
+         * Get the content type of a node, or null.
+         *
+         * @param vertex
+         * @return
+         */
+        public ContentTypes getContentType(Vertex vertex) {
+            return contentTypes.inverse().get(vertex.getId());
+        }
+
+        /**
+         * Get the node id for a permission type, or null.
+         *
+         * @param permissionType
+         * @return
+         */
+        public Object getPermissionId(PermissionType permissionType) {
+            return permissions.get(permissionType);
+        }
+
+        /**
+         * Get the permission type of a node, or null.
+         *
+         * @param vertex
+         * @return
+         */
+        public PermissionType getPermissionType(Vertex vertex) {
+            return permissions.inverse().get(vertex.getId());
+        }
+    }
+
+    /**
+     * Transaction hook which discards the lookups when content type or
+     * permission nodes are added or removed.
+     */
+    private class InvalidationHandler implements TransactionEventHandler<Boolean> {
+        public Boolean beforeCommit(TransactionData data) throws Exception {
+            return touchesAclNodes(data);
+        }
+
+        public void afterCommit(TransactionData data, Boolean touched) {
+            if (touched != null && touched) {
+                invalidate();
+            }
+        }
+
+        public void afterRollback(TransactionData data, Boolean touched) {
+            // Lookups loaded during the transaction may include its nodes.
+            if (touchesAclNodes(data)) {
+                invalidate();
+            }
+        }
+
+        private boolean touchesAclNodes(TransactionData data) {
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                if (isAclType(entry.key(), entry.value())
+                        || isAclType(entry.key(), entry.previouslyCommitedValue())) {
+                    return true;
+                }
+            }
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                if (isAclType(entry.key(), entry.previouslyCommitedValue())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isAclType(String key, Object value) {
+            return EntityType.TYPE_KEY.equals(key)
+                    && (EntityClass.CONTENT_TYPE.getName().equals(value)
+                    || EntityClass.PERMISSION.getName().equals(value));
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package eu.ehri.project.acl;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableTable;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.collect.Table;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.frames.FramedGraph;
+
+import eu.ehri.project.definitions.Ontology;
+
+/**
+ * The effective permissions of an accessor, i.e. those granted to it or
+ * to any of the groups it belongs to, by the scope of their grants.
+ *
+ * Content type permissions are held as a bitset over content types and
+ * permission types for each scope, and item permissions as a table of
+ * permission types by item and scope. Permissions implied by a granted
+ * one (e.g. those of owner) are included, so checking a permission is a
+ * lookup rather than a walk over the accessor's grants and groups.
+ *
+ * @author mike
+ */
+public final class EffectivePermissions {
+
+    /**
+     * Scope key of grants without a scope, which apply everywhere.
+     */
+    private static final Object UNSCOPED = new Object();
+
+    private static final PermissionType[] PERMISSION_TYPES = PermissionType.values();
+
+    // The bitsets are never modified after construction.
+    private final ImmutableMap<Object, BitSet> contentTypePermissions;
+    private final ImmutableTable<Object, Object, Set<PermissionType>> itemPermissions;
+
+    private EffectivePermissions(Map<Object, BitSet> contentTypePermissions,
+            ImmutableTable<Object, Object, Set<PermissionType>> itemPermissions) {
+        this.contentTypePermissions = ImmutableMap.copyOf(contentTypePermissions);
+        this.itemPermissions = itemPermissions;
+    }
+
+    /**
+     * Load the effective permissions of the given accessors from the
+     * grants they are subjects of.
+     *
+     * @param graph
+     * @param accessorIds the ids of an accessor and all its groups
+     * @param lookups
+     * @return The accessors' permissions
+     */
+    static EffectivePermissions load(FramedGraph<?> graph, Set<Object> accessorIds,
+            AclNodeRegistry.NodeLookups lookups) {
+        Map<Object, BitSet> contentTypePermissions = Maps.newHashMap();
+        Table<Object, Object, Set<PermissionType>> itemPermissions = HashBasedTable.create();
+        for (Object id : accessorIds) {
+            Vertex accessor = graph.getVertex(id);
+            if (accessor == null) {
+                continue;
+            }
+            for (Vertex grant : accessor.getVertices(Direction.IN,
+                    Ontology.PERMISSION_GRANT_HAS_SUBJECT)) {
+                Vertex permission = getFirst(grant, Ontology.PERMISSION_GRANT_HAS_PERMISSION);
+                PermissionType granted = permission == null ? null
+                        : lookups.getPermissionType(permission);
+                if (granted == null) {
+                    continue;
+                }
+                Vertex scope = getFirst(grant, Ontology.PERMISSION_GRANT_HAS_SCOPE);
+                Object scopeKey = scope == null ? UNSCOPED : scope.getId();
+                for (Vertex target : grant.getVertices(Direction.OUT,
+                        Ontology.PERMISSION_GRANT_HAS_TARGET)) {
+                    ContentTypes contentType = lookups.getContentType(target);
+                    if (contentType != null) {
+                        BitSet bits = contentTypePermissions.get(scopeKey);
+                        if (bits == null) {
+                            bits = new BitSet();
+                            contentTypePermissions.put(scopeKey, bits);
+                        }
+                        for (PermissionType implied : PERMISSION_TYPES) {
+                            if (granted.contains(implied)) {
+                                bits.set(getBit(contentType, implied));
+                            }
+                        }
+                    } else {
+                        Set<PermissionType> perms = itemPermissions.get(target.getId(), scopeKey);
+                        if (perms == null) {
+                            perms = EnumSet.noneOf(PermissionType.class);
+                            itemPermissions.put(target.getId(), scopeKey, perms);
+                        }
+                        for (PermissionType implied : PERMISSION_TYPES) {
+                            if (granted.contains(implied)) {
+                                perms.add(implied);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        ImmutableTable.Builder<Object, Object, Set<PermissionType>> items
+                = ImmutableTable.builder();
+        for (Table.Cell<Object, Object, Set<PermissionType>> cell : itemPermissions.cellSet()) {
+            items.put(cell.getRowKey(), cell.getColumnKey(),
+                    Sets.immutableEnumSet(cell.getValue()));
+        }
+        return new EffectivePermissions(contentTypePermissions, items.build());
+    }
+
+    /**
+     * Check for a permission on a content type.
+     *
+     * @param contentType
+     * @param permissionType
+     * @param scopeIds       the ids of the scopes in which scoped grants apply
+     * @return Whether the permission is granted
+     */
+    public boolean hasContentTypePermission(ContentTypes contentType,
+            PermissionType permissionType, Collection<Object> scopeIds) {
+        int bit = getBit(contentType, permissionType);
+        for (Map.Entry<Object, BitSet> entry : contentTypePermissions.entrySet()) {
+            if (entry.getValue().get(bit) && inScope(entry.getKey(), scopeIds)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check for a permission granted on a particular item.
+     *
+     * @param itemId
+     * @param permissionType
+     * @param scopeIds       the ids of the scopes in which scoped grants apply
+     * @return Whether the permission is granted
+     */
+    public boolean hasItemPermission(Object itemId, PermissionType permissionType,
+            Collection<Object> scopeIds) {
+        for (Map.Entry<Object, Set<PermissionType>> entry
+                : itemPermissions.row(itemId).entrySet()) {
+            if (entry.getValue().contains(permissionType) && inScope(entry.getKey(), scopeIds)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean inScope(Object scopeKey, Collection<Object> scopeIds) {
+        return scopeKey == UNSCOPED || scopeIds.contains(scopeKey);
+    }
+
+    private static int getBit(ContentTypes contentType, PermissionType permissionType) {
+        return contentType.ordinal() * PERMISSION_TYPES.length + permissionType.ordinal();
+    }
+
+    private static Vertex getFirst(Vertex vertex, String label) {
+        for (Vertex other : vertex.getVertices(Direction.OUT, label)) {
+            return other;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,117 @@
+package eu.ehri.project.acl;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Vertex;
+
+import eu.ehri.project.definitions.Ontology;
+
+/**
+ * An index of the permission grants made directly to one accessor, by
+ * the ids of their targets and of their scopes, so the grants which
+ * apply to an item can be found without scanning all of them.
+ *
+ * @author mike
+ */
+public final class GrantIndex {
+
+    private static final GrantIndex EMPTY = new GrantIndex(
+            ImmutableListMultimap.<Object, Grant> of(),
+            ImmutableListMultimap.<Object, Grant> of());
+
+    private final ImmutableListMultimap<Object, Grant> byTarget;
+    private final ImmutableListMultimap<Object, Grant> byScope;
+
+    /**
+     * A grant's id and the permission it gives.
+     */
+    private static final class Grant {
+        private final Object id;
+        private final PermissionType permission;
+
+        private Grant(Object id, PermissionType permission) {
+            this.id = id;
+            this.permission = permission;
+        }
+    }
+
+    private GrantIndex(ImmutableListMultimap<Object, Grant> byTarget,
+            ImmutableListMultimap<Object, Grant> byScope) {
+        this.byTarget = byTarget;
+        this.byScope = byScope;
+    }
+
+    /**
+     * Get an index with no grants, as for the anonymous accessor.
+     *
+     * @return An empty index
+     */
+    static GrantIndex empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Load the index of the grants made to the given accessor.
+     *
+     * @param accessor the accessor's vertex
+     * @param lookups
+     * @return The accessor's grant index
+     */
+    static GrantIndex load(Vertex accessor, AclNodeRegistry.NodeLookups lookups) {
+        ImmutableListMultimap.Builder<Object, Grant> byTarget = ImmutableListMultimap.builder();
+        ImmutableListMultimap.Builder<Object, Grant> byScope = ImmutableListMultimap.builder();
+        for (Vertex grantVertex : accessor.getVertices(Direction.IN,
+                Ontology.PERMISSION_GRANT_HAS_SUBJECT)) {
+            PermissionType permission = null;
+            for (Vertex perm : grantVertex.getVertices(Direction.OUT,
+                    Ontology.PERMISSION_GRANT_HAS_PERMISSION)) {
+                permission = lookups.getPermissionType(perm);
+                break;
+            }
+            Grant grant = new Grant(grantVertex.getId(), permission);
+            for (Vertex target : grantVertex.getVertices(Direction.OUT,
+                    Ontology.PERMISSION_GRANT_HAS_TARGET)) {
+                byTarget.put(target.getId(), grant);
+            }
+            for (Vertex scope : grantVertex.getVertices(Direction.OUT,
+                    Ontology.PERMISSION_GRANT_HAS_SCOPE)) {
+                byScope.put(scope.getId(), grant);
+                break;
+            }
+        }
+        return new GrantIndex(byTarget.build(), byScope.build());
+    }
+
+    /**
+     * Get the permissions given by the grants which either target the
+     * given item directly or are scoped to one of its scopes, one per
+     * grant.
+     *
+     * @param targetId the id of the item
+     * @param scopeIds the ids of the item's permission scopes
+     * @return A list of permission types
+     */
+    public List<PermissionType> getPermissions(Object targetId, Collection<Object> scopeIds) {
+        List<PermissionType> permissions = Lists.newLinkedList();
+        Set<Object> seen = Sets.newHashSet();
+        for (Grant grant : byTarget.get(targetId)) {
+            if (seen.add(grant.id)) {
+                permissions.add(grant.permission);
+            }
+        }
+        for (Object scopeId : scopeIds) {
+            for (Grant grant : byScope.get(scopeId)) {
+                if (seen.add(grant.id)) {
+                    permissions.add(grant.permission);
+                }
+            }
+        }
+        return permissions;
+    }
+}
@@ -0,0 +1,346 @@
+package eu.ehri.project.acl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.frames.FramedGraph;
+
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.models.utils.JavaHandlerUtils;
+import eu.ehri.project.utils.TxCheckedNeo4jGraph;
+
+/**
+ * Process-wide cache of the permission scope chains of each database,
+ * i.e. the ids of the scopes above each scope, nearest first, so items
+ * in deep hierarchies don't re-walk the same ancestors.
+ *
+ * Chains are keyed by the scope vertex; an item's own scope is read
+ * from the graph and the rest of its chain from the cache. A transaction
+ * event handler discards everything when a transaction removes a scope
+ * relationship or adds one to an existing item, i.e. re-parents it, so
+ * chains never outlive a change to the hierarchy above them. The shared
+ * chains are only used on a transaction-checked graph outside a
+ * transaction, so uncommitted scope changes are never shared.
+ *
+ * Inside a transaction on a transaction-checked graph, chains are kept
+ * for that transaction alone, and discarded if it changes the scope of
+ * an item on one of them. They are dropped along with the transaction.
+ * On other graphs chains are walked afresh.
+ *
+ * @author mike
+ */
+public final class PermissionScopeCache {
+
+    public static final long MAX_CACHED_SCOPES = 50000L;
+
+    private static final LoadingCache<GraphDatabaseService, PermissionScopeCache> registries
+            = CacheBuilder.newBuilder().weakKeys()
+            .build(new CacheLoader<GraphDatabaseService, PermissionScopeCache>() {
+                @Override
+                public PermissionScopeCache load(GraphDatabaseService database) {
+                    PermissionScopeCache cache = new PermissionScopeCache();
+                    database.registerTransactionEventHandler(cache.new InvalidationHandler());
+                    return cache;
+                }
+            });
+
+    private final Cache<Object, ImmutableList<Object>> chains = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_SCOPES).build();
+
+    // The chains read in each open transaction, which is only used by
+    // one thread at a time.
+    private final Cache<Transaction, TransactionChains> transactionChains
+            = CacheBuilder.newBuilder().weakKeys().build();
+
+    // Guarded by this. The generation is bumped on each invalidation so
+    // chains loaded concurrently with a change are not kept.
+    private long generation = 0L;
+
+    private PermissionScopeCache() {
+    }
+
+    /**
+     * Get the shared cache for the given database.
+     *
+     * @param database
+     * @return The database's scope cache
+     */
+    public static PermissionScopeCache forDatabase(GraphDatabaseService database) {
+        try {
+            return registries.get(database);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get the ids of an item's permission scopes in the given graph,
+     * nearest first, via the shared cache if the graph is not in a
+     * transaction, or the transaction's own chains if it is.
+     *
+     * @param graph
+     * @param item
+     * @return A list of vertex ids
+     */
+    public static List<Object> getScopeIds(FramedGraph<?> graph, Vertex item) {
+        if (graph.getBaseGraph() instanceof TxCheckedNeo4jGraph) {
+            TxCheckedNeo4jGraph baseGraph = (TxCheckedNeo4jGraph) graph.getBaseGraph();
+            PermissionScopeCache cache = forDatabase(baseGraph.getRawGraph());
+            Transaction tx = baseGraph.getTransaction();
+            return tx == null ? cache.getScopeIds(item)
+                    : cache.getTransactionChains(tx).getScopeIds(item);
+        }
+        return walk(item);
+    }
+
+    /**
+     * Note that the scope of the given item is about to change, or has
+     * changed, in the graph's current transaction, so that chains read
+     * earlier in the transaction which include it are discarded.
+     *
+     * @param graph
+     * @param item
+     */
+    public static void scopeChanged(TxCheckedNeo4jGraph graph, Vertex item) {
+        Transaction tx = graph.getTransaction();
+        if (tx != null) {
+            TransactionChains pending = forDatabase(graph.getRawGraph())
+                    .transactionChains.getIfPresent(tx);
+            if (pending != null) {
+                pending.scopeChanged(item);
+            }
+        }
+    }
+
+    /**
+     * Get the vertices of an item's permission scopes in the given graph,
+     * nearest first.
+     *
+     * @param graph
+     * @param item
+     * @return A list of vertices
+     */
+    public static List<Vertex> getScopes(FramedGraph<?> graph, Vertex item) {
+        List<Vertex> scopes = Lists.newArrayList();
+        for (Object id : getScopeIds(graph, item)) {
+            scopes.add(graph.getVertex(id));
+        }
+        return scopes;
+    }
+
+    /**
+     * Get the ids of an item's permission scopes, nearest first, loading
+     * the chain above its scope if necessary.
+     *
+     * @param item
+     * @return A list of vertex ids
+     */
+    public List<Object> getScopeIds(Vertex item) {
+        Vertex scope = getParent(item);
+        if (scope == null) {
+            return ImmutableList.of();
+        }
+        return prepend(scope.getId(), getChain(scope));
+    }
+
+    /**
+     * Discard all chains, so they are reloaded on next use.
+     */
+    public synchronized void invalidate() {
+        chains.invalidateAll();
+        generation++;
+    }
+
+    private TransactionChains getTransactionChains(Transaction tx) {
+        TransactionChains pending = transactionChains.getIfPresent(tx);
+        if (pending == null) {
+            pending = new TransactionChains();
+            transactionChains.put(tx, pending);
+        }
+        return pending;
+    }
+
+    private ImmutableList<Object> getChain(Vertex scope) {
+        ImmutableList<Object> cached = chains.getIfPresent(scope.getId());
+        if (cached != null) {
+            return cached;
+        }
+        long loadGeneration;
+        synchronized (this) {
+            loadGeneration = generation;
+        }
+        Map<Object, ImmutableList<Object>> loaded = loadChains(scope, chains.asMap());
+        if (loaded == null) {
+            return walk(scope);
+        }
+        synchronized (this) {
+            if (generation == loadGeneration) {
+                chains.putAll(loaded);
+            }
+        }
+        return loaded.get(scope.getId());
+    }
+
+    /**
+     * Walk up from a scope until we reach the top or a scope whose chain
+     * is known, then fill in the chains of the scopes on the way down, so
+     * the scopes between are not walked again.
+     *
+     * @return The chains of the scopes walked, by id, or null if the
+     *         hierarchy is too deep or has a cycle, so a chain would be
+     *         truncated
+     */
+    private static Map<Object, ImmutableList<Object>> loadChains(Vertex scope,
+            Map<Object, ImmutableList<Object>> known) {
+        List<Vertex> path = Lists.newArrayList(scope);
+        ImmutableList<Object> above = ImmutableList.of();
+        for (Vertex parent = getParent(scope); parent != null; parent = getParent(parent)) {
+            ImmutableList<Object> chain = known.get(parent.getId());
+            if (chain != null) {
+                above = prepend(parent.getId(), chain);
+                break;
+            }
+            if (path.size() >= JavaHandlerUtils.LOOP_MAX) {
+                return null;
+            }
+            path.add(parent);
+        }
+        Map<Object, ImmutableList<Object>> loaded = Maps.newHashMap();
+        for (int i = path.size() - 1; i >= 0; i--) {
+            loaded.put(path.get(i).getId(), above);
+            above = prepend(path.get(i).getId(), above);
+        }
+        return loaded;
+    }
+
+    private static ImmutableList<Object> walk(Vertex item) {
+        ImmutableList.Builder<Object> ids = ImmutableList.builder();
+        int depth = 0;
+        for (Vertex scope = getParent(item); scope != null
+                && depth < JavaHandlerUtils.LOOP_MAX; scope = getParent(scope)) {
+            ids.add(scope.getId());
+            depth++;
+        }
+        return ids.build();
+    }
+
+    private static ImmutableList<Object> prepend(Object id, List<Object> ids) {
+        int size = Math.min(ids.size() + 1, JavaHandlerUtils.LOOP_MAX);
+        return ImmutableList.<Object> builder().add(id).addAll(ids.subList(0, size - 1)).build();
+    }
+
+    private static Vertex getParent(Vertex item) {
+        for (Vertex scope : item.getVertices(Direction.OUT, Ontology.HAS_PERMISSION_SCOPE)) {
+            return scope;
+        }
+        return null;
+    }
+
+    /**
+     * The chains read in a single transaction, along with the ids of all
+     * the scopes on them.
+     */
+    private static final class TransactionChains {
+        private final Map<Object, ImmutableList<Object>> chains = Maps.newHashMap();
+        private final Set<Object> scopeIds = Sets.newHashSet();
+
+        List<Object> getScopeIds(Vertex item) {
+            Vertex scope = getParent(item);
+            if (scope == null) {
+                return ImmutableList.of();
+            }
+            return prepend(scope.getId(), getChain(scope));
+        }
+
+        void scopeChanged(Vertex item) {
+            if (scopeIds.contains(item.getId())) {
+                chains.clear();
+                scopeIds.clear();
+            }
+        }
+
+        private ImmutableList<Object> getChain(Vertex scope) {
+            ImmutableList<Object> cached = chains.get(scope.getId());
+            if (cached != null) {
+                return cached;
+            }
+            Map<Object, ImmutableList<Object>> loaded = loadChains(scope, chains);
+            if (loaded == null) {
+                return walk(scope);
+            }
+            chains.putAll(loaded);
+            scopeIds.addAll(loaded.keySet());
+            for (ImmutableList<Object> chain : loaded.values()) {
+                scopeIds.addAll(chain);
+            }
+            return loaded.get(scope.getId());
+        }
+    }
+
+    /**
+     * Transaction hook which discards the chains when a scope relationship
+     * is removed, or added to an item which already existed, i.e. when an
+     * existing chain may have changed, whether the transaction commits or
+     * fails to.
+     */
+    private class InvalidationHandler implements TransactionEventHandler<Boolean> {
+        public Boolean beforeCommit(TransactionData data) throws Exception {
+            return changesChains(data);
+        }
+
+        public void afterCommit(TransactionData data, Boolean changed) {
+            if (changed != null && changed) {
+                invalidate();
+            }
+        }
+
+        public void afterRollback(TransactionData data, Boolean changed) {
+            if (changed != null && changed) {
+                invalidate();
+            }
+        }
+
+        private boolean changesChains(TransactionData data) {
+            for (Relationship rel : data.deletedRelationships()) {
+                if (isScopeRelationship(rel)) {
+                    return true;
+                }
+            }
+            Set<Node> created = null;
+            for (Relationship rel : data.createdRelationships()) {
+                if (isScopeRelationship(rel)) {
+                    if (created == null) {
+                        created = Sets.newHashSet(data.createdNodes());
+                    }
+                    if (!created.contains(rel.getStartNode())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean isScopeRelationship(Relationship rel) {
+            return Ontology.HAS_PERMISSION_SCOPE.equals(rel.getType().name());
+        }
+    }
+}
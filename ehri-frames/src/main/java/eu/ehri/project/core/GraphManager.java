@@ -2,6 +2,10 @@ package eu.ehri.project.core;
 
 import java.util.Map;
 
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+
+import com.google.common.base.Optional;
 import com.tinkerpop.blueprints.CloseableIterable;
 import com.tinkerpop.blueprints.TransactionalGraph;
 import com.tinkerpop.blueprints.Vertex;
@@ -105,6 +109,14 @@ public interface GraphManager {
      */
     public CloseableIterable<Vertex> getVertices(EntityClass type);
 
+    /**
+     * Count the vertices with the given type.
+     *
+     * @param type
+     * @return The number of vertices
+     */
+    public long countVertices(EntityClass type);
+
     /**
      * Get a CloseableIterable of vertices with the given ids.
      *
@@ -123,6 +135,20 @@ public interface GraphManager {
     public <T extends Vertex> CloseableIterable<T> getVertices(String key,
             Object value, EntityClass type);
 
+    /**
+     * Get a CloseableIterable of vertices with the given type which match
+     * the given Lucene query on the item index. The query should only use
+     * keys indexed by the type's {@link IndexPolicy}.
+     *
+     * @param type
+     * @param query
+     * @param sort  the order of the results, or null for index order
+     * @return The matching vertices, or absent if this manager cannot
+     *         run index queries
+     */
+    public Optional<CloseableIterable<Vertex>> queryVertices(EntityClass type,
+            Query query, Sort sort);
+
     /**
      * Get an Iterable of vertices of the given type, frames with the given
      * interface class.
@@ -135,7 +161,8 @@ public interface GraphManager {
     // CRUD functions
 
     /**
-     * Create a vertex with the given id, type, and data.
+     * Create a vertex with the given id, type, and data, indexing
+     * the keys given by the type's {@link IndexPolicy}.
      * 
      * @param id
      * @param type
@@ -162,7 +189,8 @@ public interface GraphManager {
             throws IntegrityError;
 
     /**
-     * Create a vertex with the given id, type, and data.
+     * Create a vertex with the given id, type, and data, indexing
+     * the keys given by the type's {@link IndexPolicy}.
      * 
      * @param id
      * @param type
@@ -188,6 +216,25 @@ public interface GraphManager {
             Map<String, Object> data, Iterable<String> keys)
             throws ItemNotFound;
 
+    /**
+     * Set a property of the given item which isn't part of its data,
+     * such as a system property, updating the index if the key is
+     * indexed according to the item type's {@link IndexPolicy}.
+     *
+     * @param vertex
+     * @param key
+     * @param value
+     */
+    public void setProperty(Vertex vertex, String key, Object value);
+
+    /**
+     * Remove a property of the given item, and its index entry.
+     *
+     * @param vertex
+     * @param key
+     */
+    public void removeProperty(Vertex vertex, String key);
+
     // CRUD functions
 
     /**
@@ -2,11 +2,57 @@ package eu.ehri.project.core;
 
 import com.tinkerpop.frames.FramedGraph;
 
+import eu.ehri.project.core.impl.BulkLoadGraphManager;
+import eu.ehri.project.core.impl.PartitionedIndexGraphManager;
 import eu.ehri.project.core.impl.SingleIndexGraphManager;
+import eu.ehri.project.utils.BulkLoadNeo4jGraph;
 
 public class GraphManagerFactory {
+
+    /**
+     * System property used to select the default GraphManager
+     * implementation, one of the {@link Implementation} names.
+     */
+    public static final String IMPLEMENTATION_PROPERTY = "ehri.graphManager";
+
+    /**
+     * Available GraphManager implementations.
+     */
+    public static enum Implementation {
+        /**
+         * All items in one "entities" index.
+         */
+        SINGLE_INDEX,
+        /**
+         * One index per EntityClass. Existing stores must be
+         * migrated before switching to this.
+         */
+        PARTITIONED_INDEX
+    }
+
     public static GraphManager getInstance(FramedGraph<?> graph) {
-        return new SingleIndexGraphManager(graph);
+        return getInstance(graph, getDefaultImplementation());
         //return new BasicGraphManager(graph);
     }
+
+    public static GraphManager getInstance(FramedGraph<?> graph,
+            Implementation implementation) {
+        // Offline bulk loads have no index to speak of until shutdown.
+        if (graph.getBaseGraph() instanceof BulkLoadNeo4jGraph) {
+            return new BulkLoadGraphManager(graph);
+        }
+        switch (implementation) {
+            case PARTITIONED_INDEX:
+                return new PartitionedIndexGraphManager(graph);
+            default:
+                return new SingleIndexGraphManager(graph);
+        }
+    }
+
+    public static Implementation getDefaultImplementation() {
+        String name = System.getProperty(IMPLEMENTATION_PROPERTY);
+        return name == null
+                ? Implementation.SINGLE_INDEX
+                : Implementation.valueOf(name.toUpperCase());
+    }
 }
@@ -0,0 +1,134 @@
+package eu.ehri.project.core;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.annotations.EntityType;
+import eu.ehri.project.models.utils.ClassUtils;
+import eu.ehri.project.models.utils.HierarchyDepth;
+
+/**
+ * Determines which property keys of each EntityClass are indexed.
+ *
+ * By default these are the item id and type, plus the properties of
+ * the type's frame class marked with @Indexed or @Unique and, for items
+ * which form a hierarchy, their stored depth. The keys of
+ * any type can be overridden by a properties file mapping type names
+ * to comma-separated keys, e.g:
+ *
+ * <pre>
+ *   documentaryUnit = identifier, name
+ * </pre>
+ *
+ * The file is read from the path given by the {@value #POLICY_PROPERTY}
+ * system property, or otherwise from {@value #POLICY_FILE} on the
+ * classpath, if present.
+ *
+ * @author mike
+ */
+public final class IndexPolicy {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexPolicy.class);
+
+    /**
+     * System property giving the path of the policy override file.
+     */
+    public static final String POLICY_PROPERTY = "ehri.indexPolicy";
+
+    /**
+     * Classpath resource used for overrides if no path is given.
+     */
+    public static final String POLICY_FILE = "index-policy.properties";
+
+    private static final Map<EntityClass, Set<String>> indexedKeys = loadPolicy();
+
+    private IndexPolicy() {
+    }
+
+    /**
+     * Get the property keys which should be indexed for items
+     * of the given type.
+     *
+     * @param type
+     * @return A set of property keys
+     */
+    public static Set<String> getIndexedKeys(EntityClass type) {
+        return indexedKeys.get(type);
+    }
+
+    /**
+     * Determine if the given property key is indexed for items
+     * of the given type.
+     *
+     * @param type
+     * @param key
+     * @return Whether the key is indexed
+     */
+    public static boolean isIndexed(EntityClass type, String key) {
+        return indexedKeys.get(type).contains(key);
+    }
+
+    private static Map<EntityClass, Set<String>> loadPolicy() {
+        Properties overrides = loadOverrides();
+        Map<EntityClass, Set<String>> policy = Maps.newEnumMap(EntityClass.class);
+        for (EntityClass type : EntityClass.values()) {
+            ImmutableSet.Builder<String> keys = ImmutableSet.<String> builder()
+                    .add(EntityType.ID_KEY, EntityType.TYPE_KEY);
+            String override = overrides.getProperty(type.getName());
+            if (override != null) {
+                keys.addAll(Splitter.on(',').trimResults().omitEmptyStrings()
+                        .split(override));
+            } else {
+                keys.addAll(ClassUtils.getIndexedPropertyKeys(type.getEntityClass()));
+                for (Map.Entry<String, EntityClass> hierarchy
+                        : HierarchyDepth.HIERARCHY_TYPES.entrySet()) {
+                    if (hierarchy.getValue() == type) {
+                        keys.add(HierarchyDepth.DEPTH_PREFIX + hierarchy.getKey());
+                    }
+                }
+            }
+            policy.put(type, keys.build());
+        }
+        for (String name : overrides.stringPropertyNames()) {
+            try {
+                EntityClass.withName(name);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Ignoring index policy for unknown type: {}", name);
+            }
+        }
+        return policy;
+    }
+
+    private static Properties loadOverrides() {
+        Properties props = new Properties();
+        String path = System.getProperty(POLICY_PROPERTY);
+        try {
+            InputStream stream = path != null
+                    ? new FileInputStream(path)
+                    : IndexPolicy.class.getClassLoader().getResourceAsStream(POLICY_FILE);
+            if (stream != null) {
+                try {
+                    props.load(stream);
+                } finally {
+                    stream.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to load index policy: "
+                    + (path != null ? path : POLICY_FILE), e);
+        }
+        return props;
+    }
+}
@@ -1,5 +1,6 @@
 package eu.ehri.project.core.impl;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -7,6 +8,7 @@ import com.tinkerpop.blueprints.*;
 import com.tinkerpop.blueprints.util.WrappingCloseableIterable;
 import com.tinkerpop.frames.FramedGraph;
 import eu.ehri.project.core.GraphManager;
+import eu.ehri.project.core.IndexPolicy;
 import eu.ehri.project.exceptions.IntegrityError;
 import eu.ehri.project.exceptions.ItemNotFound;
 import eu.ehri.project.models.EntityClass;
@@ -18,6 +20,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+
 /**
  * Implementation of GraphManager that uses a single index to manage all nodes.
  * 
@@ -124,6 +129,10 @@ public final class BasicGraphManager<T extends IndexableGraph> implements GraphM
         return getIndex().get(EntityType.TYPE_KEY, type.getName());
     }
 
+    public long countVertices(EntityClass type) {
+        return getIndex().count(EntityType.TYPE_KEY, type.getName());
+    }
+
     public CloseableIterable<Vertex> getVertices(Iterable<String> ids) throws ItemNotFound {
         // Ugh, we don't want to remove duplicate results here
         // because that's not expected behaviour - if you give
@@ -152,6 +161,12 @@ public final class BasicGraphManager<T extends IndexableGraph> implements GraphM
         return new WrappingCloseableIterable<Vertex>(elems);
     }
 
+    public Optional<CloseableIterable<Vertex>> queryVertices(EntityClass type,
+            Query query, Sort sort) {
+        // Blueprints indexes can't be given Lucene queries.
+        return Optional.absent();
+    }
+
     public Vertex createVertex(String id, EntityClass type,
             Map<String, Object> data) throws IntegrityError {
         return createVertex(id, type, data, data.keySet());
@@ -206,6 +221,25 @@ public final class BasicGraphManager<T extends IndexableGraph> implements GraphM
         }
     }
 
+    public void setProperty(Vertex vertex, String key, Object value) {
+        Object current = vertex.getProperty(key);
+        vertex.setProperty(key, value);
+        if (IndexPolicy.isIndexed(getEntityClass(vertex), key)) {
+            Index<Vertex> index = getIndex();
+            if (current != null) {
+                index.remove(key, String.valueOf(current), vertex);
+            }
+            index.put(key, String.valueOf(value), vertex);
+        }
+    }
+
+    public void removeProperty(Vertex vertex, String key) {
+        Object current = vertex.removeProperty(key);
+        if (current != null && IndexPolicy.isIndexed(getEntityClass(vertex), key)) {
+            getIndex().remove(key, String.valueOf(current), vertex);
+        }
+    }
+
     /**
      * Delete vertex with its edges Neo4j requires you delete all adjacent edges
      * first. Blueprints' removeVertex() method does that; the Neo4jServer
@@ -236,7 +270,8 @@ public final class BasicGraphManager<T extends IndexableGraph> implements GraphM
     }
 
     /**
-     * Replace properties to a property container like vertex and edge
+     * Replace properties to a property container like vertex and edge,
+     * keeping system properties which are not in the data.
      * 
      * @param index
      *            The index of the container
@@ -249,6 +284,9 @@ public final class BasicGraphManager<T extends IndexableGraph> implements GraphM
             Map<String, Object> data, Collection<String> keys) {
         // remove 'old' properties
         for (String key : item.getPropertyKeys()) {
+            if (key.startsWith(EntityType.SYSTEM_PREFIX) && !data.containsKey(key)) {
+                continue;
+            }
             Object value = item.getProperty(key);
             item.removeProperty(key);
             if (keys == null || keys.contains(key)) {
@@ -0,0 +1,228 @@
+package eu.ehri.project.core.impl;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.tinkerpop.blueprints.CloseableIterable;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.util.WrappingCloseableIterable;
+import com.tinkerpop.frames.FramedGraph;
+
+import eu.ehri.project.core.GraphManager;
+import eu.ehri.project.exceptions.IntegrityError;
+import eu.ehri.project.exceptions.ItemNotFound;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.annotations.EntityType;
+import eu.ehri.project.models.base.Frame;
+import eu.ehri.project.utils.BulkLoadNeo4jGraph;
+
+/**
+ * Implementation of GraphManager for offline bulk loads, which looks
+ * items up via the in-memory id registry of a {@link BulkLoadNeo4jGraph}
+ * rather than an index.
+ *
+ * Index entries are written by the graph when it is shut down, according
+ * to the index policy, so the keys given to create are ignored. Property
+ * lookups scan the items of the given type. Items cannot be updated or
+ * deleted.
+ *
+ * @author mike
+ *
+ */
+public class BulkLoadGraphManager implements GraphManager {
+
+    private final FramedGraph<BulkLoadNeo4jGraph> graph;
+
+    public BulkLoadGraphManager(FramedGraph<?> graph) {
+        // Accept a warning here about the unsafe cast.
+        this.graph = (FramedGraph<BulkLoadNeo4jGraph>) graph;
+    }
+
+    public FramedGraph<?> getGraph() {
+        return graph;
+    }
+
+    // Access functions
+    public String getId(Vertex vertex) {
+        return (String) vertex.getProperty(EntityType.ID_KEY);
+    }
+
+    public String getId(Frame frame) {
+        return getId(frame.asVertex());
+    }
+
+    public String getType(Vertex vertex) {
+        return (String) vertex.getProperty(EntityType.TYPE_KEY);
+    }
+
+    public String getType(Frame frame) {
+        return frame.getType();
+    }
+
+    public EntityClass getEntityClass(Vertex vertex) {
+        return EntityClass.withName(getType(vertex));
+    }
+
+    public EntityClass getEntityClass(Frame frame) {
+        return getEntityClass(frame.asVertex());
+    }
+
+    public boolean exists(String id) {
+        Preconditions.checkNotNull(id,
+                "attempt determine existence of a vertex with a null id");
+        return graph.getBaseGraph().getNodeId(id) != null;
+    }
+
+    public boolean propertyValueExists(String key, Object value) {
+        Preconditions.checkNotNull(key,
+                "attempt determine existence of a property value with a null name");
+        Preconditions.checkNotNull(value,
+                "attempt determine existence of a property given a null value");
+        for (EntityClass type : EntityClass.values()) {
+            if (getVertices(key, value, type).iterator().hasNext()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public <T> T getFrame(String id, Class<T> cls) throws ItemNotFound {
+        return graph.frame(getVertex(id), cls);
+    }
+
+    public <T> T getFrame(String id, EntityClass type, Class<T> cls)
+            throws ItemNotFound {
+        return graph.frame(getVertex(id, type), cls);
+    }
+
+    public <T> CloseableIterable<T> getFrames(EntityClass type, Class<T> cls) {
+        return new WrappingCloseableIterable<T>(graph.frameVertices(
+                getVertices(type), cls));
+    }
+
+    public Vertex getVertex(String id) throws ItemNotFound {
+        Preconditions
+                .checkNotNull(id, "attempt to fetch vertex with a null id");
+        Long nodeId = graph.getBaseGraph().getNodeId(id);
+        if (nodeId == null) {
+            throw new ItemNotFound(id);
+        }
+        return graph.getBaseGraph().getVertex(nodeId);
+    }
+
+    public Vertex getVertex(String id, EntityClass type) throws ItemNotFound {
+        Vertex vertex = getVertex(id);
+        if (!type.getName().equals(getType(vertex))) {
+            throw new ItemNotFound(id);
+        }
+        return vertex;
+    }
+
+    public CloseableIterable<Vertex> getVertices(EntityClass type) {
+        List<Vertex> vertices = Lists.newArrayList();
+        for (Long nodeId : graph.getBaseGraph().getNodeIds(type)) {
+            vertices.add(graph.getBaseGraph().getVertex(nodeId));
+        }
+        return new WrappingCloseableIterable<Vertex>(vertices);
+    }
+
+    public long countVertices(EntityClass type) {
+        return graph.getBaseGraph().getNodeIds(type).size();
+    }
+
+    public CloseableIterable<Vertex> getVertices(Iterable<String> ids) throws ItemNotFound {
+        List<Vertex> vertices = Lists.newArrayList();
+        for (String id : ids) {
+            vertices.add(getVertex(id));
+        }
+        return new WrappingCloseableIterable<Vertex>(vertices);
+    }
+
+    public CloseableIterable<Vertex> getVertices(String key, Object value,
+            EntityClass type) {
+        String strValue = String.valueOf(value);
+        List<Vertex> vertices = Lists.newArrayList();
+        for (Vertex vertex : getVertices(type)) {
+            Object prop = vertex.getProperty(key);
+            if (prop != null && strValue.equals(String.valueOf(prop))) {
+                vertices.add(vertex);
+            }
+        }
+        return new WrappingCloseableIterable<Vertex>(vertices);
+    }
+
+    public Optional<CloseableIterable<Vertex>> queryVertices(EntityClass type,
+            Query query, Sort sort) {
+        // Index entries aren't written until the load finishes.
+        return Optional.absent();
+    }
+
+    public Vertex createVertex(String id, EntityClass type,
+            Map<String, Object> data) throws IntegrityError {
+        return createVertex(id, type, data, null);
+    }
+
+    public Vertex createVertex(String id, EntityClass type,
+            Map<String, Object> data, Iterable<String> keys) throws IntegrityError {
+        Preconditions
+                .checkNotNull(id, "null vertex ID given for item creation");
+        if (exists(id)) {
+            throw new IntegrityError(id);
+        }
+        Vertex node = graph.getBaseGraph().addVertex(null);
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            if (entry.getValue() != null) {
+                node.setProperty(entry.getKey(), entry.getValue());
+            }
+        }
+        node.setProperty(EntityType.ID_KEY, id);
+        node.setProperty(EntityType.TYPE_KEY, type.getName());
+        graph.getBaseGraph().addItem(id, type, (Long) node.getId());
+        return node;
+    }
+
+    public Vertex updateVertex(String id, EntityClass type,
+            Map<String, Object> data) throws ItemNotFound {
+        return updateVertex(id, type, data, null);
+    }
+
+    /**
+     * Bulk loads only create items: updating one may delete its
+     * dependents, which can't be done here, so updates are refused before
+     * anything is written.
+     */
+    public Vertex updateVertex(String id, EntityClass type,
+            Map<String, Object> data, Iterable<String> keys) throws ItemNotFound {
+        Preconditions.checkNotNull(id, "null vertex ID given for item update");
+        getVertex(id, type);
+        throw new UnsupportedOperationException(
+                "Items cannot be updated during a bulk load: " + id);
+    }
+
+    /**
+     * Properties of items created by the load are indexed when the graph
+     * is shut down, so this only sets the property.
+     */
+    public void setProperty(Vertex vertex, String key, Object value) {
+        vertex.setProperty(key, value);
+    }
+
+    public void removeProperty(Vertex vertex, String key) {
+        vertex.removeProperty(key);
+    }
+
+    public void deleteVertex(String id) throws ItemNotFound {
+        deleteVertex(getVertex(id));
+    }
+
+    public void deleteVertex(Vertex vertex) {
+        throw new UnsupportedOperationException(
+                "Items cannot be deleted during a bulk load");
+    }
+}
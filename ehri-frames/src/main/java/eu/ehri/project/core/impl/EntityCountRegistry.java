@@ -0,0 +1,170 @@
+package eu.ehri.project.core.impl;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import com.google.common.base.Supplier;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Maps;
+
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.annotations.EntityType;
+
+/**
+ * In-memory registry of the number of committed items of each EntityClass,
+ * so that unfiltered counts don't have to visit every item.
+ *
+ * There is one registry per database. A type's counter is initialised by
+ * counting its items once, and thereafter kept up to date by a transaction
+ * event handler which applies the type property changes of each committed
+ * transaction, so items created or deleted by rolled back transactions
+ * are never counted.
+ *
+ * @author mike
+ */
+public final class EntityCountRegistry {
+
+    private static final LoadingCache<GraphDatabaseService, EntityCountRegistry> registries
+            = CacheBuilder.newBuilder().weakKeys()
+            .build(new CacheLoader<GraphDatabaseService, EntityCountRegistry>() {
+                @Override
+                public EntityCountRegistry load(GraphDatabaseService database) {
+                    EntityCountRegistry registry = new EntityCountRegistry();
+                    database.registerTransactionEventHandler(registry.new CountingHandler());
+                    return registry;
+                }
+            });
+
+    // Guarded by this.
+    private final Map<EntityClass, Long> counts = Maps.newEnumMap(EntityClass.class);
+
+    // Commits which have started but not yet been applied, and a
+    // sequence number of started commits, used to detect commits
+    // which race with initialising a counter.
+    private final AtomicInteger commitsInFlight = new AtomicInteger();
+    private final AtomicLong commitSequence = new AtomicLong();
+
+    private EntityCountRegistry() {
+    }
+
+    /**
+     * Get the shared registry for the given database.
+     *
+     * @param database
+     * @return The database's count registry
+     */
+    public static EntityCountRegistry forDatabase(GraphDatabaseService database) {
+        try {
+            return registries.get(database);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get the number of committed items of the given type. If the type
+     * has not been counted yet the given counter is used to initialise it.
+     * NB: The counter must not see uncommitted items.
+     *
+     * @param type
+     * @param counter A function which counts the committed items of the type
+     * @return The number of items
+     */
+    public long getCount(EntityClass type, Supplier<Long> counter) {
+        synchronized (this) {
+            Long count = counts.get(type);
+            if (count != null) {
+                return count;
+            }
+        }
+        long sequence = commitSequence.get();
+        long count = counter.get();
+        synchronized (this) {
+            // Only keep the count if no commit could have changed the
+            // items whilst we were counting them, otherwise it might
+            // be changed again when that commit is applied.
+            if (commitsInFlight.get() == 0 && commitSequence.get() == sequence
+                    && !counts.containsKey(type)) {
+                counts.put(type, count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Discard all counters, so they are recounted on next use.
+     */
+    public synchronized void reset() {
+        counts.clear();
+    }
+
+    private synchronized void apply(Map<EntityClass, Long> deltas) {
+        for (Map.Entry<EntityClass, Long> delta : deltas.entrySet()) {
+            Long count = counts.get(delta.getKey());
+            if (count != null) {
+                counts.put(delta.getKey(), count + delta.getValue());
+            }
+        }
+    }
+
+    /**
+     * Transaction hook which collects the per-type item deltas of a
+     * transaction before it commits, and applies them once it has.
+     */
+    private class CountingHandler implements TransactionEventHandler<Map<EntityClass, Long>> {
+        public Map<EntityClass, Long> beforeCommit(TransactionData data) throws Exception {
+            Map<EntityClass, Long> deltas = Maps.newEnumMap(EntityClass.class);
+            // Deleted nodes show up with their properties removed.
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                if (EntityType.TYPE_KEY.equals(entry.key())) {
+                    addDelta(deltas, entry.previouslyCommitedValue(), -1L);
+                }
+            }
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                if (EntityType.TYPE_KEY.equals(entry.key())) {
+                    addDelta(deltas, entry.previouslyCommitedValue(), -1L);
+                    addDelta(deltas, entry.value(), 1L);
+                }
+            }
+            commitSequence.incrementAndGet();
+            commitsInFlight.incrementAndGet();
+            return deltas;
+        }
+
+        public void afterCommit(TransactionData data, Map<EntityClass, Long> deltas) {
+            if (deltas != null) {
+                apply(deltas);
+                commitsInFlight.decrementAndGet();
+            }
+        }
+
+        public void afterRollback(TransactionData data, Map<EntityClass, Long> deltas) {
+            if (deltas != null) {
+                commitsInFlight.decrementAndGet();
+            }
+        }
+
+        private void addDelta(Map<EntityClass, Long> deltas, Object typeName, long delta) {
+            if (typeName == null) {
+                return;
+            }
+            try {
+                EntityClass type = EntityClass.withName(String.valueOf(typeName));
+                Long current = deltas.get(type);
+                deltas.put(type, current == null ? delta : current + delta);
+            } catch (IllegalArgumentException e) {
+                // Not one of ours...
+            }
+        }
+    }
+}
@@ -1,6 +1,28 @@
 package eu.ehri.project.core.impl;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.tinkerpop.blueprints.IndexableGraph;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.kernel.GraphDatabaseAPI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,16 +31,23 @@ import com.tinkerpop.blueprints.TransactionalGraph;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.frames.FramedGraph;
 
+import eu.ehri.project.core.IndexPolicy;
 import eu.ehri.project.models.EntityClass;
 import eu.ehri.project.models.annotations.EntityType;
-import eu.ehri.project.models.utils.ClassUtils;
 import eu.ehri.project.models.utils.EmptyIterable;
 
 /**
- * Reindex a graph 
- *  
+ * Reindex a graph
+ *
  * Should be part of SingleIndexGraphManager, so implicitly assumed it is compatible
- * 
+ *
+ * On Neo4j graphs the node id space is split into batches which are indexed
+ * by a pool of threads, each batch in its own transaction. If a checkpoint
+ * file is given the id range of each committed batch is recorded in it, so
+ * an interrupted reindex can be resumed without redoing finished batches.
+ * Only the ranges not yet recorded are indexed on resuming, so the batch
+ * size may differ from the interrupted run's.
+ *
  * @author paulboon
  *
  */
@@ -26,49 +55,282 @@ public class GraphReindexer<T extends TransactionalGraph & IndexableGraph> {
     private static Logger logger = LoggerFactory.getLogger(GraphReindexer.class);
     public static final String INDEX_NAME = "entities";
 
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
     private final FramedGraph<T> graph ;
+    private final int threads;
+    private final int batchSize;
+    private final File checkpointFile;
 
     public GraphReindexer(FramedGraph<T> graph) {
+        this(graph, DEFAULT_THREADS, DEFAULT_BATCH_SIZE, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param graph
+     * @param threads        The number of indexing threads
+     * @param batchSize      The number of nodes to index per transaction
+     * @param checkpointFile A file in which to record committed batches,
+     *                       or null
+     */
+    public GraphReindexer(FramedGraph<T> graph, int threads, int batchSize,
+            File checkpointFile) {
+        Preconditions.checkArgument(threads > 0, "thread count must be positive");
+        Preconditions.checkArgument(batchSize > 0, "batch size must be positive");
         this.graph = graph;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.checkpointFile = checkpointFile;
     }
 
     /**
      * recreate the index for all the Entity vertices
+     *
+     * If the checkpoint file records batches from a previous run
+     * the index is not dropped, and only the remaining batches are
+     * indexed.
+     *
+     * @return The number of vertices indexed
      */
-    public void reindex(String indexName) {
-    	// clear the index
+    public long reindex(String indexName) {
         try {
-            graph.getBaseGraph().dropIndex(indexName);
-            Index<Vertex> index = graph.getBaseGraph().createIndex(indexName, Vertex.class);
-
-            // index vertices
-            for(Vertex vertex : graph.getVertices()) {
-                for (String key : propertyKeysToIndex(vertex)) {
-                    logger.debug("("+ key + ", "+ vertex.getProperty(key) + ")");
-                    Object val = vertex.getProperty(key);
-                    if (val != null) {
-                        index.put(key, val, vertex);
+            List<long[]> completed = readCheckpoint();
+            if (completed.isEmpty()) {
+                // clear the index
+                graph.getBaseGraph().dropIndex(indexName);
+                graph.getBaseGraph().createIndex(indexName, Vertex.class);
+                graph.getBaseGraph().commit();
+            } else {
+                logger.info("Resuming reindex: skipping {} committed id ranges",
+                        completed.size());
+            }
+            Index<Vertex> index = graph.getBaseGraph().getIndex(indexName, Vertex.class);
+
+            long count = graph.getBaseGraph() instanceof Neo4jGraph
+                    ? reindexBatches((Neo4jGraph) graph.getBaseGraph(), index, completed)
+                    : reindexSerially(index);
+
+            if (checkpointFile != null && checkpointFile.exists()
+                    && !checkpointFile.delete()) {
+                logger.warn("Unable to delete checkpoint file: {}", checkpointFile);
+            }
+            return count;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Index each id range of the node store in its own transaction,
+     * spread over a pool of threads.
+     */
+    private long reindexBatches(final Neo4jGraph neo4jGraph, final Index<Vertex> index,
+            final List<long[]> completed) throws IOException {
+        final long highestId = getHighestNodeId(neo4jGraph.getRawGraph());
+        final boolean resuming = !completed.isEmpty();
+        final AtomicLong indexed = new AtomicLong();
+        final AtomicLong processed = new AtomicLong();
+        final long startTime = System.currentTimeMillis();
+        final Writer checkpoint = checkpointFile == null ? null
+                : new FileWriter(checkpointFile, true);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> results = Lists.newArrayList();
+            List<long[]> batches = getBatches(completed, highestId + 1);
+            long remaining = 0L;
+            for (long[] batch : batches) {
+                remaining += batch[1] - batch[0];
+            }
+            processed.set(highestId + 1 - remaining);
+            for (long[] batch : batches) {
+                final long batchStart = batch[0];
+                final long batchEnd = batch[1];
+                results.add(executor.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        long count = indexBatch(neo4jGraph, index, batchStart,
+                                batchEnd, resuming);
+                        if (checkpoint != null) {
+                            synchronized (checkpoint) {
+                                checkpoint.write(batchStart + " " + batchEnd + "\n");
+                                checkpoint.flush();
+                            }
+                        }
+                        indexed.addAndGet(count);
+                        logProgress(processed.addAndGet(batchEnd - batchStart),
+                                highestId + 1, indexed.get(), startTime);
+                        return count;
                     }
+                }));
+            }
+            long count = 0L;
+            for (Future<Long> result : results) {
+                count += result.get();
+            }
+            return count;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Reindex interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Reindex failed: committed batches"
+                    + " can be skipped by resuming with the same checkpoint file",
+                    e.getCause());
+        } finally {
+            executor.shutdownNow();
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+        }
+    }
+
+    /**
+     * Split the node ids from 0 up to the given limit which are not in
+     * a completed range into batches.
+     *
+     * @param completed The [start, end) id ranges already indexed
+     * @param limit     One more than the highest node id
+     * @return A list of [start, end) id ranges
+     */
+    private List<long[]> getBatches(List<long[]> completed, long limit) {
+        List<long[]> sorted = Lists.newArrayList(completed);
+        Collections.sort(sorted, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : 0);
+            }
+        });
+        List<long[]> batches = Lists.newArrayList();
+        long position = 0L;
+        for (long[] range : sorted) {
+            addBatches(batches, position, Math.min(range[0], limit));
+            position = Math.max(position, range[1]);
+        }
+        addBatches(batches, position, limit);
+        return batches;
+    }
+
+    private void addBatches(List<long[]> batches, long start, long end) {
+        for (long batchStart = start; batchStart < end; batchStart += batchSize) {
+            batches.add(new long[]{batchStart, Math.min(batchStart + batchSize, end)});
+        }
+    }
+
+    /**
+     * Index the nodes with ids in the given range, in the current
+     * thread's transaction.
+     */
+    private long indexBatch(Neo4jGraph neo4jGraph, Index<Vertex> index,
+            long start, long end, boolean resuming) {
+        long count = 0L;
+        try {
+            for (long id = start; id < end; id++) {
+                Vertex vertex = neo4jGraph.getVertex(id);
+                if (vertex != null && indexVertex(index, vertex, resuming)) {
+                    count++;
                 }
-            };
+            }
+            neo4jGraph.commit();
+            return count;
+        } catch (RuntimeException e) {
+            neo4jGraph.rollback();
+            throw e;
+        }
+    }
 
+    /**
+     * Index graphs with no notion of node id ranges one vertex at a
+     * time, committing in batches.
+     */
+    private long reindexSerially(Index<Vertex> index) {
+        long count = 0L;
+        long startTime = System.currentTimeMillis();
+        try {
+            for (Vertex vertex : graph.getVertices()) {
+                if (indexVertex(index, vertex, false) && ++count % batchSize == 0) {
+                    graph.getBaseGraph().commit();
+                    logProgress(count, -1L, count, startTime);
+                }
+            }
             graph.getBaseGraph().commit();
-        } catch (Exception e) {
+            return count;
+        } catch (RuntimeException e) {
             graph.getBaseGraph().rollback();
+            throw e;
         }
     }
-    
+
+    private boolean indexVertex(Index<Vertex> index, Vertex vertex, boolean resuming) {
+        boolean indexed = false;
+        for (String key : propertyKeysToIndex(vertex)) {
+            logger.trace("("+ key + ", "+ vertex.getProperty(key) + ")");
+            Object val = vertex.getProperty(key);
+            if (val != null) {
+                // Batches which were committed but not checkpointed
+                // before a crash may already be indexed.
+                if (resuming) {
+                    index.remove(key, val, vertex);
+                }
+                index.put(key, val, vertex);
+                indexed = true;
+            }
+        }
+        return indexed;
+    }
+
+    private void logProgress(long processed, long total, long indexed, long startTime) {
+        long elapsed = Math.max(1L, System.currentTimeMillis() - startTime);
+        if (total > 0) {
+            logger.info("Processed {}/{} nodes, indexed {} items ({} items/sec)",
+                    new Object[]{processed, total, indexed, indexed * 1000L / elapsed});
+        } else {
+            logger.info("Indexed {} items ({} items/sec)",
+                    indexed, indexed * 1000L / elapsed);
+        }
+    }
+
+    private List<long[]> readCheckpoint() throws IOException {
+        List<long[]> completed = Lists.newArrayList();
+        if (checkpointFile != null && checkpointFile.exists()) {
+            BufferedReader reader = new BufferedReader(new FileReader(checkpointFile));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    String[] range = line.trim().split("\\s+");
+                    if (range.length != 2) {
+                        throw new IllegalStateException("Unrecognised checkpoint entry '"
+                                + line + "' in " + checkpointFile
+                                + ": expected a committed id range");
+                    }
+                    completed.add(new long[]{Long.valueOf(range[0]), Long.valueOf(range[1])});
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return completed;
+    }
+
+    private static long getHighestNodeId(GraphDatabaseService db) {
+        return ((GraphDatabaseAPI) db).getNodeManager()
+                .getHighestPossibleIdInUse(Node.class);
+    }
+
     /**
-     * collect the vertex property keys that exist in the Frame class with an @Property annotation
-     * 
+     * collect the vertex property keys that are indexed according to the IndexPolicy of its type
+     *
      * @param vertex
      * @return
      */
     private static Iterable<String> propertyKeysToIndex(Vertex vertex) {
     	String typeName = (String) vertex.getProperty(EntityType.TYPE_KEY);
     	try {
-	    	EntityClass entityClass = EntityClass.withName(typeName); 
-	    	Iterable<String> props = ClassUtils.getPropertyKeys(entityClass.getEntityClass());
+	    	EntityClass entityClass = EntityClass.withName(typeName);
+	    	Iterable<String> props = IndexPolicy.getIndexedKeys(entityClass);
 	    	return props;
     	} catch (Exception e) {
     		return new EmptyIterable<String>();
@@ -0,0 +1,155 @@
+package eu.ehri.project.core.impl;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.tinkerpop.blueprints.Index;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.frames.FramedGraph;
+
+import eu.ehri.project.core.IndexPolicy;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.annotations.EntityType;
+
+/**
+ * Implementation of GraphManager that keeps one index per EntityClass,
+ * plus an index of item ids for lookups where the type is not known.
+ * Type-scoped lookups and scans therefore only touch the relevant
+ * partition rather than the whole of the "entities" index.
+ *
+ * Existing stores must be migrated with {@link #rebuildIndexes()} before
+ * this manager is used on them.
+ *
+ * @author mike
+ *
+ */
+public class PartitionedIndexGraphManager extends SingleIndexGraphManager {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(PartitionedIndexGraphManager.class);
+
+    public static final String ID_INDEX_NAME = "entityIds";
+    public static final String PARTITION_PREFIX = "entities_";
+
+    // Number of vertices to index between commits when rebuilding.
+    private static final int REBUILD_BATCH_SIZE = 5000;
+
+    public PartitionedIndexGraphManager(FramedGraph<?> graph) {
+        super(graph);
+    }
+
+    /**
+     * Get the name of the index partition holding the given type.
+     *
+     * @param type
+     * @return An index name
+     */
+    public static String getPartitionName(EntityClass type) {
+        return PARTITION_PREFIX + type.getName();
+    }
+
+    @Override
+    public boolean propertyValueExists(String key, Object value) {
+        Preconditions.checkNotNull(key,
+                "attempt determine existence of a property value with a null name");
+        Preconditions.checkNotNull(value,
+                "attempt determine existence of a property given a null value");
+        // Types without a partition have no items, so read without
+        // creating the missing ones.
+        for (EntityClass type : EntityClass.values()) {
+            Index<Vertex> index = findIndex(type);
+            if (index != null && index.count(key, String.valueOf(value)) > 0L) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop and rebuild the id index and all type partitions from
+     * the vertices in the graph, committing in batches.
+     *
+     * @return The number of vertices indexed
+     */
+    public long rebuildIndexes() {
+        Neo4jGraph graph = getBaseGraph();
+        try {
+            dropIndex(ID_INDEX_NAME);
+            for (EntityClass type : EntityClass.values()) {
+                dropIndex(getPartitionName(type));
+            }
+            graph.commit();
+
+            Index<Vertex> idIndex = getIndex();
+            Map<EntityClass, Index<Vertex>> partitions = Maps
+                    .newEnumMap(EntityClass.class);
+            long count = 0L;
+            for (Vertex vertex : graph.getVertices()) {
+                String id = getId(vertex);
+                String typeName = getType(vertex);
+                if (id == null || typeName == null) {
+                    continue;
+                }
+                EntityClass type;
+                try {
+                    type = EntityClass.withName(typeName);
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Skipping item '{}' with unknown type: {}", id, typeName);
+                    continue;
+                }
+                Index<Vertex> partition = partitions.get(type);
+                if (partition == null) {
+                    partition = getIndex(type);
+                    partitions.put(type, partition);
+                }
+                idIndex.put(EntityType.ID_KEY, id, vertex);
+                for (String key : IndexPolicy.getIndexedKeys(type)) {
+                    Object value = vertex.getProperty(key);
+                    if (value != null) {
+                        partition.put(key, String.valueOf(value), vertex);
+                    }
+                }
+                if (++count % REBUILD_BATCH_SIZE == 0) {
+                    graph.commit();
+                    logger.info("Indexed {} items", count);
+                }
+            }
+            graph.commit();
+            return count;
+        } catch (RuntimeException e) {
+            graph.rollback();
+            throw e;
+        }
+    }
+
+    @Override
+    protected String getIdIndexName() {
+        return ID_INDEX_NAME;
+    }
+
+    @Override
+    protected String getIndexName(EntityClass type) {
+        return getPartitionName(type);
+    }
+
+    @Override
+    protected void indexId(Vertex vertex, String id) {
+        getIndex().put(EntityType.ID_KEY, id, vertex);
+    }
+
+    @Override
+    protected void unindexId(Vertex vertex, String id) {
+        getIndex().remove(EntityType.ID_KEY, id, vertex);
+    }
+
+    private void dropIndex(String name) {
+        if (getBaseGraph().getIndex(name, Vertex.class) != null) {
+            getBaseGraph().dropIndex(name);
+        }
+    }
+}
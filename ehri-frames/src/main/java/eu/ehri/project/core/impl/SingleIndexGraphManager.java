@@ -6,20 +6,40 @@ import com.tinkerpop.blueprints.*;
 
 import com.tinkerpop.blueprints.util.WrappingCloseableIterable;
 import eu.ehri.project.models.base.Frame;
+
+import javax.transaction.SystemException;
+
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.index.lucene.QueryContext;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
 import com.tinkerpop.blueprints.impls.neo4j.Neo4jVertex;
 import com.tinkerpop.blueprints.impls.neo4j.Neo4jVertexIterable;
 import com.tinkerpop.frames.FramedGraph;
 
 import eu.ehri.project.core.GraphManager;
+import eu.ehri.project.core.IndexPolicy;
 import eu.ehri.project.exceptions.IntegrityError;
 import eu.ehri.project.exceptions.ItemNotFound;
 import eu.ehri.project.models.EntityClass;
@@ -27,15 +47,30 @@ import eu.ehri.project.models.annotations.EntityType;
 
 /**
  * Implementation of GraphManager that uses a single index to manage all nodes.
+ *
+ * Subclasses can spread the index entries of each type over different
+ * indexes by overriding the index names.
  * 
  * @author mike
  * 
  */
-public final class SingleIndexGraphManager implements GraphManager {
+public class SingleIndexGraphManager implements GraphManager {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(SingleIndexGraphManager.class);
 
     private static final String INDEX_NAME = "entities";
 
+    // Maximum number of ids to look up in a single index query. This
+    // needs to stay below Lucene's default limit of 1024 boolean clauses.
+    private static final int ID_QUERY_BATCH_SIZE = 500;
+
     private final FramedGraph<Neo4jGraph> graph;
+    private final VertexIdCache idCache;
+    private final EntityCountRegistry typeCounts;
+
+    // Number of property keys written by updates via this manager.
+    private long writtenKeyCount = 0L;
 
     public FramedGraph<? extends TransactionalGraph> getGraph() {
         return graph;
@@ -44,6 +79,31 @@ public final class SingleIndexGraphManager implements GraphManager {
     public SingleIndexGraphManager(FramedGraph<?> graph) {
         // Accept a warning here about the unsafe cast.
         this.graph = (FramedGraph<Neo4jGraph>)graph;
+        this.idCache = VertexIdCache.forDatabase(this.graph.getBaseGraph()
+                .getRawGraph());
+        this.typeCounts = EntityCountRegistry.forDatabase(this.graph
+                .getBaseGraph().getRawGraph());
+    }
+
+    /**
+     * Get the id-to-node cache shared by managers of this graph.
+     *
+     * @return The id cache
+     */
+    public VertexIdCache getIdCache() {
+        return idCache;
+    }
+
+    /**
+     * Get the number of property keys which have been written (set or
+     * removed) by updates made via this manager. Unchanged values are
+     * not rewritten, so this is usually much smaller than the number of
+     * keys given to {@link #updateVertex}.
+     *
+     * @return The number of keys written
+     */
+    public long getWrittenKeyCount() {
+        return writtenKeyCount;
     }
 
     // Access functions
@@ -74,7 +134,11 @@ public final class SingleIndexGraphManager implements GraphManager {
     public boolean exists(String id) {
         Preconditions.checkNotNull(id,
                 "attempt determine existence of a vertex with a null id");
-        return getIndex().count(EntityType.ID_KEY, id) > 0L;
+        if (getCachedVertex(id) != null) {
+            return true;
+        }
+        Index<Vertex> index = findIndex();
+        return index != null && index.count(EntityType.ID_KEY, id) > 0L;
     }
 
     public boolean propertyValueExists(String key, Object value) {
@@ -82,7 +146,8 @@ public final class SingleIndexGraphManager implements GraphManager {
                 "attempt determine existence of a property value with a null name");
         Preconditions.checkNotNull(value,
                 "attempt determine existence of a property given a null value");
-        return getIndex().count(key, String.valueOf(value)) > 0L;
+        Index<Vertex> index = findIndex();
+        return index != null && index.count(key, String.valueOf(value)) > 0L;
     }
 
     public <T> T getFrame(String id, Class<T> cls) throws ItemNotFound {
@@ -106,9 +171,19 @@ public final class SingleIndexGraphManager implements GraphManager {
     public Vertex getVertex(String id) throws ItemNotFound {
         Preconditions
                 .checkNotNull(id, "attempt to fetch vertex with a null id");
-        CloseableIterable<Vertex> query = getIndex().get(EntityType.ID_KEY, id);
+        Vertex cached = getCachedVertex(id);
+        if (cached != null) {
+            return cached;
+        }
+        Index<Vertex> index = findIndex();
+        if (index == null) {
+            throw new ItemNotFound(id);
+        }
+        CloseableIterable<Vertex> query = index.get(EntityType.ID_KEY, id);
         try {
-            return query.iterator().next();
+            Vertex vertex = query.iterator().next();
+            idCache.put(id, (Long) vertex.getId());
+            return vertex;
         } catch (NoSuchElementException e) {
             throw new ItemNotFound(id);
         } finally {
@@ -119,13 +194,27 @@ public final class SingleIndexGraphManager implements GraphManager {
     public Vertex getVertex(String id, EntityClass type) throws ItemNotFound {
         Preconditions
                 .checkNotNull(id, "attempt to fetch vertex with a null id");
+        // Ids are unique across all types, so if the id is cached
+        // the type either matches or the item does not exist.
+        Vertex cached = getCachedVertex(id);
+        if (cached != null) {
+            if (type.getName().equals(getType(cached))) {
+                return cached;
+            }
+            throw new ItemNotFound(id);
+        }
+        org.neo4j.graphdb.index.Index<Node> index = findRawIndex(type);
+        if (index == null) {
+            throw new ItemNotFound(id);
+        }
         String queryStr = getLuceneQuery(EntityType.ID_KEY, id, type.getName());
-        IndexHits<Node> rawQuery = getRawIndex().query(queryStr);
+        IndexHits<Node> rawQuery = index.query(queryStr);
         // NB: Not using rawQuery.getSingle here so we throw NoSuchElement
         // other than return null.
         try {
-            return new Neo4jVertex(rawQuery.iterator().next(),
-                    graph.getBaseGraph());
+            Node node = rawQuery.iterator().next();
+            idCache.put(id, node.getId());
+            return new Neo4jVertex(node, graph.getBaseGraph());
         } catch (NoSuchElementException e) {
             throw new ItemNotFound(id);
         } finally {
@@ -135,16 +224,81 @@ public final class SingleIndexGraphManager implements GraphManager {
 
     public CloseableIterable<Vertex> getVertices(EntityClass type) {
         Preconditions.checkNotNull(type, "EntityClass is null in vertex/type count!");
-        return getIndex().get(EntityType.TYPE_KEY, type.getName());
+        Index<Vertex> index = findIndex(type);
+        return index == null ? new WrappingCloseableIterable<Vertex>(
+                Collections.<Vertex>emptyList())
+                : index.get(EntityType.TYPE_KEY, type.getName());
+    }
+
+    /**
+     * Count the vertices of the given type. Outside a transaction this is
+     * answered from the shared per-type counters.
+     *
+     * @param type
+     * @return The number of vertices
+     */
+    public long countVertices(final EntityClass type) {
+        Preconditions.checkNotNull(type, "EntityClass is null in vertex/type count!");
+        Supplier<Long> counter = new Supplier<Long>() {
+            public Long get() {
+                Index<Vertex> index = findIndex(type);
+                return index == null ? 0L
+                        : index.count(EntityType.TYPE_KEY, type.getName());
+            }
+        };
+        // The index includes the current transaction's changes, which
+        // we don't want to bake into the shared counters.
+        return isInTransaction() ? counter.get()
+                : typeCounts.getCount(type, counter);
     }
 
     public CloseableIterable<Vertex> getVertices(Iterable<String> ids) throws ItemNotFound {
+        List<String> idList = Lists.newArrayList(ids);
+        Map<String, Vertex> found = Maps.newHashMap();
+
+        // Resolve what we can from the id cache and batch the rest
+        // into disjunctive index queries.
+        Set<String> uncached = Sets.newLinkedHashSet();
+        for (String id : idList) {
+            Preconditions.checkNotNull(id,
+                    "attempt to fetch vertex with a null id");
+            if (!found.containsKey(id) && !uncached.contains(id)) {
+                Vertex cached = getCachedVertex(id);
+                if (cached != null) {
+                    found.put(id, cached);
+                } else {
+                    uncached.add(id);
+                }
+            }
+        }
+        // Without an id index, none of the uncached ids exist.
+        org.neo4j.graphdb.index.Index<Node> index = uncached.isEmpty() ? null : findRawIndex();
+        if (index != null) {
+            for (List<String> chunk : Iterables.partition(uncached, ID_QUERY_BATCH_SIZE)) {
+                IndexHits<Node> rawQuery = index.query(getLuceneQuery(
+                        EntityType.ID_KEY, chunk));
+                try {
+                    for (Node node : rawQuery) {
+                        String id = (String) node.getProperty(EntityType.ID_KEY);
+                        idCache.put(id, node.getId());
+                        found.put(id, new Neo4jVertex(node, graph.getBaseGraph()));
+                    }
+                } finally {
+                    rawQuery.close();
+                }
+            }
+        }
+
         // Ugh, we don't want to remove duplicate results here
         // because that's not expected behaviour - if you give
         // an array with dups you expect the dups to come out...
-        List<Vertex> verts = Lists.newLinkedList();
-        for (String id : ids) {
-            verts.add(getVertex(id));
+        List<Vertex> verts = Lists.newArrayListWithCapacity(idList.size());
+        for (String id : idList) {
+            Vertex vertex = found.get(id);
+            if (vertex == null) {
+                throw new ItemNotFound(id);
+            }
+            verts.add(vertex);
         }
         return new WrappingCloseableIterable<Vertex>(verts);
     }
@@ -152,26 +306,50 @@ public final class SingleIndexGraphManager implements GraphManager {
     @SuppressWarnings("unchecked")
     public CloseableIterable<Neo4jVertex> getVertices(String key, Object value,
             EntityClass type) {
+        org.neo4j.graphdb.index.Index<Node> index = findRawIndex(type);
+        if (index == null) {
+            return new WrappingCloseableIterable<Neo4jVertex>(
+                    Collections.<Neo4jVertex>emptyList());
+        }
         String queryStr = getLuceneQuery(key, value, type.getName());
-        IndexHits<Node> rawQuery = getRawIndex().query(queryStr);
+        IndexHits<Node> rawQuery = index.query(queryStr);
         return new Neo4jVertexIterable<Vertex>(rawQuery, graph.getBaseGraph(),
                 false);
     }
 
+    public Optional<CloseableIterable<Vertex>> queryVertices(EntityClass type,
+            Query query, Sort sort) {
+        Preconditions.checkNotNull(type, "EntityClass is null in vertex query!");
+        BooleanQuery typeQuery = new BooleanQuery();
+        typeQuery.add(new TermQuery(new Term(EntityType.TYPE_KEY, type.getName())),
+                BooleanClause.Occur.MUST);
+        typeQuery.add(query, BooleanClause.Occur.MUST);
+        org.neo4j.graphdb.index.Index<Node> index = findRawIndex(type);
+        if (index == null) {
+            return Optional.<CloseableIterable<Vertex>>of(
+                    new WrappingCloseableIterable<Vertex>(Collections.<Vertex>emptyList()));
+        }
+        IndexHits<Node> rawQuery = index.query(sort == null
+                ? typeQuery : new QueryContext(typeQuery).sort(sort));
+        return Optional.<CloseableIterable<Vertex>>of(new Neo4jVertexIterable<Vertex>(
+                rawQuery, graph.getBaseGraph(), false));
+    }
+
     public Vertex createVertex(String id, EntityClass type,
             Map<String, Object> data) throws IntegrityError {
-        return createVertex(id, type, data, data.keySet());
+        return createVertex(id, type, data, IndexPolicy.getIndexedKeys(type));
     }
 
     public Vertex createVertex(String id, EntityClass type,
             Map<String, Object> data, Iterable<String> keys) throws IntegrityError {
         Preconditions
                 .checkNotNull(id, "null vertex ID given for item creation");
-        Index<Vertex> index = getIndex();
+        Index<Vertex> index = getIndex(type);
         Map<String, Object> indexData = getVertexData(id, type, data);
         Collection<String> indexKeys = getVertexKeys(keys);
-        checkExists(index, id);
+        checkExists(getIndex(), id);
         Vertex node = graph.addVertex(null);
+        indexId(node, id);
         for (Map.Entry<String, Object> entry : indexData.entrySet()) {
             if (entry.getValue() == null)
                 continue;
@@ -186,32 +364,59 @@ public final class SingleIndexGraphManager implements GraphManager {
 
     public Vertex updateVertex(String id, EntityClass type,
             Map<String, Object> data) throws ItemNotFound {
-        return updateVertex(id, type, data, data.keySet());
+        return updateVertex(id, type, data, IndexPolicy.getIndexedKeys(type));
     }
 
     public Vertex updateVertex(String id, EntityClass type,
             Map<String, Object> data, Iterable<String> keys) throws ItemNotFound {
         Preconditions.checkNotNull(id, "null vertex ID given for item update");
-        Index<Vertex> index = getIndex();
+        Index<Vertex> index = getIndex(type);
         Map<String, Object> indexData = getVertexData(id, type, data);
         Collection<String> indexKeys = getVertexKeys(keys);
         CloseableIterable<Vertex> get = getIndex().get(EntityType.ID_KEY, id);
         try {
             try {
                 Vertex node = get.iterator().next();
-                replaceProperties(index, node, indexData, indexKeys);
+                int written = updateProperties(index, node, indexData,
+                        indexKeys);
+                writtenKeyCount += written;
+                logger.debug("Updated {} of {} keys on item: {}",
+                        new Object[] { written, indexData.size(), id });
                 return node;
 
             } catch (NoSuchElementException e) {
                 throw new RuntimeException(String.format(
                         "Item with id '%s' not found in index: %s", id,
-                        INDEX_NAME));
+                        getIndex().getIndexName()));
             }
         } finally {
             get.close();
         }
     }
 
+    public void setProperty(Vertex vertex, String key, Object value) {
+        Object current = vertex.getProperty(key);
+        if (valuesEqual(current, value))
+            return;
+        vertex.setProperty(key, value);
+        EntityClass type = getEntityClass(vertex);
+        if (IndexPolicy.isIndexed(type, key)) {
+            Index<Vertex> index = getIndex(type);
+            if (current != null) {
+                index.remove(key, String.valueOf(current), vertex);
+            }
+            index.put(key, String.valueOf(value), vertex);
+        }
+    }
+
+    public void removeProperty(Vertex vertex, String key) {
+        Object current = vertex.removeProperty(key);
+        EntityClass type = getEntityClass(vertex);
+        if (current != null && IndexPolicy.isIndexed(type, key)) {
+            getIndex(type).remove(key, String.valueOf(current), vertex);
+        }
+    }
+
     /**
      * Delete vertex with its edges Neo4j requires you delete all adjacent edges
      * first. Blueprints' removeVertex() method does that; the Neo4jServer
@@ -234,7 +439,14 @@ public final class SingleIndexGraphManager implements GraphManager {
      *            The vertex
      */
     public void deleteVertex(Vertex vertex) {
-        Index<Vertex> index = getIndex();
+        // Untyped vertices can only be in the id index
+        Index<Vertex> index = getType(vertex) == null ? getIndex()
+                : getIndex(getEntityClass(vertex));
+        String id = getId(vertex);
+        if (id != null) {
+            idCache.invalidate(id);
+            unindexId(vertex, id);
+        }
         for (String key : vertex.getPropertyKeys()) {
             index.remove(key, vertex.getProperty(key), vertex);
         }
@@ -242,50 +454,97 @@ public final class SingleIndexGraphManager implements GraphManager {
     }
 
     /**
-     * Replace properties to a property container like vertex and edge
-     * 
+     * Update the properties of a property container like vertex and edge
+     * to match the given data, only writing keys whose values have changed.
+     * Keys which are absent from the data, or null, are removed, apart from
+     * system properties, which are only removed if given as null. Index
+     * entries are only removed and added for the changed keys.
+     *
      * @param index
      *            The index of the container
      * @param item
      *            The container Edge or Vertex of type <code>T</code>
      * @param data
      *            The properties
+     * @param keys
+     *            The keys to index, or null to index all keys
+     * @return The number of property keys written
      */
-    private <T extends Element> void replaceProperties(Index<T> index, T item,
+    private <T extends Element> int updateProperties(Index<T> index, T item,
             Map<String, Object> data, Collection<String> keys) {
+        Preconditions.checkNotNull(data, "Data map cannot be null");
+        int written = 0;
         // remove 'old' properties
         for (String key : item.getPropertyKeys()) {
-            Object value = item.getProperty(key);
-            item.removeProperty(key);
-            if (keys == null || keys.contains(key)) {
-                index.remove(key, value, item);
+            if (data.get(key) == null && !(key.startsWith(EntityType.SYSTEM_PREFIX)
+                    && !data.containsKey(key))) {
+                Object value = item.removeProperty(key);
+                if (keys == null || keys.contains(key)) {
+                    index.remove(key, String.valueOf(value), item);
+                }
+                written++;
             }
         }
 
-        // add all 'new' properties to the relationship and index
-        addProperties(index, item, data, keys);
+        // add 'new' and changed properties to the item and index
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (value == null)
+                continue;
+            Object current = item.getProperty(key);
+            if (valuesEqual(current, value))
+                continue;
+            boolean indexed = keys == null || keys.contains(key);
+            if (current != null && indexed) {
+                index.remove(key, String.valueOf(current), item);
+            }
+            item.setProperty(key, value);
+            if (indexed) {
+                index.put(key, String.valueOf(value), item);
+            }
+            written++;
+        }
+        return written;
     }
 
     /**
-     * Add properties to a property container like vertex and edge
-     * 
-     * @param index
-     *            The index of the container
-     * @param item
-     *            The container Edge or Vertex of type <code>T</code>
-     * @param data
-     *            The properties
+     * Compare two property values, including array values.
      */
-    private <T extends Element> void addProperties(Index<T> index, T item,
-            Map<String, Object> data, Collection<String> keys) {
-        Preconditions.checkNotNull(data, "Data map cannot be null");
-        for (Map.Entry<String, Object> entry : data.entrySet()) {
-            if (entry.getValue() == null)
-                continue;
-            item.setProperty(entry.getKey(), entry.getValue());
-            if (keys == null || keys.contains(entry.getKey()))
-                index.put(entry.getKey(), String.valueOf(entry.getValue()),
-                        item);
+    private static boolean valuesEqual(Object a, Object b) {
+        return Arrays.deepEquals(new Object[] { a }, new Object[] { b });
+    }
+
+    /**
+     * Fetch a vertex via the id cache, checking that the cached node
+     * still exists and still carries the given id, since the transaction
+     * that cached it may have been rolled back.
+     *
+     * @param id
+     * @return The cached vertex, or null if there is no valid entry
+     */
+    private Vertex getCachedVertex(String id) {
+        Long nodeId = idCache.get(id);
+        if (nodeId == null) {
+            return null;
+        }
+        Vertex vertex = graph.getBaseGraph().getVertex(nodeId);
+        if (vertex != null && id.equals(getId(vertex))) {
+            return vertex;
+        }
+        idCache.invalidate(id);
+        return null;
+    }
+
+    private boolean isInTransaction() {
+        GraphDatabaseService db = graph.getBaseGraph().getRawGraph();
+        if (!(db instanceof GraphDatabaseAPI)) {
+            return true;
+        }
+        try {
+            return ((GraphDatabaseAPI) db).getTxManager().getTransaction() != null;
+        } catch (SystemException e) {
+            return true;
         }
     }
 
@@ -311,16 +570,130 @@ public final class SingleIndexGraphManager implements GraphManager {
         return vkeys;
     }
 
-    private org.neo4j.graphdb.index.Index<Node> getRawIndex() {
+    /**
+     * Get the base Neo4j graph.
+     *
+     * @return The graph wrapped by this manager's framed graph
+     */
+    protected Neo4jGraph getBaseGraph() {
+        return graph.getBaseGraph();
+    }
+
+    /**
+     * Get the name of the index in which item ids are looked up.
+     *
+     * @return An index name
+     */
+    protected String getIdIndexName() {
+        return INDEX_NAME;
+    }
+
+    /**
+     * Get the name of the index holding the property entries of the
+     * given type.
+     *
+     * @param type
+     * @return An index name
+     */
+    protected String getIndexName(EntityClass type) {
+        return INDEX_NAME;
+    }
+
+    /**
+     * Get the index in which item ids are looked up, creating it if
+     * necessary. Only for use when writing.
+     *
+     * @return The id index
+     */
+    protected final Index<Vertex> getIndex() {
+        return getIndex(getIdIndexName());
+    }
+
+    /**
+     * Get the index holding the property entries of the given type,
+     * creating it if necessary. Only for use when writing.
+     *
+     * @param type
+     * @return The type's index
+     */
+    protected final Index<Vertex> getIndex(EntityClass type) {
+        return getIndex(getIndexName(type));
+    }
+
+    /**
+     * Get the index in which item ids are looked up, if it exists.
+     *
+     * @return The id index, or null
+     */
+    protected final Index<Vertex> findIndex() {
+        return findIndex(getIdIndexName());
+    }
+
+    /**
+     * Get the index holding the property entries of the given type,
+     * if it exists.
+     *
+     * @param type
+     * @return The type's index, or null
+     */
+    protected final Index<Vertex> findIndex(EntityClass type) {
+        return findIndex(getIndexName(type));
+    }
+
+    /**
+     * Get the raw index in which item ids are looked up, if it exists.
+     *
+     * @return The id index, or null
+     */
+    protected final org.neo4j.graphdb.index.Index<Node> findRawIndex() {
+        return findRawIndex(getIdIndexName());
+    }
+
+    /**
+     * Get the raw index holding the property entries of the given
+     * type, if it exists.
+     *
+     * @param type
+     * @return The type's index, or null
+     */
+    protected final org.neo4j.graphdb.index.Index<Node> findRawIndex(EntityClass type) {
+        return findRawIndex(getIndexName(type));
+    }
+
+    /**
+     * Add a newly created vertex's id to the id index, if that
+     * differs from its type index. With a single index this does
+     * nothing since the id is indexed with the other properties.
+     *
+     * @param vertex
+     * @param id
+     */
+    protected void indexId(Vertex vertex, String id) {
+    }
+
+    /**
+     * Remove a deleted vertex's id from the id index, if that differs
+     * from its type index.
+     *
+     * @param vertex
+     * @param id
+     */
+    protected void unindexId(Vertex vertex, String id) {
+    }
+
+    protected final org.neo4j.graphdb.index.Index<Node> findRawIndex(String name) {
         IndexManager index = graph.getBaseGraph().getRawGraph().index();
-        return index.forNodes(INDEX_NAME);
+        return index.existsForNodes(name) ? index.forNodes(name) : null;
+    }
+
+    protected final Index<Vertex> findIndex(String name) {
+        return graph.getBaseGraph().getIndex(name, Vertex.class);
     }
 
-    private Index<Vertex> getIndex() {
-        Index<Vertex> index = graph.getBaseGraph().getIndex(INDEX_NAME,
-                Vertex.class);
+    protected final Index<Vertex> getIndex(String name) {
+        Index<Vertex> index = findIndex(name);
         if (index == null) {
-            index = graph.getBaseGraph().createIndex(INDEX_NAME, Vertex.class);
+            index = graph.getBaseGraph().createIndex(name, Vertex.class);
         }
         return index;
     }
@@ -332,4 +705,13 @@ public final class SingleIndexGraphManager implements GraphManager {
                 QueryParser.escape(EntityType.TYPE_KEY),
                 QueryParser.escape(type));
     }
+
+    private String getLuceneQuery(String key, Iterable<String> values) {
+        List<String> terms = Lists.newArrayList();
+        for (String value : values) {
+            terms.add(String.format("\"%s\"", QueryParser.escape(value)));
+        }
+        return String.format("%s:(%s)", QueryParser.escape(key),
+                Joiner.on(" OR ").join(terms));
+    }
 }
@@ -0,0 +1,169 @@
+package eu.ehri.project.core.impl;
+
+import java.util.concurrent.ExecutionException;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+
+import eu.ehri.project.models.annotations.EntityType;
+
+/**
+ * Bounded, concurrent cache mapping entity id strings to the internal
+ * ids of the Neo4j nodes that hold them, so that repeated lookups of the
+ * same item (the requesting user, their groups, content types etc) can
+ * skip the Lucene index.
+ *
+ * There is one cache per database instance. Each registers a transaction
+ * event handler on its database which invalidates ids removed by committed
+ * transactions, and ids touched by transactions that are rolled back.
+ * Since a plain rollback does not always notify the handler, cached node
+ * ids must still be checked against the node's id property on use.
+ *
+ * @author mike
+ */
+public final class VertexIdCache {
+
+    /**
+     * Default maximum number of cached ids per database.
+     */
+    public static final long DEFAULT_MAXIMUM_SIZE = 50000L;
+
+    private static final LoadingCache<GraphDatabaseService, VertexIdCache> caches
+            = CacheBuilder.newBuilder().weakKeys()
+            .build(new CacheLoader<GraphDatabaseService, VertexIdCache>() {
+                @Override
+                public VertexIdCache load(GraphDatabaseService database) {
+                    VertexIdCache cache = new VertexIdCache(DEFAULT_MAXIMUM_SIZE);
+                    database.registerTransactionEventHandler(cache.new InvalidationHandler());
+                    return cache;
+                }
+            });
+
+    private final Cache<String, Long> ids;
+
+    private VertexIdCache(long maximumSize) {
+        ids = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Get the shared cache for the given database.
+     *
+     * @param database
+     * @return The database's id cache
+     */
+    public static VertexIdCache forDatabase(GraphDatabaseService database) {
+        try {
+            return caches.get(database);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get the node id cached for the given item id, or null if there
+     * is none.
+     *
+     * @param id
+     * @return A Neo4j node id, or null
+     */
+    public Long get(String id) {
+        return ids.getIfPresent(id);
+    }
+
+    /**
+     * Cache the node id for the given item id.
+     *
+     * @param id
+     * @param nodeId
+     */
+    public void put(String id, Long nodeId) {
+        ids.put(id, nodeId);
+    }
+
+    /**
+     * Remove the given item id from the cache.
+     *
+     * @param id
+     */
+    public void invalidate(String id) {
+        ids.invalidate(id);
+    }
+
+    /**
+     * Empty the cache.
+     */
+    public void invalidateAll() {
+        ids.invalidateAll();
+    }
+
+    /**
+     * Get the number of currently cached ids.
+     *
+     * @return The cache size
+     */
+    public long size() {
+        return ids.size();
+    }
+
+    /**
+     * Get hit, miss and eviction counters for this cache.
+     *
+     * @return A snapshot of the cache statistics
+     */
+    public CacheStats stats() {
+        return ids.stats();
+    }
+
+    /**
+     * Transaction hook which drops cache entries for items whose id
+     * property has been removed or changed.
+     */
+    private class InvalidationHandler implements TransactionEventHandler<Object> {
+        public Object beforeCommit(TransactionData data) throws Exception {
+            return null;
+        }
+
+        public void afterCommit(TransactionData data, Object state) {
+            // Deleted nodes show up with their properties removed.
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                invalidateEntry(entry);
+            }
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                invalidateEntry(entry);
+            }
+        }
+
+        public void afterRollback(TransactionData data, Object state) {
+            // The transaction may have looked up (and cached) nodes it
+            // created, so drop everything it touched.
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                invalidateEntry(entry);
+            }
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                invalidateEntry(entry);
+                if (EntityType.ID_KEY.equals(entry.key()) && entry.value() != null) {
+                    invalidate(String.valueOf(entry.value()));
+                }
+            }
+        }
+
+        private void invalidateEntry(PropertyEntry<Node> entry) {
+            if (EntityType.ID_KEY.equals(entry.key())
+                    && entry.previouslyCommitedValue() != null) {
+                invalidate(String.valueOf(entry.previouslyCommitedValue()));
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package eu.ehri.project.exceptions;
+
+/**
+ * A page cursor was malformed, did not match the query's order, or was
+ * used with an order it cannot encode.
+ */
+public class InvalidCursor extends IllegalArgumentException {
+    private static final long serialVersionUID = 4527194368093418472L;
+
+    public InvalidCursor(String message) {
+        super(message);
+    }
+
+    public InvalidCursor(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -9,6 +9,7 @@ import com.tinkerpop.gremlin.java.GremlinPipeline;
 import com.tinkerpop.pipes.PipeFunction;
 import com.tinkerpop.pipes.branch.LoopPipe;
 import com.tinkerpop.pipes.util.Pipeline;
+import eu.ehri.project.core.GraphManagerFactory;
 import eu.ehri.project.definitions.Ontology;
 import eu.ehri.project.models.annotations.EntityType;
 import eu.ehri.project.models.annotations.Fetch;
@@ -16,6 +17,7 @@ import eu.ehri.project.models.base.AccessibleEntity;
 import eu.ehri.project.models.base.DescribedEntity;
 import eu.ehri.project.models.base.ItemHolder;
 import eu.ehri.project.models.base.PermissionScope;
+import eu.ehri.project.models.utils.HierarchyDepth;
 import eu.ehri.project.models.utils.JavaHandlerUtils;
 
 @EntityType(EntityClass.DOCUMENTARY_UNIT)
@@ -91,6 +93,8 @@ public interface DocumentaryUnit extends AccessibleEntity,
 
         public void addChild(final DocumentaryUnit child) {
             child.asVertex().addEdge(Ontology.DOC_IS_CHILD_OF, it());
+            HierarchyDepth.parentsChanged(GraphManagerFactory.getInstance(g()),
+                    child.asVertex(), Ontology.DOC_IS_CHILD_OF);
             Long count = it().getProperty(CHILD_COUNT);
             if (count == null) {
                 getChildCount();
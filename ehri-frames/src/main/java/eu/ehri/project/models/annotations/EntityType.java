@@ -12,6 +12,9 @@ import java.lang.annotation.Target;
 public @interface EntityType {
     public static final String TYPE_KEY = "__ISA__";
     public static final String ID_KEY = "__ID__";
+    // Prefix of properties kept by the system rather than given in item
+    // data, which are not serialized and survive updates.
+    public static final String SYSTEM_PREFIX = "_";
 
     public EntityClass value();
 }
@@ -0,0 +1,25 @@
+package eu.ehri.project.models.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+/**
+ * 
+ * <pre>
+ *   public class MyEntity {
+ *      &064;Indexed
+ *      &064;Property("indentifier")
+ *      public String getIdentifier();
+ *   }
+ * </pre>
+ * 
+ * Indicates that a property is used in index queries, and so must
+ * be indexed. Properties marked &064;Unique are always indexed.
+ */
+public @interface Indexed {
+
+}
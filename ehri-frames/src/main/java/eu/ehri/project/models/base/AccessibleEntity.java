@@ -5,6 +5,7 @@ import com.tinkerpop.frames.Adjacency;
 import com.tinkerpop.frames.modules.javahandler.JavaHandler;
 import com.tinkerpop.frames.modules.javahandler.JavaHandlerContext;
 import com.tinkerpop.gremlin.java.GremlinPipeline;
+import eu.ehri.project.acl.PermissionScopeCache;
 import eu.ehri.project.definitions.Ontology;
 import eu.ehri.project.models.annotations.Fetch;
 import eu.ehri.project.models.events.SystemEvent;
@@ -12,6 +13,13 @@ import eu.ehri.project.models.utils.JavaHandlerUtils;
 
 public interface AccessibleEntity extends PermissionGrantTarget {
 
+    /**
+     * Marker of whether the item has access restrictions, i.e. accessors.
+     * It is kept by the AclManager, which should be used to change them;
+     * items without it may or may not be restricted.
+     */
+    public static final String RESTRICTED_KEY = "_restricted";
+
     @Fetch(value = Ontology.IS_ACCESSIBLE_TO, depth = 1)
     @Adjacency(label = Ontology.IS_ACCESSIBLE_TO)
     public Iterable<Accessor> getAccessors();
@@ -60,9 +68,7 @@ public interface AccessibleEntity extends PermissionGrantTarget {
         }
 
         public Iterable<PermissionScope> getPermissionScopes() {
-            return frameVertices(gremlin().as("n")
-                    .out(Ontology.HAS_PERMISSION_SCOPE)
-                    .loop("n", JavaHandlerUtils.defaultMaxLoops, JavaHandlerUtils.noopLoopFunc));
+            return frameVertices(PermissionScopeCache.getScopes(g(), it()));
         }
 
         public Iterable<SystemEvent> getHistory() {
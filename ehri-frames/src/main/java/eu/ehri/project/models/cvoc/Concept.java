@@ -6,6 +6,7 @@ import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.frames.Adjacency;
 import com.tinkerpop.frames.modules.javahandler.JavaHandler;
 import com.tinkerpop.frames.modules.javahandler.JavaHandlerContext;
+import eu.ehri.project.core.GraphManagerFactory;
 import eu.ehri.project.definitions.Ontology;
 import eu.ehri.project.models.EntityClass;
 import eu.ehri.project.models.annotations.EntityType;
@@ -14,6 +15,7 @@ import eu.ehri.project.models.base.AccessibleEntity;
 import eu.ehri.project.models.base.DescribedEntity;
 import eu.ehri.project.models.base.IdentifiableEntity;
 import eu.ehri.project.models.base.ItemHolder;
+import eu.ehri.project.models.utils.HierarchyDepth;
 
 /**
  * This models the thesaurus terms or keywords in a way that is better managing multi-linguality. 
@@ -58,7 +60,7 @@ public interface Concept extends AccessibleEntity, IdentifiableEntity,
     @Adjacency(label = Ontology.CONCEPT_HAS_NARROWER)
     public Iterable<Concept> getNarrowerConcepts();
 
-    @Adjacency(label = Ontology.CONCEPT_HAS_NARROWER)
+    @JavaHandler
     public void addNarrowerConcept(final Concept concept);
 
     //@Adjacency(label = CONCEPT_HAS_NARROWER)
@@ -88,7 +90,7 @@ public interface Concept extends AccessibleEntity, IdentifiableEntity,
         public Long getChildCount() {
             Long count = it().getProperty(CHILD_COUNT);
             if (count == null) {
-                it().setProperty(CHILD_COUNT, gremlin().in(Ontology.CONCEPT_HAS_NARROWER).count());
+                it().setProperty(CHILD_COUNT, gremlin().out(Ontology.CONCEPT_HAS_NARROWER).count());
             }
             return count;
         }
@@ -101,6 +103,8 @@ public interface Concept extends AccessibleEntity, IdentifiableEntity,
 
         public void addNarrowerConcept(final Concept concept) {
             it().addEdge(Ontology.CONCEPT_HAS_NARROWER, concept.asVertex());
+            HierarchyDepth.parentsChanged(GraphManagerFactory.getInstance(g()),
+                    concept.asVertex(), Ontology.CONCEPT_HAS_NARROWER);
             Long count = it().getProperty(CHILD_COUNT);
             if (count == null) {
                 getChildCount();
@@ -113,6 +117,8 @@ public interface Concept extends AccessibleEntity, IdentifiableEntity,
             for (Edge e : it().getEdges(Direction.OUT, Ontology.CONCEPT_HAS_NARROWER)) {
                 if (e.getVertex(Direction.IN).equals(concept.asVertex())) {
                     e.remove();
+                    HierarchyDepth.parentsChanged(GraphManagerFactory.getInstance(g()),
+                            concept.asVertex(), Ontology.CONCEPT_HAS_NARROWER);
                     break;
                 }
             }
@@ -33,6 +33,7 @@ public class ClassUtils {
     private static Map<Class<?>,Iterable<String>> propertyKeysCache = Maps.newHashMap();
     private static Map<Class<?>,Iterable<String>> mandatoryPropertyKeysCache = Maps.newHashMap();
     private static Map<Class<?>,Iterable<String>> uniquePropertyKeysCache = Maps.newHashMap();
+    private static Map<Class<?>,Iterable<String>> indexedPropertyKeysCache = Maps.newHashMap();
     private static Map<Class<?>,Map<String, Direction>> dependentRelationsCache = Maps.newHashMap();
     private static Map<Class<?>,EntityClass> entityClassCache = Maps.newHashMap();
 
@@ -84,6 +85,20 @@ public class ClassUtils {
         return uniquePropertyKeysCache.get(cls);
     }
 
+    /**
+     * Get the property keys which are used in index queries, namely
+     * those marked with either the @Indexed or @Unique annotations.
+     *
+     * @param cls
+     * @return
+     */
+    public static Iterable<String> getIndexedPropertyKeys(Class<?> cls) {
+        if (!indexedPropertyKeysCache.containsKey(cls)) {
+            indexedPropertyKeysCache.put(cls, getIndexedPropertyKeysInternal(cls));
+        }
+        return indexedPropertyKeysCache.get(cls);
+    }
+
     private static EntityClass getEntityTypeInternal(Class<?> cls) {
         EntityType ann = cls.getAnnotation(EntityType.class);
         if (ann == null)
@@ -181,4 +196,23 @@ public class ClassUtils {
 
         return ImmutableSet.copyOf(out);
     }
+
+    private static Iterable<String> getIndexedPropertyKeysInternal(Class<?> cls) {
+        List<String> out = new LinkedList<String>();
+        for (Method method : cls.getMethods()) {
+            if (method.getAnnotation(Indexed.class) != null
+                    || method.getAnnotation(Unique.class) != null) {
+                Property ann = method.getAnnotation(Property.class);
+                if (ann != null)
+                    out.add(ann.value());
+            }
+
+        }
+
+        for (Class<?> s : cls.getInterfaces()) {
+            Iterables.addAll(out, getIndexedPropertyKeysInternal(s));
+        }
+
+        return ImmutableSet.copyOf(out);
+    }
 }
@@ -0,0 +1,237 @@
+package eu.ehri.project.models.utils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.frames.FramedGraph;
+
+import eu.ehri.project.core.GraphManager;
+import eu.ehri.project.core.GraphManagerFactory;
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.models.EntityClass;
+
+/**
+ * Utilities for the stored depth of items in a hierarchy, i.e. the number
+ * of parent relationships between an item and the top level.
+ *
+ * The depth is stored in the {@value #DEPTH_PREFIX}&lt;label&gt; property
+ * when a parent is added or removed via the models, and computed and
+ * stored on demand otherwise, like the child counts of item holders.
+ * Where an item has several parents its depth is that of the shortest
+ * path to the top. Deleting an item via the bundle DAO clears the stored
+ * depths below it. Depths are written via the graph manager, so they are
+ * indexed where the index policy includes them, as it does by default.
+ * Those of databases written before depths were kept can be filled in
+ * with {@link #storeDepths}.
+ *
+ * @author mike
+ */
+public final class HierarchyDepth {
+
+    public static final String DEPTH_PREFIX = "_depth_";
+
+    /**
+     * The hierarchies for which depths are stored: relationship labels
+     * and the direction in which they lead from an item to its parents.
+     */
+    public static final Map<String, Direction> HIERARCHIES = ImmutableMap.of(
+            Ontology.DOC_IS_CHILD_OF, Direction.OUT,
+            Ontology.CONCEPT_HAS_NARROWER, Direction.IN);
+
+    /**
+     * The type of the items in each hierarchy.
+     */
+    public static final Map<String, EntityClass> HIERARCHY_TYPES = ImmutableMap.of(
+            Ontology.DOC_IS_CHILD_OF, EntityClass.DOCUMENTARY_UNIT,
+            Ontology.CONCEPT_HAS_NARROWER, EntityClass.CVOC_CONCEPT);
+
+    // Number of items whose depths are stored per transaction.
+    private static final int STORE_BATCH_SIZE = 5000;
+
+    private HierarchyDepth() {
+    }
+
+    /**
+     * Get the stored depth of an item in the hierarchy formed by the given
+     * relationship, if it has one.
+     *
+     * @param vertex
+     * @param label
+     * @param direction the direction leading to the item's parents
+     * @return The stored depth, or null if there is none
+     */
+    public static Integer getStoredDepth(Vertex vertex, String label, Direction direction) {
+        if (direction != HIERARCHIES.get(label)) {
+            return null;
+        }
+        return vertex.getProperty(DEPTH_PREFIX + label);
+    }
+
+    /**
+     * Get the depth of an item, computing and storing it if necessary.
+     *
+     * @param manager
+     * @param vertex
+     * @param label
+     * @return The item's depth
+     */
+    public static int getDepth(GraphManager manager, Vertex vertex, String label) {
+        Direction direction = HIERARCHIES.get(label);
+        Integer stored = getStoredDepth(vertex, label, direction);
+        if (stored != null) {
+            return stored;
+        }
+        int depth = findDepth(vertex, label, direction, Integer.MAX_VALUE);
+        manager.setProperty(vertex, DEPTH_PREFIX + label, depth);
+        return depth;
+    }
+
+    /**
+     * Find the depth of an item in the hierarchy formed by the given
+     * relationship, i.e. the length of its shortest path to the top, in
+     * the same way as stored depths are computed, but without storing it.
+     * The search stops once it is deeper than the given limit.
+     *
+     * @param vertex
+     * @param label
+     * @param direction the direction leading to the item's parents
+     * @param limit the greatest depth of interest
+     * @return The item's depth, or a value above the limit if it is deeper
+     */
+    public static int findDepth(Vertex vertex, String label, Direction direction, int limit) {
+        Integer stored = getStoredDepth(vertex, label, direction);
+        if (stored != null) {
+            return stored;
+        }
+        // Search upwards, level by level, for the shortest path to either
+        // a top-level item or one with a stored depth.
+        int depth = Integer.MAX_VALUE;
+        Set<Vertex> seen = Sets.newHashSet(vertex);
+        List<Vertex> level = Lists.newArrayList(vertex);
+        int distance = 0;
+        for (; !level.isEmpty() && distance < depth && distance <= limit; distance++) {
+            List<Vertex> next = Lists.newArrayList();
+            for (Vertex item : level) {
+                Integer itemDepth = distance == 0 ? null
+                        : getStoredDepth(item, label, direction);
+                if (itemDepth != null) {
+                    depth = Math.min(depth, distance + itemDepth);
+                    continue;
+                }
+                boolean top = true;
+                for (Vertex parent : item.getVertices(direction, label)) {
+                    top = false;
+                    if (seen.add(parent)) {
+                        next.add(parent);
+                    }
+                }
+                if (top) {
+                    depth = Math.min(depth, distance);
+                }
+            }
+            level = next;
+        }
+        if (depth == Integer.MAX_VALUE) {
+            // Either deeper than the limit, or a cycle with no way out,
+            // in which case the item is treated as top-level.
+            return level.isEmpty() ? 0 : distance;
+        }
+        return depth;
+    }
+
+    /**
+     * Update stored depths after an item's parents have changed. The
+     * stored depths of the item's descendants are removed, to be
+     * recomputed on demand, and the item's depth is recomputed.
+     *
+     * @param manager
+     * @param vertex
+     * @param label
+     */
+    public static void parentsChanged(GraphManager manager, Vertex vertex, String label) {
+        clearDepths(manager, vertex, label);
+        getDepth(manager, vertex, label);
+    }
+
+    /**
+     * Remove the stored depths of the descendants of an item which is
+     * about to be deleted, to be recomputed on demand without it.
+     *
+     * @param manager
+     * @param vertex
+     */
+    public static void itemDeleted(GraphManager manager, Vertex vertex) {
+        for (Map.Entry<String, Direction> entry : HIERARCHIES.entrySet()) {
+            for (Vertex child : vertex.getVertices(entry.getValue().opposite(),
+                    entry.getKey())) {
+                clearDepths(manager, child, entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Recompute and store the depths of all the items in each hierarchy,
+     * committing in batches.
+     *
+     * @param graph
+     * @return The number of items whose depths were stored
+     */
+    public static long storeDepths(FramedGraph<? extends TransactionalGraph> graph) {
+        GraphManager manager = GraphManagerFactory.getInstance(graph);
+        long count = 0L;
+        try {
+            for (Map.Entry<String, EntityClass> entry : HIERARCHY_TYPES.entrySet()) {
+                String label = entry.getKey();
+                String key = DEPTH_PREFIX + label;
+                // Clear existing depths first, so none are computed from
+                // stale ones.
+                long cleared = 0L;
+                for (Vertex vertex : manager.getVertices(entry.getValue())) {
+                    if (vertex.getProperty(key) != null) {
+                        manager.removeProperty(vertex, key);
+                        if (++cleared % STORE_BATCH_SIZE == 0) {
+                            graph.getBaseGraph().commit();
+                        }
+                    }
+                }
+                graph.getBaseGraph().commit();
+                for (Vertex vertex : manager.getVertices(entry.getValue())) {
+                    getDepth(manager, vertex, label);
+                    if (++count % STORE_BATCH_SIZE == 0) {
+                        graph.getBaseGraph().commit();
+                    }
+                }
+            }
+            graph.getBaseGraph().commit();
+            return count;
+        } catch (RuntimeException e) {
+            graph.getBaseGraph().rollback();
+            throw e;
+        }
+    }
+
+    private static void clearDepths(GraphManager manager, Vertex vertex, String label) {
+        Direction toChildren = HIERARCHIES.get(label).opposite();
+        String key = DEPTH_PREFIX + label;
+        Set<Vertex> seen = Sets.newHashSet(vertex);
+        List<Vertex> pending = Lists.newArrayList(vertex);
+        while (!pending.isEmpty()) {
+            Vertex item = pending.remove(pending.size() - 1);
+            if (item.getProperty(key) != null) {
+                manager.removeProperty(item, key);
+            }
+            for (Vertex child : item.getVertices(toChildren, label)) {
+                if (seen.add(child)) {
+                    pending.add(child);
+                }
+            }
+        }
+    }
+}
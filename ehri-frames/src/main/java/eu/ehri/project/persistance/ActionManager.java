@@ -16,6 +16,7 @@ import org.joda.time.format.ISODateTimeFormat;
 
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Graph;
 import com.tinkerpop.frames.FramedGraph;
 
 import eu.ehri.project.core.GraphManager;
@@ -24,6 +25,7 @@ import eu.ehri.project.exceptions.ValidationError;
 import eu.ehri.project.models.EntityClass;
 import eu.ehri.project.models.base.AccessibleEntity;
 import eu.ehri.project.models.base.Actioner;
+import eu.ehri.project.utils.BulkLoadNeo4jGraph;
 
 /**
  * Class for dealing with actions.
@@ -274,6 +276,9 @@ public final class ActionManager {
      * direction <em>direction</em>, insert vertex <em>insert</em> <strong>after</strong>
      * the head of the chain.
      *
+     * A bulk load graph can't remove the existing head edge, so it
+     * defers the insert until it is shut down.
+     *
      * @param head
      * @param newHead
      * @param relation
@@ -281,6 +286,27 @@ public final class ActionManager {
      */
     private void replaceAtHead(Vertex head, Vertex newHead, String headRelation,
             String relation, Direction direction) {
+        if (graph.getBaseGraph() instanceof BulkLoadNeo4jGraph) {
+            ((BulkLoadNeo4jGraph) graph.getBaseGraph()).insertAtHead(head, newHead,
+                    headRelation, relation, direction);
+        } else {
+            replaceAtHead(graph, head, newHead, headRelation, relation, direction);
+        }
+    }
+
+    /**
+     * Insert vertex <em>newHead</em> at the head of a chain in the given
+     * graph.
+     *
+     * @param graph
+     * @param head
+     * @param newHead
+     * @param headRelation
+     * @param relation
+     * @param direction
+     */
+    public static void replaceAtHead(Graph graph, Vertex head, Vertex newHead,
+            String headRelation, String relation, Direction direction) {
         Iterator<Vertex> iter = head.getVertices(direction, headRelation).iterator();
         if (iter.hasNext()) {
             Vertex current = iter.next();
@@ -8,6 +8,7 @@ import java.util.Map;
 
 import com.google.common.collect.*;
 
+import eu.ehri.project.core.IndexPolicy;
 import eu.ehri.project.exceptions.DeserializationError;
 import eu.ehri.project.exceptions.SerializationError;
 import eu.ehri.project.models.EntityClass;
@@ -311,6 +312,16 @@ public final class Bundle {
         return ClassUtils.getPropertyKeys(type.getEntityClass());
     }
 
+    /**
+     * Return a list of names for properties which should be indexed,
+     * according to the index policy of the bundle type.
+     *
+     * @return
+     */
+    public Iterable<String> getIndexedKeys() {
+        return IndexPolicy.getIndexedKeys(type);
+    }
+
     /**
      * Return a list of property keys which must be unique.
      *
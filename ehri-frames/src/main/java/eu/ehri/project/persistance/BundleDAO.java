@@ -25,6 +25,7 @@ import eu.ehri.project.exceptions.SerializationError;
 import eu.ehri.project.exceptions.ValidationError;
 import eu.ehri.project.models.base.PermissionScope;
 import eu.ehri.project.models.utils.ClassUtils;
+import eu.ehri.project.models.utils.HierarchyDepth;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -142,7 +143,9 @@ public final class BundleDAO {
                 }
             }
         }
-        manager.deleteVertex(bundle.getId());
+        Vertex vertex = manager.getVertex(bundle.getId());
+        HierarchyDepth.itemDeleted(manager, vertex);
+        manager.deleteVertex(vertex);
         c += 1;
         return c;
     }
@@ -188,7 +191,7 @@ public final class BundleDAO {
             String id = bundle.getId() != null ? bundle.getId() : idGen
                     .generateId(bundle.getType(), scope, bundle);
             Vertex node = manager.createVertex(id, bundle.getType(),
-                    bundle.getData(), bundle.getPropertyKeys());
+                    bundle.getData(), bundle.getIndexedKeys());
             ListMultimap<String, BundleError> nestedErrors = createDependents(node, bundle.getBundleClass(),
                     bundle.getRelations());
             if (!errors.isEmpty() || hasNestedErrors(nestedErrors)) {
@@ -223,7 +226,7 @@ public final class BundleDAO {
                 ListMultimap<String, String> errors = BundleValidatorFactory
                         .getInstance(manager, bundle).validateForUpdate();
                 node = manager.updateVertex(bundle.getId(), bundle.getType(),
-                        bundle.getData(), bundle.getPropertyKeys());
+                        bundle.getData(), bundle.getIndexedKeys());
                 ListMultimap<String, BundleError> nestedErrors = updateDependents(node, bundle.getBundleClass(),
                         bundle.getRelations());
                 if (!errors.isEmpty() || hasNestedErrors(nestedErrors)) {
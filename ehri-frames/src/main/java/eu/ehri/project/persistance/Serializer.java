@@ -407,7 +407,7 @@ public final class Serializer {
 
         for (String key : keys) {
             if (!(key.equals(EntityType.ID_KEY) || key
-                    .equals(EntityType.TYPE_KEY) || key.startsWith("_")))
+                    .equals(EntityType.TYPE_KEY) || key.startsWith(EntityType.SYSTEM_PREFIX)))
                 data.put(key, item.getProperty(key));
         }
         return data;
@@ -0,0 +1,381 @@
+package eu.ehri.project.utils;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.index.lucene.unsafe.batchinsert.LuceneBatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndex;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.tinkerpop.blueprints.CloseableIterable;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.blueprints.impls.neo4j.batch.Neo4jBatchGraph;
+import com.tinkerpop.blueprints.util.WrappingCloseableIterable;
+import com.tinkerpop.frames.FramedGraphFactory;
+
+import eu.ehri.project.core.GraphManager;
+import eu.ehri.project.core.GraphManagerFactory;
+import eu.ehri.project.core.IndexPolicy;
+import eu.ehri.project.core.impl.GraphReindexer;
+import eu.ehri.project.exceptions.ItemNotFound;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.annotations.EntityType;
+import eu.ehri.project.persistance.ActionManager;
+
+/**
+ * Wraps Neo4jBatchGraph for offline bulk loading of a (shut down)
+ * database, bypassing transactions altogether.
+ *
+ * The item ids and types of existing nodes are read from the item index
+ * up-front and kept in memory along with those of new items, so lookups
+ * don't need the index. Existing items can be referred to but not
+ * changed. Index entries for the items created are deferred
+ * until the graph is shut down, when they are added according to the
+ * {@link IndexPolicy}.
+ *
+ * Edges can't be removed, so inserting an event at the head of a chain
+ * which already has one is deferred until the graph is shut down, when
+ * the database is reopened normally to link it. Until then, event chains
+ * read during the load don't include the deferred events.
+ *
+ * Since nothing can be rolled back, a failed load leaves partial data in
+ * the database. Use only on a copy or a database that can be rebuilt.
+ *
+ * @author mike
+ */
+public class BulkLoadNeo4jGraph extends Neo4jBatchGraph implements TransactionalGraph {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkLoadNeo4jGraph.class);
+
+    // Number of deferred chain inserts linked per transaction.
+    private static final int LINK_COMMIT_SIZE = 1000;
+
+    private final String directory;
+    private final BatchInserterIndex itemIndex;
+
+    private final Map<String, Long> nodeIds = Maps.newHashMap();
+    private final ListMultimap<EntityClass, Long> typeNodeIds = ArrayListMultimap.create();
+    // Nodes created by this load, which need indexing.
+    private final Set<Long> writtenNodeIds = Sets.newLinkedHashSet();
+    private final List<String> createdIds = Lists.newArrayList();
+    // Item node ids by property value, for each property looked up.
+    private final Map<String, ListMultimap<String, Long>> propertyNodeIds = Maps.newHashMap();
+    // Chain inserts to link once the graph is shut down, in order.
+    private final List<ChainInsert> deferredInserts = Lists.newArrayList();
+    private final Set<Long> deferredHeads = Sets.newHashSet();
+
+    private boolean failed = false;
+    private boolean shutdown = false;
+
+    public BulkLoadNeo4jGraph(String directory) {
+        this(directory, BatchInserters.inserter(directory));
+    }
+
+    private BulkLoadNeo4jGraph(String directory, BatchInserter inserter) {
+        this(directory, inserter, new LuceneBatchInserterIndexProvider(inserter));
+    }
+
+    private BulkLoadNeo4jGraph(String directory, BatchInserter inserter,
+            BatchInserterIndexProvider indexProvider) {
+        super(inserter, indexProvider);
+        this.directory = directory;
+        this.itemIndex = indexProvider.nodeIndex(GraphReindexer.INDEX_NAME,
+                MapUtil.stringMap("type", "exact"));
+        loadExistingItems();
+    }
+
+    /**
+     * Get the database directory.
+     *
+     * @return A directory path
+     */
+    public String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the node id for the given item id, or null if there is none.
+     *
+     * @param id
+     * @return A node id, or null
+     */
+    public Long getNodeId(String id) {
+        return nodeIds.get(id);
+    }
+
+    /**
+     * Get the node ids of all items of the given type.
+     *
+     * @param type
+     * @return A list of node ids
+     */
+    public List<Long> getNodeIds(EntityClass type) {
+        return typeNodeIds.get(type);
+    }
+
+    /**
+     * Register a newly created item.
+     *
+     * @param id
+     * @param type
+     * @param nodeId
+     */
+    public void addItem(String id, EntityClass type, long nodeId) {
+        nodeIds.put(id, nodeId);
+        typeNodeIds.put(type, nodeId);
+        writtenNodeIds.add(nodeId);
+        createdIds.add(id);
+        if (!propertyNodeIds.isEmpty()) {
+            Map<String, Object> props = getRawGraph().getNodeProperties(nodeId);
+            for (Map.Entry<String, ListMultimap<String, Long>> entry
+                    : propertyNodeIds.entrySet()) {
+                Object value = props.get(entry.getKey());
+                if (value != null) {
+                    entry.getValue().put(String.valueOf(value), nodeId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the items with the given property value, via the registry
+     * rather than an index. The first lookup of a key reads it from every
+     * item; items created later are added as they are registered, with
+     * the properties they were created with.
+     *
+     * @param key
+     * @param value
+     * @return The matching item vertices
+     */
+    @Override
+    public CloseableIterable<Vertex> getVertices(String key, Object value) {
+        ListMultimap<String, Long> valueNodeIds = propertyNodeIds.get(key);
+        if (valueNodeIds == null) {
+            valueNodeIds = ArrayListMultimap.create();
+            for (Long nodeId : nodeIds.values()) {
+                Object prop = getRawGraph().getNodeProperties(nodeId).get(key);
+                if (prop != null) {
+                    valueNodeIds.put(String.valueOf(prop), nodeId);
+                }
+            }
+            propertyNodeIds.put(key, valueNodeIds);
+        }
+        List<Vertex> vertices = Lists.newArrayList();
+        for (Long nodeId : valueNodeIds.get(String.valueOf(value))) {
+            vertices.add(getVertex(nodeId));
+        }
+        return new WrappingCloseableIterable<Vertex>(vertices);
+    }
+
+    /**
+     * Insert a vertex at the head of a chain, as
+     * {@link ActionManager#replaceAtHead}. If the chain is empty the
+     * vertex is linked straight away, otherwise the insert is deferred
+     * until the graph is shut down.
+     *
+     * @param head
+     * @param newHead
+     * @param headRelation
+     * @param relation
+     * @param direction
+     */
+    public void insertAtHead(Vertex head, Vertex newHead, String headRelation,
+            String relation, Direction direction) {
+        Long headId = (Long) head.getId();
+        if (deferredHeads.contains(headId)
+                || head.getEdges(direction, headRelation).iterator().hasNext()) {
+            deferredHeads.add(headId);
+            deferredInserts.add(new ChainInsert(headId, (Long) newHead.getId(),
+                    headRelation, relation, direction));
+        } else {
+            addEdge(null, head, newHead, headRelation);
+        }
+    }
+
+    /**
+     * Get the ids of the items created by this load.
+     *
+     * @return A list of item ids
+     */
+    public List<String> getCreatedIds() {
+        return createdIds;
+    }
+
+    /**
+     * Determine if anything attempted to roll back the load.
+     *
+     * @return Whether the load failed
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Nothing to commit: the batch inserter writes directly.
+     */
+    public void commit() {
+    }
+
+    /**
+     * A bulk load cannot be rolled back, so this just records that
+     * the load failed.
+     */
+    public void rollback() {
+        logger.error("Rollback requested during a bulk load: "
+                + "changes already written cannot be undone");
+        failed = true;
+    }
+
+    @Deprecated
+    public void stopTransaction(Conclusion conclusion) {
+        if (conclusion == Conclusion.SUCCESS) {
+            commit();
+        } else {
+            rollback();
+        }
+    }
+
+    /**
+     * Write the deferred index entries and shut down the database, then
+     * link the deferred chain inserts.
+     */
+    @Override
+    public void shutdown() {
+        if (shutdown) {
+            return;
+        }
+        shutdown = true;
+        try {
+            indexWrittenItems();
+        } finally {
+            super.shutdown();
+        }
+        linkDeferredInserts();
+    }
+
+    /**
+     * Verify the load by opening the shut down database normally and
+     * checking that each item created by the load can be found via the
+     * item index.
+     *
+     * @return The ids of created items which could not be found
+     */
+    public List<String> verify() {
+        Preconditions.checkState(shutdown, "Bulk load graph must be shut down before verifying");
+        List<String> missing = Lists.newArrayList();
+        Neo4jGraph graph = new Neo4jGraph(directory);
+        try {
+            // Bulk loads only write the single item index.
+            GraphManager manager = GraphManagerFactory.getInstance(
+                    new FramedGraphFactory().create(graph),
+                    GraphManagerFactory.Implementation.SINGLE_INDEX);
+            for (String id : createdIds) {
+                try {
+                    if (!id.equals(manager.getId(manager.getVertex(id)))) {
+                        missing.add(id);
+                    }
+                } catch (ItemNotFound e) {
+                    missing.add(id);
+                }
+            }
+        } finally {
+            graph.shutdown();
+        }
+        logger.info("Verified {} items, {} missing", createdIds.size(), missing.size());
+        return missing;
+    }
+
+    private void loadExistingItems() {
+        IndexHits<Long> hits = itemIndex.query(EntityType.ID_KEY, "*");
+        try {
+            for (Long nodeId : hits) {
+                Map<String, Object> props = getRawGraph().getNodeProperties(nodeId);
+                Object id = props.get(EntityType.ID_KEY);
+                Object type = props.get(EntityType.TYPE_KEY);
+                if (id == null || type == null) {
+                    continue;
+                }
+                nodeIds.put(String.valueOf(id), nodeId);
+                typeNodeIds.put(EntityClass.withName(String.valueOf(type)), nodeId);
+            }
+        } finally {
+            hits.close();
+        }
+        logger.info("Loaded {} existing item ids", nodeIds.size());
+    }
+
+    private void linkDeferredInserts() {
+        if (deferredInserts.isEmpty()) {
+            return;
+        }
+        Neo4jGraph graph = new Neo4jGraph(directory);
+        try {
+            int count = 0;
+            for (ChainInsert insert : deferredInserts) {
+                ActionManager.replaceAtHead(graph, graph.getVertex(insert.headId),
+                        graph.getVertex(insert.newHeadId), insert.headRelation,
+                        insert.relation, insert.direction);
+                if (++count % LINK_COMMIT_SIZE == 0) {
+                    graph.commit();
+                }
+            }
+            graph.commit();
+        } finally {
+            graph.shutdown();
+        }
+        logger.info("Linked {} deferred events", deferredInserts.size());
+    }
+
+    private void indexWrittenItems() {
+        for (Long nodeId : writtenNodeIds) {
+            Map<String, Object> props = getRawGraph().getNodeProperties(nodeId);
+            EntityClass type = EntityClass.withName(
+                    String.valueOf(props.get(EntityType.TYPE_KEY)));
+            Collection<String> keys = IndexPolicy.getIndexedKeys(type);
+            Map<String, Object> entries = Maps.newHashMap();
+            for (String key : keys) {
+                Object value = props.get(key);
+                if (value != null) {
+                    entries.put(key, String.valueOf(value));
+                }
+            }
+            itemIndex.add(nodeId, entries);
+        }
+        itemIndex.flush();
+        logger.info("Indexed {} items", writtenNodeIds.size());
+    }
+
+    private static final class ChainInsert {
+        private final Long headId;
+        private final Long newHeadId;
+        private final String headRelation;
+        private final String relation;
+        private final Direction direction;
+
+        private ChainInsert(Long headId, Long newHeadId, String headRelation,
+                String relation, Direction direction) {
+            this.headId = headId;
+            this.newHeadId = newHeadId;
+            this.headRelation = headRelation;
+            this.relation = relation;
+            this.direction = direction;
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package eu.ehri.project.utils;
 
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import eu.ehri.project.acl.PermissionScopeCache;
+import eu.ehri.project.definitions.Ontology;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
 
 import java.util.Map;
 
@@ -10,6 +16,10 @@ import java.util.Map;
  *
  * Wraps Neo4jGraph and adds an extra method to allow asseting
  * that it should not be in a transaction.
+ *
+ * Changes to permission scope relationships are reported to the
+ * {@link PermissionScopeCache}, so scope chains read earlier in the same
+ * transaction are not reused.
  */
 public class TxCheckedNeo4jGraph extends Neo4jGraph {
     public TxCheckedNeo4jGraph(String directory) {
@@ -38,4 +48,36 @@ public class TxCheckedNeo4jGraph extends Neo4jGraph {
     public boolean isInTransaction() {
         return tx.get() != null;
     }
+
+    /**
+     * Get the current thread's transaction.
+     *
+     * @return The transaction, or null if there is none
+     */
+    public Transaction getTransaction() {
+        return tx.get();
+    }
+
+    @Override
+    public Edge addEdge(Object id, Vertex outVertex, Vertex inVertex, String label) {
+        Edge edge = super.addEdge(id, outVertex, inVertex, label);
+        if (Ontology.HAS_PERMISSION_SCOPE.equals(label)) {
+            PermissionScopeCache.scopeChanged(this, outVertex);
+        }
+        return edge;
+    }
+
+    @Override
+    public void removeEdge(Edge edge) {
+        if (Ontology.HAS_PERMISSION_SCOPE.equals(edge.getLabel())) {
+            PermissionScopeCache.scopeChanged(this, edge.getVertex(Direction.OUT));
+        }
+        super.removeEdge(edge);
+    }
+
+    @Override
+    public void removeVertex(Vertex vertex) {
+        PermissionScopeCache.scopeChanged(this, vertex);
+        super.removeVertex(vertex);
+    }
 }
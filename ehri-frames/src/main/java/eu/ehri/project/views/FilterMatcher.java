@@ -0,0 +1,184 @@
+package eu.ehri.project.views;
+
+import java.util.regex.Pattern;
+
+import eu.ehri.project.views.Query.FilterPredicate;
+
+/**
+ * A filter predicate and value compiled for matching property values.
+ * Regular expressions are compiled, case-insensitive values lowercased
+ * and numeric values parsed once, when the filter is created, rather than
+ * for each value matched.
+ *
+ * Numeric properties are compared numerically with values that parse as
+ * numbers. Other properties are compared as strings, so dates should be
+ * stored in ISO 8601 format to compare correctly.
+ *
+ * @author mike
+ */
+abstract class FilterMatcher {
+
+    /**
+     * Compile a filter.
+     *
+     * @param predicate
+     * @param value
+     * @return A matcher for the filter
+     * @throws java.util.regex.PatternSyntaxException if a MATCHES value is not a
+     *                                                valid regular expression
+     */
+    public static FilterMatcher compile(FilterPredicate predicate, final String value) {
+        switch (predicate) {
+            case EQUALS:
+            case GT:
+            case GTE:
+            case LT:
+            case LTE:
+                return new ComparisonMatcher(predicate, value);
+            case IEQUALS:
+                return new FilterMatcher() {
+                    protected boolean matchesString(String s) {
+                        return s.equalsIgnoreCase(value);
+                    }
+                };
+            case STARTSWITH:
+                return new FilterMatcher() {
+                    protected boolean matchesString(String s) {
+                        return s.startsWith(value);
+                    }
+                };
+            case ENDSWITH:
+                return new FilterMatcher() {
+                    protected boolean matchesString(String s) {
+                        return s.endsWith(value);
+                    }
+                };
+            case CONTAINS:
+                return new FilterMatcher() {
+                    protected boolean matchesString(String s) {
+                        return s.contains(value);
+                    }
+                };
+            case ICONTAINS:
+                final String needle = value.toLowerCase();
+                return new FilterMatcher() {
+                    protected boolean matchesString(String s) {
+                        return s.toLowerCase().contains(needle);
+                    }
+                };
+            case MATCHES:
+                final Pattern pattern = Pattern.compile(value);
+                return new FilterMatcher() {
+                    protected boolean matchesString(String s) {
+                        return pattern.matcher(s).matches();
+                    }
+                };
+            default:
+                throw new RuntimeException("Unexpected filter predicate: "
+                        + predicate);
+        }
+    }
+
+    /**
+     * Determine if a filter value parses as a number, in which case it is
+     * compared numerically with numeric properties.
+     *
+     * @param value
+     * @return Whether the value is numeric
+     */
+    static boolean isNumeric(String value) {
+        return ComparisonMatcher.parseDouble(value) != null;
+    }
+
+    /**
+     * Determine if a property value matches the filter. Missing (null)
+     * values never match.
+     *
+     * @param property
+     * @return
+     */
+    public boolean matches(Object property) {
+        return property != null && matchesString(String.valueOf(property));
+    }
+
+    protected abstract boolean matchesString(String s);
+
+    /**
+     * Matcher for equality and range predicates, which compares numeric
+     * properties as numbers.
+     */
+    private static class ComparisonMatcher extends FilterMatcher {
+        private final FilterPredicate predicate;
+        private final String value;
+        private final Long longValue;
+        private final Double doubleValue;
+
+        ComparisonMatcher(FilterPredicate predicate, String value) {
+            this.predicate = predicate;
+            this.value = value;
+            this.longValue = parseLong(value);
+            this.doubleValue = longValue != null ? Double.valueOf(longValue)
+                    : parseDouble(value);
+        }
+
+        @Override
+        public boolean matches(Object property) {
+            if (property instanceof Number && doubleValue != null) {
+                Number n = (Number) property;
+                return test(longValue != null && isIntegral(n)
+                        ? compare(n.longValue(), longValue)
+                        : Double.compare(n.doubleValue(), doubleValue));
+            }
+            return super.matches(property);
+        }
+
+        @Override
+        protected boolean matchesString(String s) {
+            return predicate == FilterPredicate.EQUALS
+                    ? s.equals(value) : test(s.compareTo(value));
+        }
+
+        private boolean test(int cmp) {
+            switch (predicate) {
+                case EQUALS:
+                    return cmp == 0;
+                case GT:
+                    return cmp > 0;
+                case GTE:
+                    return cmp >= 0;
+                case LT:
+                    return cmp < 0;
+                case LTE:
+                    return cmp <= 0;
+                default:
+                    throw new RuntimeException("Unexpected filter predicate: "
+                            + predicate);
+            }
+        }
+
+        private static int compare(long a, long b) {
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+
+        private static boolean isIntegral(Number n) {
+            return n instanceof Long || n instanceof Integer
+                    || n instanceof Short || n instanceof Byte;
+        }
+
+        private static Long parseLong(String value) {
+            try {
+                return Long.valueOf(value.trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static Double parseDouble(String value) {
+            try {
+                return Double.valueOf(value.trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -4,8 +4,12 @@ import java.util.*;
 import java.util.Map.Entry;
 
 import com.google.common.collect.*;
+import com.google.common.io.BaseEncoding;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
 import com.tinkerpop.blueprints.CloseableIterable;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Vertex;
@@ -16,20 +20,33 @@ import com.tinkerpop.pipes.util.structures.Pair;
 
 import eu.ehri.project.exceptions.AccessDenied;
 import eu.ehri.project.models.base.Frame;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import eu.ehri.project.acl.AccessorClosureCache;
 import eu.ehri.project.acl.AclManager;
 import eu.ehri.project.acl.SystemScope;
 import eu.ehri.project.core.GraphManager;
 import eu.ehri.project.core.GraphManagerFactory;
+import eu.ehri.project.core.IndexPolicy;
+import eu.ehri.project.exceptions.InvalidCursor;
 import eu.ehri.project.exceptions.ItemNotFound;
 import eu.ehri.project.exceptions.PermissionDenied;
 import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.annotations.EntityType;
 import eu.ehri.project.models.base.AccessibleEntity;
 import eu.ehri.project.models.base.Accessor;
 import eu.ehri.project.models.base.PermissionScope;
 import eu.ehri.project.models.utils.ClassUtils;
+import eu.ehri.project.models.utils.HierarchyDepth;
+import eu.ehri.project.utils.TxCheckedNeo4jGraph;
 
 /**
  * Handles querying Accessible Entities, with ACL semantics.
@@ -51,9 +68,12 @@ public final class Query<E extends AccessibleEntity> {
     private final SortedMap<QueryUtils.TraversalPath, Sort> traversalSort;
     private final Optional<Pair<String, Sort>> defaultSort;
     private final SortedMap<String, Pair<FilterPredicate, String>> filters;
+    private final ImmutableMap<String, FilterMatcher> filterMatchers;
     private final ImmutableMap<Pair<String, Direction>, Integer> depthFilters;
-    private final List<GremlinPipeline<Vertex, Vertex>> traversalFilters;
+    private final List<TraversalFilter> traversalFilters;
     private final boolean page;
+    private final Optional<String> cursor;
+    private final Optional<QueryProfile> profile;
 
     private final FramedGraph<?> graph;
     private final GraphManager manager;
@@ -88,6 +108,8 @@ public final class Query<E extends AccessibleEntity> {
      * @param sort
      * @param traversalFilters
      * @param page
+     * @param cursor
+     * @param profile
      */
     private Query(FramedGraph<?> graph, Class<E> cls,
             PermissionScope scope, Optional<Integer> offset,
@@ -96,8 +118,8 @@ public final class Query<E extends AccessibleEntity> {
             final Optional<Pair<String, Sort>> defSort,
             final SortedMap<String, Pair<FilterPredicate, String>> filters,
             final Map<Pair<String, Direction>, Integer> depthFilters,
-            final List<GremlinPipeline<Vertex, Vertex>> traversalFilters,
-            Boolean page) {
+            final List<TraversalFilter> traversalFilters,
+            Boolean page, Optional<String> cursor, Optional<QueryProfile> profile) {
         this.graph = graph;
         this.cls = cls;
         this.scope = scope;
@@ -108,9 +130,12 @@ public final class Query<E extends AccessibleEntity> {
         this.defaultSort = defSort;
         this.filters = ImmutableSortedMap
                 .copyOf(filters);
+        this.filterMatchers = compileFilters(this.filters);
         this.depthFilters = ImmutableMap.copyOf(depthFilters);
         this.traversalFilters = ImmutableList.copyOf(traversalFilters);
         this.page = page;
+        this.cursor = cursor;
+        this.profile = profile;
         helper = new ViewHelper(graph, scope);
         manager = GraphManagerFactory.getInstance(graph);
     }
@@ -129,8 +154,8 @@ public final class Query<E extends AccessibleEntity> {
                 .<Pair<String, Sort>>absent(), ImmutableSortedMap
                 .<String, Pair<FilterPredicate, String>>of(), Maps
                 .<Pair<String, Direction>, Integer>newHashMap(),
-                ImmutableList.<GremlinPipeline<Vertex, Vertex>>of(),
-                false);
+                ImmutableList.<TraversalFilter>of(),
+                false, Optional.<String>absent(), Optional.<QueryProfile>absent());
     }
 
     /**
@@ -141,7 +166,8 @@ public final class Query<E extends AccessibleEntity> {
     public Query<E> copy(Query<E> other) {
         return new Query<E>(other.graph, other.cls, other.scope, other.offset,
                 other.limit, other.sort, other.traversalSort, other.defaultSort, other.filters,
-                other.depthFilters, other.traversalFilters, other.page);
+                other.depthFilters, other.traversalFilters, other.page,
+                other.cursor, other.profile);
     }
 
 
@@ -156,14 +182,21 @@ public final class Query<E extends AccessibleEntity> {
         private final Integer offset;
         private final Integer limit;
         private final Map<String, Sort> sort;
+        private final String nextCursor;
 
         Page(Iterable<T> iterable, long count, Integer offset, Integer limit,
                 Map<String, Sort> sort) {
+            this(iterable, count, offset, limit, sort, null);
+        }
+
+        Page(Iterable<T> iterable, long count, Integer offset, Integer limit,
+                Map<String, Sort> sort, String nextCursor) {
             this.iterable = iterable;
             this.count = count;
             this.offset = offset;
             this.limit = limit;
             this.sort = sort;
+            this.nextCursor = nextCursor;
         }
 
         public Iterable<T> getIterable() {
@@ -185,6 +218,16 @@ public final class Query<E extends AccessibleEntity> {
         public Map<String, Sort> getSort() {
             return sort;
         }
+
+        /**
+         * Get the cursor from which to fetch the next page of a cursor
+         * query, or null if this is the last page.
+         *
+         * @return An opaque cursor string, or null
+         */
+        public String getNextCursor() {
+            return nextCursor;
+        }
     }
 
     /**
@@ -280,8 +323,38 @@ public final class Query<E extends AccessibleEntity> {
      * @param user
      * @return Page instance
      */
-    public Page<E> page(EntityClass type, Accessor user) {
-        return page(manager.getFrames(type, cls), user);
+    public Page<E> page(final EntityClass type, final Accessor user) {
+        Optional<QueryCache> cache = getCache();
+        if (!cache.isPresent()) {
+            return computePage(type, user);
+        }
+        QueryCache.Result result = cache.get().get(getCacheSpec("page", type, user),
+                new Supplier<QueryCache.Result>() {
+                    public QueryCache.Result get() {
+                        Page<E> page = computePage(type, user);
+                        return new QueryCache.Result(
+                                new FramedVertexIterableAdaptor<E>(page.getIterable()),
+                                page.getCount(), page.getNextCursor());
+                    }
+                });
+        return new Page<E>(graph.frameVertices(result.getVertices(graph), cls),
+                result.getCount(), offset.or(0), limit.or(DEFAULT_LIST_LIMIT), sort,
+                result.getNextCursor());
+    }
+
+    private Page<E> computePage(EntityClass type, Accessor user) {
+        if (cursor.isPresent()) {
+            // The items after the cursor are fetched from the index in
+            // cursor order.
+            Pair<Iterable<Vertex>, Query<E>> plan = planCursorQuery(type);
+            Query<E> rest = plan.getB();
+            PipeFunction<Vertex, Boolean> aclFilterFunction = new AclManager(graph)
+                    .getAclFilterFunction(user);
+            return rest.makeCursorPage(rest.applyFilters(
+                    rest.filterAccessible(plan.getA(), aclFilterFunction)), cls);
+        }
+        Pair<Iterable<Vertex>, Query<E>> plan = planTypeQuery(type);
+        return plan.getB().page(graph.frameVertices(plan.getA(), cls), user);
     }
 
     /**
@@ -309,18 +382,8 @@ public final class Query<E extends AccessibleEntity> {
             Accessor user, Class<T> cls) {
         PipeFunction<Vertex, Boolean> aclFilterFunction = new AclManager(graph)
                 .getAclFilterFunction(user);
-
-        // FIXME: We have to read the vertices into memory here since we
-        // can't re-use the iterator for counting and streaming.
-        ArrayList<Vertex> userVerts = Lists.newArrayList(applyFilters(
-                new GremlinPipeline<E, Vertex>(
-                        new FramedVertexIterableAdaptor<T>(vertices))
-                        .filter(aclFilterFunction)).iterator());
-
-        return new Page<T>(graph.frameVertices(
-                setPipelineRange(setOrder(applyFilters(new GremlinPipeline<Vertex, Vertex>(
-                        userVerts)))), cls), userVerts.size(), offset.or(0),
-                limit.or(DEFAULT_LIST_LIMIT), sort);
+        return makePage(applyFilters(filterAccessible(
+                new FramedVertexIterableAdaptor<T>(vertices), aclFilterFunction)), cls);
     }
 
     /**
@@ -333,30 +396,77 @@ public final class Query<E extends AccessibleEntity> {
      * @return Page instance
      */
     public Page<E> page(String key, String query, Accessor user) {
-        CloseableIterable<Vertex> countQ = manager.getVertices(key, query,
-                ClassUtils.getEntityType(cls));
+        CloseableIterable<Vertex> indexQ = manager.getVertices(key,
+                query, ClassUtils.getEntityType(cls));
         try {
-            CloseableIterable<Vertex> indexQ = manager.getVertices(key,
-                    query, ClassUtils.getEntityType(cls));
-            try {
-                PipeFunction<Vertex, Boolean> aclFilterFunction = new AclManager(
-                        graph).getAclFilterFunction(user);
-                long count = applyFilters(new GremlinPipeline<Vertex, Vertex>(
-                        countQ).filter(aclFilterFunction)).count();
-                return new Page<E>(
-                        graph.frameVertices(
-                                setPipelineRange(setOrder(applyFilters(new GremlinPipeline<Vertex, Vertex>(
-                                        indexQ).filter(aclFilterFunction)))),
-                                cls), count, offset.or(0),
-                        limit.or(DEFAULT_LIST_LIMIT), sort);
-            } finally {
-                indexQ.close();
-            }
+            PipeFunction<Vertex, Boolean> aclFilterFunction = new AclManager(
+                    graph).getAclFilterFunction(user);
+            return makePage(applyFilters(filterAccessible(indexQ,
+                    aclFilterFunction)), cls);
         } finally {
-            countQ.close();
+            indexQ.close();
         }
     }
 
+    /**
+     * Build a Page from the filtered vertices, reading them in a single
+     * pass. With a limit only the offset/limit window is kept, so memory
+     * does not grow with the number of items counted.
+     *
+     * @param vertices
+     * @param cls
+     * @return Page instance
+     */
+    private <T extends Frame> Page<T> makePage(Iterator<Vertex> vertices, Class<T> cls) {
+        if (cursor.isPresent()) {
+            // Finding the items after a cursor would mean reading all the
+            // items again for every page.
+            throw new InvalidCursor("Cursors can only be used to page all items of a type");
+        }
+        List<Vertex> window;
+        long count;
+        if (limit.or(-1) > 0) {
+            window = Lists.newArrayList();
+            count = selectWindow(vertices, window);
+        } else {
+            // Everything is returned, so everything has to be kept.
+            List<Vertex> all = isSorted() ? sortVertices(vertices)
+                    : Lists.newArrayList(vertices);
+            window = selectRange(all);
+            count = all.size();
+        }
+        return new Page<T>(graph.frameVertices(window, cls), count,
+                offset.or(0), limit.or(DEFAULT_LIST_LIMIT), sort);
+    }
+
+    /**
+     * Build a Page of a cursor query from the filtered vertices, which
+     * are in cursor order and follow the cursor. The page holds the limit
+     * items which follow the offset, and the cursor of its last item.
+     * Cursor pages are not counted, so their count is -1.
+     *
+     * @param vertices
+     * @param cls
+     * @return Page instance
+     * @throws InvalidCursor if a sort key has a non-string value
+     */
+    private <T extends Frame> Page<T> makeCursorPage(Iterator<Vertex> vertices,
+            Class<T> cls) {
+        int low = Math.max(offset.or(0), 0);
+        int high = low + Math.max(limit.or(-1), 0);
+        long mark = startStage();
+        int skipped = Iterators.advance(vertices, low);
+        List<Vertex> window = Lists.newArrayList(high > low
+                ? Iterators.limit(vertices, high - low) : vertices);
+        boolean more = vertices.hasNext();
+        recordStage(QueryProfile.RANGE, mark, skipped + window.size(), window.size());
+        String next = more && !window.isEmpty()
+                ? encodeCursor(getCursorKeys(window.get(window.size() - 1)))
+                : null;
+        return new Page<T>(graph.frameVertices(window, cls), -1L, offset.or(0),
+                limit.or(DEFAULT_LIST_LIMIT), sort, next);
+    }
+
     /**
      * Apply filtering actions to a Gremlin pipeline.
      *
@@ -367,6 +477,39 @@ public final class Query<E extends AccessibleEntity> {
         return setFilters(setDepthFilters(setTraversalFilters(pipe)));
     }
 
+    /**
+     * Start a Gremlin pipeline reading the given vertices and dropping
+     * those which are not accessible.
+     *
+     * @param vertices
+     * @param aclFilterFunction
+     * @return
+     */
+    private GremlinPipeline<Vertex, Vertex> filterAccessible(Iterable<Vertex> vertices,
+            PipeFunction<Vertex, Boolean> aclFilterFunction) {
+        return new GremlinPipeline<Vertex, Vertex>(profileSource(vertices))
+                .filter(profileFilter(QueryProfile.ACL, aclFilterFunction));
+    }
+
+    private <T> Iterable<T> profileSource(Iterable<T> items) {
+        return profile.isPresent() ? profile.get().source(QueryProfile.SOURCE, items) : items;
+    }
+
+    private PipeFunction<Vertex, Boolean> profileFilter(String stage,
+            PipeFunction<Vertex, Boolean> function) {
+        return profile.isPresent() ? profile.get().filter(stage, function) : function;
+    }
+
+    private long startStage() {
+        return profile.isPresent() ? profile.get().start() : 0L;
+    }
+
+    private void recordStage(String stage, long mark, long in, long out) {
+        if (profile.isPresent()) {
+            profile.get().record(stage, mark, in, out);
+        }
+    }
+
     /**
      * Return an iterable for all items accessible to the user.
      *
@@ -397,12 +540,11 @@ public final class Query<E extends AccessibleEntity> {
         CloseableIterable<Vertex> vertices = manager.getVertices(key,
                 query, ClassUtils.getEntityType(cls));
         try {
-            GremlinPipeline<E, Vertex> filter = new GremlinPipeline<E, Vertex>(
-                    vertices).filter(new AclManager(graph)
-                    .getAclFilterFunction(user));
+            GremlinPipeline<Vertex, Vertex> filter = filterAccessible(vertices,
+                    new AclManager(graph).getAclFilterFunction(user));
             return graph
                     .frameVertices(
-                            setPipelineRange(setOrder(applyFilters(filter))),
+                            setOrderAndRange(applyFilters(filter)),
                             cls);
         } finally {
             vertices.close();
@@ -429,12 +571,12 @@ public final class Query<E extends AccessibleEntity> {
      */
     public <T extends Frame> Iterable<T> list(Iterable<T> vertices,
             Accessor user, Class<T> cls) {
-        GremlinPipeline<T, Vertex> filter = new GremlinPipeline<T, Vertex>(
-                new FramedVertexIterableAdaptor<T>(vertices))
-                .filter(new AclManager(graph).getAclFilterFunction(user));
+        GremlinPipeline<Vertex, Vertex> filter = filterAccessible(
+                new FramedVertexIterableAdaptor<T>(vertices),
+                new AclManager(graph).getAclFilterFunction(user));
         return graph
                 .frameVertices(
-                        setPipelineRange(setOrder(applyFilters(filter))),
+                        setOrderAndRange(applyFilters(filter)),
                         cls);
     }
 
@@ -446,10 +588,19 @@ public final class Query<E extends AccessibleEntity> {
      * @return Long count of items accessible to the given accessor
      */
     public <T> Long count(Iterable<T> vertices, Accessor user) {
-        GremlinPipeline<T, Vertex> filter = new GremlinPipeline<T, Vertex>(vertices);
-
-        // FIXME! Count doesn't 'account' for ACL privileges!
-                //.filter(new AclManager(graph).getAclFilterFunction(user));
+        // The restricted items hidden from the user are collected first,
+        // so the rest can be counted without reading their access edges.
+        final Set<Vertex> hidden = new AclManager(graph).getInaccessibleItems(user);
+        GremlinPipeline<Vertex, Vertex> filter = new GremlinPipeline<Vertex, Vertex>(
+                profileSource(asVertices(vertices)));
+        if (!hidden.isEmpty()) {
+            filter = filter.filter(profileFilter(QueryProfile.ACL,
+                    new PipeFunction<Vertex, Boolean>() {
+                        public Boolean compute(Vertex vertex) {
+                            return !hidden.contains(vertex);
+                        }
+                    }));
+        }
         return applyFilters(filter).count();
     }
 
@@ -459,8 +610,25 @@ public final class Query<E extends AccessibleEntity> {
      * @param user
      * @return Iterable of framed vertices accessible to the given user
      */
-    public Iterable<E> list(EntityClass type, Accessor user) {
-        return list(manager.getFrames(type, cls), user);
+    public Iterable<E> list(final EntityClass type, final Accessor user) {
+        Optional<QueryCache> cache = getCache();
+        // Unlimited lists are not cached, since they may be very large.
+        if (!cache.isPresent() || limit.or(-1) <= 0) {
+            return computeList(type, user);
+        }
+        QueryCache.Result result = cache.get().get(getCacheSpec("list", type, user),
+                new Supplier<QueryCache.Result>() {
+                    public QueryCache.Result get() {
+                        return new QueryCache.Result(new FramedVertexIterableAdaptor<E>(
+                                computeList(type, user)), -1L, null);
+                    }
+                });
+        return graph.frameVertices(result.getVertices(graph), cls);
+    }
+
+    private Iterable<E> computeList(EntityClass type, Accessor user) {
+        Pair<Iterable<Vertex>, Query<E>> plan = planTypeQuery(type);
+        return plan.getB().list(graph.frameVertices(plan.getA(), cls), user);
     }
 
     /**
@@ -469,8 +637,74 @@ public final class Query<E extends AccessibleEntity> {
      * @param user
      * @return Iterable of framed vertices accessible to the given user
      */
-    public Long count(EntityClass type, Accessor user) {
-        return count(manager.getVertices(type), user);
+    public Long count(final EntityClass type, final Accessor user) {
+        Optional<QueryCache> cache = getCache();
+        if (!cache.isPresent()) {
+            return computeCount(type, user);
+        }
+        return cache.get().get(getCacheSpec("count", type, user),
+                new Supplier<QueryCache.Result>() {
+                    public QueryCache.Result get() {
+                        return new QueryCache.Result(ImmutableList.<Vertex>of(),
+                                computeCount(type, user), null);
+                    }
+                }).getCount();
+    }
+
+    private Long computeCount(EntityClass type, Accessor user) {
+        // Without filters we can use the manager's per-type counters,
+        // less the items of the type hidden from the user.
+        if (filters.isEmpty() && depthFilters.isEmpty()
+                && traversalFilters.isEmpty()) {
+            long mark = startStage();
+            long total = manager.countVertices(type);
+            recordStage(QueryProfile.SOURCE, mark, total, total);
+            mark = startStage();
+            long hidden = 0L;
+            for (Vertex vertex : new AclManager(graph).getInaccessibleItems(user)) {
+                if (type.equals(manager.getEntityClass(vertex))) {
+                    hidden++;
+                }
+            }
+            recordStage(QueryProfile.ACL, mark, total, total - hidden);
+            return total - hidden;
+        }
+        Pair<Iterable<Vertex>, Query<E>> plan = planTypeQuery(type);
+        return plan.getB().count(plan.getA(), user);
+    }
+
+    /**
+     * Get the shared result cache, if results can be cached. Results are
+     * only cached outside transactions, since otherwise they might include
+     * uncommitted changes, and profiled queries are always executed.
+     *
+     * @return The cache, or absent
+     */
+    private Optional<QueryCache> getCache() {
+        if (!profile.isPresent() && graph.getBaseGraph() instanceof TxCheckedNeo4jGraph) {
+            TxCheckedNeo4jGraph baseGraph = (TxCheckedNeo4jGraph) graph.getBaseGraph();
+            if (!baseGraph.isInTransaction()) {
+                return Optional.of(QueryCache.forDatabase(baseGraph.getRawGraph()));
+            }
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Get a normalised specification of this query, for caching its
+     * results. Since item visibility depends on the accessor and its
+     * groups, these are included, as the accessor's closure.
+     *
+     * @param method
+     * @param type
+     * @param user
+     * @return A list of the query's parameters
+     */
+    private List<Object> getCacheSpec(String method, EntityClass type, Accessor user) {
+        return Lists.<Object>newArrayList(method, type, cls.getName(), scope.getId(),
+                offset, limit, sort, traversalSort.toString(), defaultSort.toString(),
+                filters.toString(), depthFilters.toString(), traversalFilters.toString(),
+                cursor, user.getId(), AccessorClosureCache.getClosure(graph, user).getIds());
     }
 
     /**
@@ -480,7 +714,7 @@ public final class Query<E extends AccessibleEntity> {
      */
     public Query<E> setOffset(Integer offset) {
         return new Query<E>(graph, cls, scope, Optional.fromNullable(offset),
-                limit, sort, traversalSort, defaultSort, filters, depthFilters, traversalFilters, page);
+                limit, sort, traversalSort, defaultSort, filters, depthFilters, traversalFilters, page, cursor, profile);
     }
 
     /**
@@ -491,7 +725,37 @@ public final class Query<E extends AccessibleEntity> {
     public Query<E> setLimit(Integer limit) {
         return new Query<E>(graph, cls, scope, offset,
                 Optional.fromNullable(limit), sort, traversalSort, defaultSort, filters,
-                depthFilters, traversalFilters, page);
+                depthFilters, traversalFilters, page, cursor, profile);
+    }
+
+    /**
+     * Fetch the page following the given cursor, as returned by
+     * {@link Page#getNextCursor()}, rather than skipping offset items.
+     * An empty cursor fetches the first page. Cursor queries are ordered
+     * by item id, or by one property indexed for the type and then by
+     * item id; the default order is not used. Cursors can only be used
+     * to page all the items of a type, and not with traversal orders.
+     *
+     * @param cursor
+     */
+    public Query<E> setCursor(String cursor) {
+        return new Query<E>(graph, cls, scope, offset, limit, sort, traversalSort,
+                defaultSort, filters, depthFilters, traversalFilters, page,
+                Optional.fromNullable(cursor), profile);
+    }
+
+    /**
+     * Profile this query's executions, recording the items passing
+     * through and the time spent in each stage of the query pipeline
+     * in the given profile. Profiled queries are not cached and their
+     * results are read eagerly.
+     *
+     * @param profile
+     */
+    public Query<E> setProfile(QueryProfile profile) {
+        return new Query<E>(graph, cls, scope, offset, limit, sort, traversalSort,
+                defaultSort, filters, depthFilters, traversalFilters, page, cursor,
+                Optional.fromNullable(profile));
     }
 
     /**
@@ -504,7 +768,7 @@ public final class Query<E extends AccessibleEntity> {
 
         return new Query<E>(graph, cls, scope, offset, limit, sort, traversalSort,
                 Optional.of(new Pair<String, Sort>(field, order)), filters,
-                depthFilters, traversalFilters, page);
+                depthFilters, traversalFilters, page, cursor, profile);
     }
 
     /**
@@ -517,7 +781,7 @@ public final class Query<E extends AccessibleEntity> {
         SortedMap<String, Sort> tmp = new ImmutableSortedMap.Builder<String, Sort>(
                 Ordering.natural()).putAll(sort).put(field, order).build();
         return new Query<E>(graph, cls, scope, offset, limit, tmp, traversalSort, defaultSort,
-                filters, depthFilters, traversalFilters, page);
+                filters, depthFilters, traversalFilters, page, cursor, profile);
     }
 
     public Query<E> orderByTraversal(QueryUtils.TraversalPath tp, Sort order) {
@@ -525,7 +789,7 @@ public final class Query<E extends AccessibleEntity> {
                 Ordering.arbitrary()).putAll(traversalSort);
         tmp.put(tp, order);
         return new Query<E>(graph, cls, scope, offset, limit, sort, tmp.build(), defaultSort,
-                filters, depthFilters, traversalFilters, page);
+                filters, depthFilters, traversalFilters, page, cursor, profile);
     }
 
 
@@ -566,7 +830,7 @@ public final class Query<E extends AccessibleEntity> {
                 traversalSort,
                 defaultSort,
                 ImmutableSortedMap.<String, Pair<FilterPredicate, String>>of(),
-                depthFilters, traversalFilters, page);
+                depthFilters, traversalFilters, page, cursor, profile);
     }
 
     /**
@@ -581,7 +845,7 @@ public final class Query<E extends AccessibleEntity> {
         Map<Pair<String, Direction>, Integer> tmp = Maps.newHashMap(depthFilters);
         tmp.put(new Pair<String, Direction>(label, direction), depth);
         return new Query<E>(graph, cls, scope, offset, limit, sort,
-                traversalSort, defaultSort, filters, tmp, traversalFilters, page);
+                traversalSort, defaultSort, filters, tmp, traversalFilters, page, cursor, profile);
     }
 
     /**
@@ -605,7 +869,7 @@ public final class Query<E extends AccessibleEntity> {
         builder.put(property, new Pair<FilterPredicate, String>(predicate, value));
         
         return new Query<E>(graph, cls, scope, offset, limit, sort,
-                traversalSort, defaultSort, builder.build(), depthFilters, traversalFilters, page);
+                traversalSort, defaultSort, builder.build(), depthFilters, traversalFilters, page, cursor, profile);
     }
 
     /**
@@ -618,10 +882,10 @@ public final class Query<E extends AccessibleEntity> {
      */
     public Query<E> filterTraversal(QueryUtils.TraversalPath path, FilterPredicate predicate,
             String value) {
-        ArrayList<GremlinPipeline<Vertex, Vertex>> tmp = Lists.newArrayList(traversalFilters);
-        tmp.add(getFilterTraversalPipeline(path, new Pair<FilterPredicate, String>(predicate, value)));
+        List<TraversalFilter> tmp = Lists.newArrayList(traversalFilters);
+        tmp.add(new TraversalFilter(cls, path, predicate, value));
         return new Query<E>(graph, cls, scope, offset, limit, sort,
-                traversalSort, defaultSort, filters, depthFilters, tmp, page);
+                traversalSort, defaultSort, filters, depthFilters, tmp, page, cursor, profile);
     }
 
     /**
@@ -655,6 +919,347 @@ public final class Query<E extends AccessibleEntity> {
 
     // Helpers
 
+    /**
+     * Get the vertices of a set of items which may be either vertices
+     * or frames.
+     *
+     * @param items
+     * @return
+     */
+    private static <T> Iterable<Vertex> asVertices(Iterable<T> items) {
+        return Iterables.transform(items, new Function<T, Vertex>() {
+            public Vertex apply(T item) {
+                return item instanceof Frame ? ((Frame) item).asVertex() : (Vertex) item;
+            }
+        });
+    }
+
+    /**
+     * Get the vertices of the given type, answering as many property
+     * filters as possible with a query on the item index rather than
+     * by scanning every item of the type.
+     *
+     * @param type
+     * @return The vertices, and a copy of this query holding only the
+     *         filters they still need to be checked against
+     */
+    private Pair<Iterable<Vertex>, Query<E>> planTypeQuery(EntityClass type) {
+        Optional<Pair<Iterable<Vertex>, Query<E>>> plan = planIndexQuery(type);
+        return plan.isPresent() ? plan.get()
+                : new Pair<Iterable<Vertex>, Query<E>>(manager.getVertices(type), this);
+    }
+
+    /**
+     * Build an index query for the items of the given type from the
+     * indexable property filters.
+     *
+     * @param type
+     * @return The vertices and a copy of this query holding the remaining
+     *         filters, or absent if the index cannot be used
+     */
+    private Optional<Pair<Iterable<Vertex>, Query<E>>> planIndexQuery(EntityClass type) {
+        SortedMap<String, Pair<FilterPredicate, String>> remaining = Maps.newTreeMap();
+        BooleanQuery indexQuery = getFilterQuery(type, remaining);
+        if (!indexQuery.clauses().isEmpty()) {
+            Optional<CloseableIterable<Vertex>> hits = manager.queryVertices(type,
+                    indexQuery, null);
+            if (hits.isPresent()) {
+                logger.debug("Index query for {}: {}", type, indexQuery);
+                return Optional.of(new Pair<Iterable<Vertex>, Query<E>>(hits.get(),
+                        withFilters(remaining)));
+            }
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Build index queries for the items of the given type which follow
+     * the cursor, in cursor order, so each page only reads its own items
+     * and those dropped by filters the index cannot answer.
+     *
+     * Cursor queries can be ordered by item id alone, or by a single
+     * property which the index policy indexes for the type, and then by
+     * id. Items without the property come last, or first if the order is
+     * descending, as for ordinary sorts.
+     *
+     * @param type
+     * @return The vertices and a copy of this query holding the remaining
+     *         filters
+     * @throws InvalidCursor if the cursor, the query order, or the graph's
+     *         index cannot be used for a cursor query
+     */
+    private Pair<Iterable<Vertex>, Query<E>> planCursorQuery(final EntityClass type) {
+        if (!traversalSort.isEmpty()) {
+            throw new InvalidCursor("Cursors cannot be used with traversal ordering");
+        }
+        if (sort.size() > 1) {
+            throw new InvalidCursor("Cursors can only be used to order by one property");
+        }
+        SortedMap<String, Pair<FilterPredicate, String>> remaining = Maps.newTreeMap();
+        BooleanQuery filterQuery = getFilterQuery(type, remaining);
+        List<String> from = cursor.get().isEmpty() ? null : decodeCursor(cursor.get());
+        String fromId = from == null ? null : Iterables.getLast(from);
+        SortField idSort = new SortField(EntityType.ID_KEY, SortField.STRING);
+
+        List<Pair<BooleanQuery, org.apache.lucene.search.Sort>> segments = Lists.newArrayList();
+        if (sort.isEmpty()) {
+            segments.add(new Pair<BooleanQuery, org.apache.lucene.search.Sort>(
+                    afterId(filterQuery, fromId), new org.apache.lucene.search.Sort(idSort)));
+        } else {
+            String key = sort.firstKey();
+            if (!IndexPolicy.isIndexed(type, key)) {
+                throw new InvalidCursor("Cursors can only be used to order by"
+                        + " indexed properties: " + key);
+            }
+            boolean desc = sort.get(key) == Sort.DESC;
+            String fromKey = from == null ? null : from.get(0);
+            TermRangeQuery anyValue = new TermRangeQuery(key, null, null, true, true);
+
+            // The items with the property, in its order and then by id...
+            BooleanQuery present = copyQuery(filterQuery);
+            if (fromKey == null) {
+                present.add(anyValue, BooleanClause.Occur.MUST);
+            } else {
+                BooleanQuery after = new BooleanQuery();
+                after.add(desc ? new TermRangeQuery(key, null, fromKey, true, false)
+                        : new TermRangeQuery(key, fromKey, null, false, true),
+                        BooleanClause.Occur.SHOULD);
+                BooleanQuery tied = new BooleanQuery();
+                tied.add(new TermQuery(new Term(key, fromKey)), BooleanClause.Occur.MUST);
+                tied.add(new TermRangeQuery(EntityType.ID_KEY, fromId, null, false, true),
+                        BooleanClause.Occur.MUST);
+                after.add(tied, BooleanClause.Occur.SHOULD);
+                present.add(after, BooleanClause.Occur.MUST);
+            }
+            Pair<BooleanQuery, org.apache.lucene.search.Sort> presentSegment
+                    = new Pair<BooleanQuery, org.apache.lucene.search.Sort>(present,
+                    new org.apache.lucene.search.Sort(
+                            new SortField(key, SortField.STRING, desc), idSort));
+
+            // ...and those without it, by id.
+            BooleanQuery missing = afterId(filterQuery, fromKey == null ? fromId : null);
+            missing.add(anyValue, BooleanClause.Occur.MUST_NOT);
+            Pair<BooleanQuery, org.apache.lucene.search.Sort> missingSegment
+                    = new Pair<BooleanQuery, org.apache.lucene.search.Sort>(missing,
+                    new org.apache.lucene.search.Sort(idSort));
+
+            // Skip whichever group is wholly before the cursor.
+            boolean inMissing = from != null && fromKey == null;
+            boolean inPresent = fromKey != null;
+            if (desc) {
+                if (!inPresent) {
+                    segments.add(missingSegment);
+                }
+                segments.add(presentSegment);
+            } else {
+                if (!inMissing) {
+                    segments.add(presentSegment);
+                }
+                segments.add(missingSegment);
+            }
+        }
+
+        // Later segments are only queried once the earlier ones are used up.
+        Iterable<Vertex> hits = Iterables.concat(Iterables.transform(segments,
+                new Function<Pair<BooleanQuery, org.apache.lucene.search.Sort>,
+                        Iterable<Vertex>>() {
+                    public Iterable<Vertex> apply(
+                            Pair<BooleanQuery, org.apache.lucene.search.Sort> segment) {
+                        Optional<CloseableIterable<Vertex>> segmentHits = manager
+                                .queryVertices(type, segment.getA(), segment.getB());
+                        if (!segmentHits.isPresent()) {
+                            throw new InvalidCursor(
+                                    "Cursors cannot be used without an index query");
+                        }
+                        logger.debug("Cursor index query for {}: {}", type, segment.getA());
+                        return segmentHits.get();
+                    }
+                }));
+        return new Pair<Iterable<Vertex>, Query<E>>(hits, withFilters(remaining));
+    }
+
+    /**
+     * Build an index query from the indexable property filters, adding
+     * those the index cannot answer to the given map.
+     *
+     * @param type
+     * @param remaining
+     * @return
+     */
+    private BooleanQuery getFilterQuery(EntityClass type,
+            SortedMap<String, Pair<FilterPredicate, String>> remaining) {
+        BooleanQuery indexQuery = new BooleanQuery();
+        for (Entry<String, Pair<FilterPredicate, String>> filter : filters.entrySet()) {
+            Optional<BooleanClause> clause = getIndexClause(type, filter.getKey(),
+                    filter.getValue());
+            if (clause.isPresent()) {
+                indexQuery.add(clause.get());
+            } else {
+                remaining.put(filter.getKey(), filter.getValue());
+            }
+        }
+        return indexQuery;
+    }
+
+    /**
+     * Copy an index query, adding a clause which selects the items whose
+     * ids follow the given id, or all items if it is null.
+     *
+     * @param query
+     * @param fromId
+     * @return
+     */
+    private static BooleanQuery afterId(BooleanQuery query, String fromId) {
+        BooleanQuery after = copyQuery(query);
+        after.add(new TermRangeQuery(EntityType.ID_KEY, fromId, null, false, true),
+                BooleanClause.Occur.MUST);
+        return after;
+    }
+
+    private static BooleanQuery copyQuery(BooleanQuery query) {
+        BooleanQuery copy = new BooleanQuery();
+        for (BooleanClause clause : query.clauses()) {
+            copy.add(clause);
+        }
+        return copy;
+    }
+
+    /**
+     * Copy this query with the given property filters.
+     *
+     * @param filters
+     * @return
+     */
+    private Query<E> withFilters(SortedMap<String, Pair<FilterPredicate, String>> filters) {
+        return new Query<E>(graph, cls, scope, offset, limit, sort, traversalSort,
+                defaultSort, filters, depthFilters, traversalFilters, page, cursor, profile);
+    }
+
+    /**
+     * Get the cursor keys of a vertex: the values of the sort keys
+     * followed by the item id.
+     *
+     * @param vertex
+     * @return
+     * @throws InvalidCursor if a sort key has a non-string value
+     */
+    private List<String> getCursorKeys(Vertex vertex) {
+        List<String> keys = Lists.newArrayListWithCapacity(sort.size() + 1);
+        for (String key : sort.keySet()) {
+            Object value = vertex.getProperty(key);
+            if (value != null && !(value instanceof String)) {
+                throw new InvalidCursor("Cursors can only be used to order by"
+                        + " string properties: " + key);
+            }
+            keys.add((String) value);
+        }
+        keys.add((String) vertex.getProperty(EntityType.ID_KEY));
+        return keys;
+    }
+
+    /**
+     * Encode cursor keys as an opaque, URL-safe string. Each key is
+     * written as its length and value, or as '-' if it is null.
+     *
+     * @param keys
+     * @return
+     */
+    private static String encodeCursor(List<String> keys) {
+        StringBuilder sb = new StringBuilder();
+        for (String key : keys) {
+            if (key == null) {
+                sb.append('-');
+            } else {
+                sb.append(key.length()).append(':').append(key);
+            }
+        }
+        return BaseEncoding.base64Url().encode(sb.toString().getBytes(Charsets.UTF_8));
+    }
+
+    /**
+     * Decode the keys of a cursor made by {@link #encodeCursor(List)}.
+     *
+     * @param cursor
+     * @return
+     * @throws InvalidCursor if the cursor is malformed
+     */
+    private List<String> decodeCursor(String cursor) {
+        List<String> keys = Lists.newArrayList();
+        try {
+            String data = new String(BaseEncoding.base64Url().decode(cursor), Charsets.UTF_8);
+            int pos = 0;
+            while (pos < data.length()) {
+                if (data.charAt(pos) == '-') {
+                    keys.add(null);
+                    pos++;
+                } else {
+                    int sep = data.indexOf(':', pos);
+                    int end = sep + 1 + Integer.parseInt(data.substring(pos, sep));
+                    keys.add(data.substring(sep + 1, end));
+                    pos = end;
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new InvalidCursor("Invalid cursor: " + cursor, e);
+        }
+        if (keys.size() != sort.size() + 1) {
+            throw new InvalidCursor("Cursor does not match the query order: "
+                    + cursor);
+        }
+        return keys;
+    }
+
+    /**
+     * Translate a property filter into an index query clause, if the
+     * property is indexed for the given type and the index can answer
+     * the predicate exactly. Index entries are strings, so equality and
+     * range filters with numeric values, which are compared numerically
+     * with numeric properties (see {@link FilterMatcher}), are not
+     * translated.
+     *
+     * @param type
+     * @param key
+     * @param filter
+     * @return A query clause, or absent if the filter must be applied
+     *         to each item
+     */
+    static Optional<BooleanClause> getIndexClause(EntityClass type,
+            String key, Pair<FilterPredicate, String> filter) {
+        String value = filter.getB();
+        if (value == null || !IndexPolicy.isIndexed(type, key)) {
+            return Optional.absent();
+        }
+        if (filter.getA() != FilterPredicate.STARTSWITH && FilterMatcher.isNumeric(value)) {
+            return Optional.absent();
+        }
+        org.apache.lucene.search.Query query;
+        switch (filter.getA()) {
+            case EQUALS:
+                query = new TermQuery(new Term(key, value));
+                break;
+            case STARTSWITH:
+                query = new PrefixQuery(new Term(key, value));
+                break;
+            case GT:
+                query = new TermRangeQuery(key, value, null, false, true);
+                break;
+            case GTE:
+                query = new TermRangeQuery(key, value, null, true, true);
+                break;
+            case LT:
+                query = new TermRangeQuery(key, null, value, true, false);
+                break;
+            case LTE:
+                query = new TermRangeQuery(key, null, value, true, true);
+                break;
+            default:
+                // Case-insensitive and substring matches can't be
+                // answered by the (exact, case-sensitive) item index.
+                return Optional.absent();
+        }
+        return Optional.of(new BooleanClause(query, BooleanClause.Occur.MUST));
+    }
+
     private <EE> GremlinPipeline<EE, Vertex> setPipelineRange(
             GremlinPipeline<EE, Vertex> filter) {
         int low = Math.max(offset.or(0), 0);
@@ -662,74 +1267,232 @@ public final class Query<E extends AccessibleEntity> {
         return filter.range(low, high);
     }
 
-    private <EE> GremlinPipeline<EE, Vertex> setOrder(
-            GremlinPipeline<EE, Vertex> pipe) {
-        pipe = setTraversalOrdering(pipe);
-        if (sort.isEmpty()) {
-            if (defaultSort.isPresent()) {
-                return pipe
-                        .order(getOrderFunction(new ImmutableSortedMap.Builder<String, Sort>(
-                                Ordering.natural().nullsLast()).put(
-                                defaultSort.get().getA(),
-                                defaultSort.get().getB()).build()));
+    /**
+     * Sort the output of a pipeline and select the offset/limit window.
+     * When both a sort and a limit are given only the first offset + limit
+     * items are kept while reading the pipeline, rather than sorting all
+     * of them, so memory is proportional to the window size. Unsorted
+     * queries are read lazily, unless they are profiled.
+     *
+     * @param pipe
+     * @return The selected vertices
+     */
+    private <EE> Iterable<Vertex> setOrderAndRange(GremlinPipeline<EE, Vertex> pipe) {
+        if (!isSorted() && !profile.isPresent()) {
+            return setPipelineRange(pipe);
+        } else if (limit.or(-1) <= 0) {
+            return selectRange(isSorted() ? sortVertices(pipe) : Lists.newArrayList(pipe));
+        }
+        List<Vertex> window = Lists.newArrayList();
+        selectWindow(pipe, window);
+        return window;
+    }
+
+    /**
+     * Read vertices in a single pass, counting all of them but keeping
+     * only those in the offset/limit window, in sort order if the query
+     * is sorted. The query must have a positive limit.
+     *
+     * @param vertices
+     * @param window   the list to which the selected vertices are added
+     * @return The number of vertices read
+     */
+    private long selectWindow(Iterator<Vertex> vertices, List<Vertex> window) {
+        int low = Math.max(offset.or(0), 0);
+        int high = low + limit.get();
+        long mark = startStage();
+        if (isSorted()) {
+            SortKeyDecorator decorator = new SortKeyDecorator();
+            List<SortEntry> top = getSortOrdering()
+                    .leastOf(Iterators.transform(vertices, decorator), high);
+            recordStage(QueryProfile.ORDER, mark, decorator.getCount(), top.size());
+            mark = startStage();
+            for (SortEntry entry : top.subList(Math.min(low, top.size()), top.size())) {
+                window.add(entry.vertex);
             }
-            return pipe;
+            recordStage(QueryProfile.RANGE, mark, top.size(), window.size());
+            return decorator.getCount();
         }
-        return pipe.order(getOrderFunction(sort));
+        long count = 0L;
+        while (vertices.hasNext()) {
+            Vertex vertex = vertices.next();
+            if (count >= low && count < high) {
+                window.add(vertex);
+            }
+            count++;
+        }
+        recordStage(QueryProfile.RANGE, mark, count, window.size());
+        return count;
     }
 
-    private <EE> GremlinPipeline<EE, Vertex> setTraversalOrdering(
-            GremlinPipeline<EE, Vertex> pipe) {
-        for (Entry<QueryUtils.TraversalPath, Sort> entry : traversalSort.entrySet()) {
-            pipe = pipe.order(getTraversalOrderFunction(entry.getKey(), entry.getValue()));
+    /**
+     * Sort all the given vertices. Each vertex's sort keys are computed
+     * once, before sorting, rather than in every comparison.
+     *
+     * @param vertices
+     * @return A sorted list of vertices
+     */
+    private List<Vertex> sortVertices(Iterator<Vertex> vertices) {
+        long mark = startStage();
+        List<SortEntry> entries = Lists.newArrayList(
+                Iterators.transform(vertices, new SortKeyDecorator()));
+        Collections.sort(entries, getSortOrdering());
+        List<Vertex> sorted = Lists.newArrayListWithCapacity(entries.size());
+        for (SortEntry entry : entries) {
+            sorted.add(entry.vertex);
         }
-        return pipe;
+        recordStage(QueryProfile.ORDER, mark, sorted.size(), sorted.size());
+        return sorted;
+    }
+
+    /**
+     * Select the offset/limit window from a list of vertices.
+     *
+     * @param vertices
+     * @return The selected vertices
+     */
+    private List<Vertex> selectRange(List<Vertex> vertices) {
+        long mark = startStage();
+        List<Vertex> window = Lists.newArrayList(setPipelineRange(
+                new GremlinPipeline<Vertex, Vertex>(vertices)));
+        recordStage(QueryProfile.RANGE, mark, vertices.size(), window.size());
+        return window;
+    }
+
+    /**
+     * Determine if the query is sorted by properties, the default sort,
+     * or traversals.
+     *
+     * @return
+     */
+    private boolean isSorted() {
+        return !sort.isEmpty() || defaultSort.isPresent() || !traversalSort.isEmpty();
+    }
+
+    /**
+     * A vertex with the values of its sort keys and its position in
+     * the input.
+     */
+    private static final class SortEntry {
+        private final Vertex vertex;
+        private final String[] keys;
+        private final long position;
+
+        SortEntry(Vertex vertex, String[] keys, long position) {
+            this.vertex = vertex;
+            this.keys = keys;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Function which computes the sort keys of vertices and tags them
+     * with their position in the input. The keys are the properties of the
+     * property sort (or the default sort if there is none) followed by the
+     * traversal sorts, later traversal sorts first. This gives the same
+     * order as sorting by each traversal and then by the properties in
+     * successive stable sorts.
+     */
+    private class SortKeyDecorator implements Function<Vertex, SortEntry> {
+        private final List<String> properties = Lists.newArrayList();
+        private final List<GremlinPipeline<Vertex, String>> traversals = Lists.newArrayList();
+        private long position = 0L;
+
+        SortKeyDecorator() {
+            properties.addAll(getPropertySort().keySet());
+            for (QueryUtils.TraversalPath path : getTraversalSortPaths()) {
+                traversals.add(getOrderTraversalPipeline(path));
+            }
+        }
+
+        public SortEntry apply(Vertex vertex) {
+            String[] keys = new String[properties.size() + traversals.size()];
+            int i = 0;
+            for (String property : properties) {
+                keys[i++] = (String) vertex.getProperty(property);
+            }
+            for (GremlinPipeline<Vertex, String> pipe : traversals) {
+                pipe.reset();
+                pipe.start(vertex);
+                keys[i++] = pipe.hasNext() ? pipe.next() : null;
+            }
+            return new SortEntry(vertex, keys, position++);
+        }
+
+        public long getCount() {
+            return position;
+        }
+    }
+
+    /**
+     * Get an Ordering of decorated vertices which compares their sort keys,
+     * in the direction of each, and then breaks ties by position. This makes
+     * sorts stable, like Gremlin's order step, including bounded selections.
+     *
+     * @return
+     */
+    private Ordering<SortEntry> getSortOrdering() {
+        final List<Sort> directions = Lists.newArrayList(getPropertySort().values());
+        for (QueryUtils.TraversalPath path : getTraversalSortPaths()) {
+            directions.add(traversalSort.get(path));
+        }
+        final Ordering<Comparable<?>> order = Ordering.natural().nullsLast();
+        return new Ordering<SortEntry>() {
+            public int compare(SortEntry a, SortEntry b) {
+                for (int i = 0; i < directions.size(); i++) {
+                    int cmp = order.compare(a.keys[i], b.keys[i]);
+                    if (cmp != 0) {
+                        return directions.get(i) == Sort.ASC ? cmp : -cmp;
+                    }
+                }
+                return a.position < b.position ? -1 : (a.position == b.position ? 0 : 1);
+            }
+        };
+    }
+
+    /**
+     * Get the property sort, or the default sort if there is none.
+     *
+     * @return
+     */
+    private SortedMap<String, Sort> getPropertySort() {
+        if (sort.isEmpty() && defaultSort.isPresent()) {
+            return ImmutableSortedMap.of(defaultSort.get().getA(), defaultSort.get().getB());
+        }
+        return sort;
+    }
+
+    /**
+     * Get the traversal sort paths in order of precedence: later
+     * traversal sorts take precedence over earlier ones.
+     *
+     * @return
+     */
+    private List<QueryUtils.TraversalPath> getTraversalSortPaths() {
+        return Lists.reverse(Lists.newArrayList(traversalSort.keySet()));
     }
 
     private <EE> GremlinPipeline<EE, Vertex> setFilters(
             GremlinPipeline<EE, Vertex> pipe) {
         if (filters.isEmpty())
             return pipe;
-        return pipe.filter(getFilterFunction());
+        return pipe.filter(profileFilter(QueryProfile.FILTERS, getFilterFunction()));
     }
 
     private <EE> GremlinPipeline<EE, Vertex> setTraversalFilters(
             GremlinPipeline<EE, Vertex> pipe) {
         if (traversalFilters.isEmpty())
             return pipe;
-        return pipe.filter(getTraversalFilterFunction());
+        return pipe.filter(profileFilter(QueryProfile.TRAVERSAL_FILTERS,
+                getTraversalFilterFunction()));
     }
 
     private <EE> GremlinPipeline<EE, Vertex> setDepthFilters(
             GremlinPipeline<EE, Vertex> pipe) {
         if (depthFilters.isEmpty())
             return pipe;
-        return pipe.filter(getDepthFilterFunction());
-    }
-
-    /**
-     * Get a PipeFunction which sorted vertices by the ordered list
-     * of sort parameters.
-     *
-     * @param sort
-     * @return
-     */
-    private PipeFunction<Pair<Vertex, Vertex>, Integer> getOrderFunction(
-            final SortedMap<String, Sort> sort) {
-        final Ordering<Comparable<?>> order = Ordering.natural().nullsLast();
-        return new PipeFunction<Pair<Vertex, Vertex>, Integer>() {
-            public Integer compute(Pair<Vertex, Vertex> pair) {
-                ComparisonChain chain = ComparisonChain.start();
-                for (Entry<String, Sort> entry : sort.entrySet()) {
-                    Vertex a = entry.getValue() == Sort.ASC ? pair.getA() : pair.getB();
-                    Vertex b = entry.getValue() == Sort.ASC ? pair.getB() : pair.getA();
-                    chain = chain.compare(
-                            (String) a.getProperty(entry.getKey()),
-                            (String) b.getProperty(entry.getKey()), order);
-                }
-                return chain.result();
-            }
-        };
+        return pipe.filter(profileFilter(QueryProfile.DEPTH_FILTERS,
+                getDepthFilterFunction()));
     }
 
     /**
@@ -742,6 +1505,10 @@ public final class Query<E extends AccessibleEntity> {
      * Then a depthFilter of childOf -> 0 would filter out all except the
      * grandparent node.
      * <p/>
+     * An item's depth is the length of its shortest path to the top, as for
+     * stored hierarchy depths (see {@link HierarchyDepth}). Items with a
+     * stored depth are checked without traversing their relationships.
+     * <p/>
      * TODO: Figure out how to do this will Gremlin's loop() construct.
      *
      * @return
@@ -750,18 +1517,10 @@ public final class Query<E extends AccessibleEntity> {
         return new PipeFunction<Vertex, Boolean>() {
             public Boolean compute(Vertex vertex) {
                 for (Entry<Pair<String, Direction>, Integer> entry : depthFilters.entrySet()) {
-                    int depthCount = 0;
-                    Vertex tmp = vertex;
-                    String label = entry.getKey().getA();
-                    Direction direction = entry.getKey().getB();
-                    while (tmp.getEdges(direction, label)
-                            .iterator().hasNext()) {
-                        tmp = tmp.getVertices(direction, label)
-                                .iterator().next();
-                        depthCount++;
-                        if (depthCount > entry.getValue()) {
-                            return false;
-                        }
+                    int maxDepth = entry.getValue();
+                    if (HierarchyDepth.findDepth(vertex, entry.getKey().getA(),
+                            entry.getKey().getB(), maxDepth) > maxDepth) {
+                        return false;
                     }
                 }
                 return true;
@@ -776,11 +1535,8 @@ public final class Query<E extends AccessibleEntity> {
     private PipeFunction<Vertex, Boolean> getFilterFunction() {
         return new PipeFunction<Vertex, Boolean>() {
             public Boolean compute(Vertex vertex) {
-                for (Entry<String, Pair<FilterPredicate, String>> entry : filters
-                        .entrySet()) {
-                    String p = (String) vertex.getProperty(entry.getKey());
-                    if (p == null || !matches(p, entry.getValue()
-                            .getB(), entry.getValue().getA())) {
+                for (Entry<String, FilterMatcher> entry : filterMatchers.entrySet()) {
+                    if (!entry.getValue().matches(vertex.getProperty(entry.getKey()))) {
                         return false;
                     }
                 }
@@ -789,13 +1545,31 @@ public final class Query<E extends AccessibleEntity> {
         };
     }
 
+    /**
+     * Compile property filters into matchers.
+     *
+     * @param filters
+     * @return A map of property names to matchers
+     */
+    private static ImmutableMap<String, FilterMatcher> compileFilters(
+            SortedMap<String, Pair<FilterPredicate, String>> filters) {
+        ImmutableMap.Builder<String, FilterMatcher> builder = ImmutableMap.builder();
+        for (Entry<String, Pair<FilterPredicate, String>> entry : filters.entrySet()) {
+            builder.put(entry.getKey(), FilterMatcher.compile(
+                    entry.getValue().getA(), entry.getValue().getB()));
+        }
+        return builder.build();
+    }
+
     private PipeFunction<Vertex, Boolean> getTraversalFilterFunction() {
-        // FIXME: Make this less horribly inefficient!
+        final List<PipeFunction<Vertex, Boolean>> functions = Lists.newArrayList();
+        for (TraversalFilter filter : traversalFilters) {
+            functions.add(filter.getFilterFunction(manager));
+        }
         return new PipeFunction<Vertex, Boolean>() {
             public Boolean compute(Vertex vertex) {
-                for (GremlinPipeline<Vertex, Vertex> pipeline : traversalFilters) {
-                    pipeline.reset();
-                    if (!pipeline.start(vertex).hasNext()) {
+                for (PipeFunction<Vertex, Boolean> function : functions) {
+                    if (!function.compute(vertex)) {
                         return false;
                     }
                 }
@@ -804,35 +1578,6 @@ public final class Query<E extends AccessibleEntity> {
         };
     }
 
-    private PipeFunction<Pair<Vertex, Vertex>, Integer> getTraversalOrderFunction(
-            final QueryUtils.TraversalPath tp, final Sort sort) {
-        // FIXME: Make this less horribly inefficient!
-        final GremlinPipeline<Vertex, String> pipe = getOrderTraversalPipeline(tp);
-        final Map<Vertex, String> cache = Maps.newHashMap();
-        final Ordering<Comparable<?>> order = Ordering.natural().nullsLast();
-        return new PipeFunction<Pair<Vertex, Vertex>, Integer>() {
-            public Integer compute(Pair<Vertex, Vertex> pair) {
-                String a = cache.get(pair.getA());
-                String b = cache.get(pair.getB());
-                if (!cache.containsKey(pair.getA())) {
-                    pipe.reset();
-                    if (pipe.start(pair.getA()).hasNext()) {
-                        a = pipe.next();
-                        cache.put(pair.getA(), a);
-                    }
-                }
-                if (!cache.containsKey(pair.getB())) {
-                    pipe.reset();
-                    if (pipe.start(pair.getB()).hasNext()) {
-                        b = pipe.next();
-                        cache.put(pair.getB(), b);
-                    }
-                }
-                return sort == Sort.ASC ? order.compare(a, b) : order.compare(b, a);
-            }
-        };
-    }
-
     private GremlinPipeline<Vertex, String> getOrderTraversalPipeline(
             final QueryUtils.TraversalPath traversalPath) {
         GremlinPipeline<Vertex, Vertex> p = addTraversals(traversalPath.getTraversals(), false,
@@ -845,19 +1590,6 @@ public final class Query<E extends AccessibleEntity> {
     }
 
 
-    private GremlinPipeline<Vertex, Vertex> getFilterTraversalPipeline(
-            final QueryUtils.TraversalPath traversalPath,
-            final Pair<FilterPredicate, String> filter) {
-        GremlinPipeline<Vertex, Vertex> p = addTraversals(traversalPath.getTraversals(), false,
-                new GremlinPipeline<Vertex, Vertex>());
-        return p.filter(new PipeFunction<Vertex, Boolean>() {
-            public Boolean compute(Vertex vertex) {
-                String p = (String) vertex.getProperty(traversalPath.getProperty());
-                return p != null && matches(p, filter.getB(), filter.getA());
-            }
-        });
-    }
-
     /**
      * Add traversals to a pipeline given a set of String/Direction pairs.
      * @param paths
@@ -866,7 +1598,7 @@ public final class Query<E extends AccessibleEntity> {
      * @param <S>
      * @return
      */
-    private static <S> GremlinPipeline<S, Vertex> addTraversals(List<Pair<String, Direction>> paths,
+    static <S> GremlinPipeline<S, Vertex> addTraversals(List<Pair<String, Direction>> paths,
             Boolean reverse, GremlinPipeline<S, Vertex> pipe) {
         List<Pair<String, Direction>> orderedPaths = reverse ? Lists.reverse(paths) : paths;
         for (Pair<String, Direction> tp : orderedPaths) {
@@ -887,38 +1619,4 @@ public final class Query<E extends AccessibleEntity> {
         }
         return pipe;
     }
-
-
-    // FIXME: This has several limitations so far.
-    // - only handles properties cast as strings
-    // - doesn't do case-insensitive regexp matching.
-    private boolean matches(String a, String b, FilterPredicate predicate) {
-        switch (predicate) {
-            case EQUALS:
-                return a.equals(b);
-            case IEQUALS:
-                return a.equalsIgnoreCase(b);
-            case STARTSWITH:
-                return a.startsWith(b);
-            case ENDSWITH:
-                return a.endsWith(b);
-            case CONTAINS:
-                return a.contains(b);
-            case ICONTAINS:
-                return a.toLowerCase().contains(b.toLowerCase());
-            case MATCHES:
-                return a.matches(b);
-            case GT:
-                return a.compareTo(b) > 0;
-            case GTE:
-                return a.compareTo(b) >= 0;
-            case LT:
-                return a.compareTo(b) < 0;
-            case LTE:
-                return a.compareTo(b) <= 0;
-            default:
-                throw new RuntimeException("Unexpected filter predicate: "
-                        + predicate);
-        }
-    }
 }
@@ -0,0 +1,200 @@
+package eu.ehri.project.views;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import com.google.common.base.Supplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.frames.FramedGraph;
+
+/**
+ * Cache of Query results, i.e. the ids of the items in a list or page
+ * and their count, for queries which are repeated often against data
+ * which changes rarely.
+ *
+ * There is one cache per database. Results are keyed by the query's
+ * specification and the database version, which is bumped whenever a
+ * transaction with changes starts to commit, so results from before a
+ * commit are never returned after it. Results are not kept if a commit
+ * happened whilst they were computed. The cache holds at most
+ * {@value #MAX_CACHED_IDS} item ids, evicting the least recently used
+ * results first.
+ *
+ * @author mike
+ */
+public final class QueryCache {
+
+    public static final long MAX_CACHED_IDS = 100000L;
+
+    private static final LoadingCache<GraphDatabaseService, QueryCache> registries
+            = CacheBuilder.newBuilder().weakKeys()
+            .build(new CacheLoader<GraphDatabaseService, QueryCache>() {
+                @Override
+                public QueryCache load(GraphDatabaseService database) {
+                    QueryCache cache = new QueryCache();
+                    database.registerTransactionEventHandler(cache.new VersionHandler());
+                    return cache;
+                }
+            });
+
+    private final Cache<List<Object>, Result> results = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_IDS)
+            .weigher(new Weigher<List<Object>, Result>() {
+                public int weigh(List<Object> key, Result result) {
+                    return result.ids.size() + 1;
+                }
+            }).build();
+
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicInteger commitsInFlight = new AtomicInteger();
+
+    private QueryCache() {
+    }
+
+    /**
+     * Get the shared cache for the given database.
+     *
+     * @param database
+     * @return The database's query cache
+     */
+    public static QueryCache forDatabase(GraphDatabaseService database) {
+        try {
+            return registries.get(database);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get the current database version.
+     *
+     * @return A counter of commits
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Get the cached result for a query, computing it if necessary.
+     *
+     * @param spec   the normalised specification of the query, including
+     *               everything which can change its result except the data
+     * @param loader a function which computes the result
+     * @return The result
+     */
+    public Result get(List<?> spec, Supplier<Result> loader) {
+        long startVersion = version.get();
+        if (commitsInFlight.get() > 0) {
+            return loader.get();
+        }
+        List<Object> key = ImmutableList.of(spec, startVersion);
+        Result result = results.getIfPresent(key);
+        if (result == null) {
+            result = loader.get();
+            if (commitsInFlight.get() == 0 && version.get() == startVersion) {
+                results.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discard all cached results.
+     */
+    public void invalidate() {
+        results.invalidateAll();
+    }
+
+    /**
+     * The ids of the items of a query result, with their count and,
+     * for cursor pages, the next cursor.
+     */
+    public static final class Result {
+        private final List<Object> ids;
+        private final long count;
+        private final String nextCursor;
+
+        Result(Iterable<Vertex> vertices, long count, String nextCursor) {
+            List<Object> ids = Lists.newArrayList();
+            for (Vertex vertex : vertices) {
+                ids.add(vertex.getId());
+            }
+            this.ids = ImmutableList.copyOf(ids);
+            this.count = count;
+            this.nextCursor = nextCursor;
+        }
+
+        /**
+         * Get the items of the result.
+         *
+         * @param graph
+         * @return The vertices, in order
+         */
+        public Iterable<Vertex> getVertices(FramedGraph<?> graph) {
+            List<Vertex> vertices = Lists.newArrayListWithCapacity(ids.size());
+            for (Object id : ids) {
+                vertices.add(graph.getVertex(id));
+            }
+            return vertices;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public String getNextCursor() {
+            return nextCursor;
+        }
+    }
+
+    /**
+     * Transaction hook which bumps the version when a transaction which
+     * changes anything starts to commit, and tracks commits in progress.
+     */
+    private class VersionHandler implements TransactionEventHandler<Boolean> {
+        public Boolean beforeCommit(TransactionData data) throws Exception {
+            if (!hasChanges(data)) {
+                return false;
+            }
+            commitsInFlight.incrementAndGet();
+            version.incrementAndGet();
+            return true;
+        }
+
+        public void afterCommit(TransactionData data, Boolean changed) {
+            if (changed != null && changed) {
+                commitsInFlight.decrementAndGet();
+            }
+        }
+
+        public void afterRollback(TransactionData data, Boolean changed) {
+            if (changed != null && changed) {
+                commitsInFlight.decrementAndGet();
+            }
+        }
+
+        private boolean hasChanges(TransactionData data) {
+            return data.createdNodes().iterator().hasNext()
+                    || data.deletedNodes().iterator().hasNext()
+                    || data.assignedNodeProperties().iterator().hasNext()
+                    || data.removedNodeProperties().iterator().hasNext()
+                    || data.createdRelationships().iterator().hasNext()
+                    || data.deletedRelationships().iterator().hasNext()
+                    || data.assignedRelationshipProperties().iterator().hasNext()
+                    || data.removedRelationshipProperties().iterator().hasNext();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package eu.ehri.project.views;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.pipes.PipeFunction;
+
+/**
+ * Profile of a Query execution: for each stage of the query pipeline,
+ * the number of items which went in and came out and the time spent in
+ * the stage itself, excluding the time spent in the stages it pulled
+ * items from.
+ *
+ * A profile is filled in by executing a query given it with
+ * {@link Query#setProfile(QueryProfile)}. Profiled queries are never
+ * answered from the {@link QueryCache}, and their results are read
+ * eagerly so the profile is complete when they are returned. A profile
+ * is not thread-safe.
+ *
+ * @author mike
+ */
+public final class QueryProfile {
+
+    public static final String SOURCE = "source";
+    public static final String ACL = "acl";
+    public static final String FILTERS = "filters";
+    public static final String DEPTH_FILTERS = "depthFilters";
+    public static final String TRAVERSAL_FILTERS = "traversalFilters";
+    public static final String ORDER = "order";
+    public static final String RANGE = "range";
+
+    private final Map<String, Stage> stages = Maps.newLinkedHashMap();
+    private long recorded = 0L;
+
+    /**
+     * The counts and timing of a stage.
+     */
+    public static final class Stage {
+        private long in = 0L;
+        private long out = 0L;
+        private long nanos = 0L;
+
+        public long getIn() {
+            return in;
+        }
+
+        public long getOut() {
+            return out;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Get the stages recorded so far, in the order they were first seen.
+     *
+     * @return A map of stage names to stages
+     */
+    public Map<String, Stage> getStages() {
+        return Collections.unmodifiableMap(stages);
+    }
+
+    /**
+     * Get the profile as simple data, for serialization: for each stage
+     * its input and output counts and elapsed milliseconds.
+     *
+     * @return A map of stage names to stage data
+     */
+    public Map<String, Map<String, Object>> getData() {
+        Map<String, Map<String, Object>> data = Maps.newLinkedHashMap();
+        for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+            Map<String, Object> stage = Maps.newLinkedHashMap();
+            stage.put("in", entry.getValue().in);
+            stage.put("out", entry.getValue().out);
+            stage.put("ms", entry.getValue().nanos / 1000000.0);
+            data.put(entry.getKey(), stage);
+        }
+        return data;
+    }
+
+    /**
+     * Start timing a stage.
+     *
+     * @return A mark to pass to {@link #record(String, long, long, long)}
+     */
+    public long start() {
+        return System.nanoTime() - recorded;
+    }
+
+    /**
+     * Record work done by a stage since the given mark. Time recorded by
+     * other stages in the meantime is not counted.
+     *
+     * @param name  the stage name
+     * @param start the mark returned by {@link #start()}
+     * @param in    the number of items which went into the stage
+     * @param out   the number of items which came out
+     */
+    public void record(String name, long start, long in, long out) {
+        long elapsed = System.nanoTime() - recorded - start;
+        Stage stage = stages.get(name);
+        if (stage == null) {
+            stage = new Stage();
+            stages.put(name, stage);
+        }
+        stage.in += in;
+        stage.out += out;
+        stage.nanos += elapsed;
+        recorded += elapsed;
+    }
+
+    /**
+     * Wrap a filter function so the items it sees and passes, and the
+     * time it takes, are recorded as the given stage.
+     *
+     * @param name
+     * @param function
+     * @return A filter function
+     */
+    PipeFunction<Vertex, Boolean> filter(final String name,
+            final PipeFunction<Vertex, Boolean> function) {
+        return new PipeFunction<Vertex, Boolean>() {
+            public Boolean compute(Vertex vertex) {
+                long mark = start();
+                Boolean passed = function.compute(vertex);
+                record(name, mark, 1L, passed ? 1L : 0L);
+                return passed;
+            }
+        };
+    }
+
+    /**
+     * Wrap a source of items so the items read from it, and the time
+     * taken to read them, are recorded as the given stage.
+     *
+     * @param name
+     * @param items
+     * @return An iterable of the same items
+     */
+    <T> Iterable<T> source(final String name, final Iterable<T> items) {
+        return new Iterable<T>() {
+            public Iterator<T> iterator() {
+                final Iterator<T> iterator = items.iterator();
+                return new Iterator<T>() {
+                    public boolean hasNext() {
+                        long mark = start();
+                        boolean next = iterator.hasNext();
+                        record(name, mark, 0L, 0L);
+                        return next;
+                    }
+
+                    public T next() {
+                        long mark = start();
+                        T item = iterator.next();
+                        record(name, mark, 1L, 1L);
+                        return item;
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+}
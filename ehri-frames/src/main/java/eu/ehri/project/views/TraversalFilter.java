@@ -0,0 +1,206 @@
+package eu.ehri.project.views;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Sets;
+import com.tinkerpop.blueprints.CloseableIterable;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.frames.Adjacency;
+import com.tinkerpop.gremlin.java.GremlinPipeline;
+import com.tinkerpop.pipes.PipeFunction;
+import com.tinkerpop.pipes.util.structures.Pair;
+
+import eu.ehri.project.core.GraphManager;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.views.Query.FilterPredicate;
+
+/**
+ * A Query filter on a property of the items at the end of a traversal
+ * path, e.g. <code>&lt;-describes.languageCode</code>.
+ *
+ * The types of the items at the end of the path are found from the
+ * {@link Adjacency} annotations of the frame classes along it. Where the
+ * property is indexed for all of them, the filter is executed as a
+ * semi-join: the matching items at the end of the path are found with
+ * the index and the path is traversed once, in reverse, from them to
+ * collect the ids of the items which pass the filter. Otherwise the path
+ * is traversed from each item filtered.
+ *
+ * @author mike
+ */
+final class TraversalFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(TraversalFilter.class);
+
+    private final Class<?> cls;
+    private final QueryUtils.TraversalPath path;
+    private final Pair<FilterPredicate, String> filter;
+    private final FilterMatcher matcher;
+
+    TraversalFilter(Class<?> cls, QueryUtils.TraversalPath path,
+            FilterPredicate predicate, String value) {
+        this.cls = cls;
+        this.path = path;
+        this.filter = new Pair<FilterPredicate, String>(predicate, value);
+        this.matcher = FilterMatcher.compile(predicate, value);
+    }
+
+    /**
+     * Get a function which filters items for a single query execution.
+     * The semi-join, if any, is run when the first item is filtered.
+     *
+     * @param manager
+     * @return A filter function
+     */
+    PipeFunction<Vertex, Boolean> getFilterFunction(final GraphManager manager) {
+        return new PipeFunction<Vertex, Boolean>() {
+            private Optional<Set<Object>> sources = null;
+            private GremlinPipeline<Vertex, Vertex> pipeline = null;
+
+            public Boolean compute(Vertex vertex) {
+                if (sources == null) {
+                    sources = getSourceIds(manager);
+                }
+                if (sources.isPresent()) {
+                    return sources.get().contains(vertex.getId());
+                }
+                if (pipeline == null) {
+                    pipeline = getPipeline();
+                }
+                pipeline.reset();
+                return pipeline.start(vertex).hasNext();
+            }
+        };
+    }
+
+    /**
+     * Get a pipeline which emits the items at the end of the path which
+     * match the filter, starting from an item being filtered.
+     *
+     * @return A pipeline
+     */
+    private GremlinPipeline<Vertex, Vertex> getPipeline() {
+        return Query.addTraversals(path.getTraversals(), false,
+                new GremlinPipeline<Vertex, Vertex>()).filter(getMatchFunction());
+    }
+
+    /**
+     * Find the ids of all items from which the path leads to an item
+     * matching the filter, using the index.
+     *
+     * @param manager
+     * @return A set of vertex ids, or absent if the index can't be used
+     */
+    private Optional<Set<Object>> getSourceIds(GraphManager manager) {
+        Optional<Set<EntityClass>> types = getTargetTypes();
+        if (!types.isPresent()) {
+            return Optional.absent();
+        }
+        Set<Object> ids = Sets.newHashSet();
+        for (EntityClass type : types.get()) {
+            Optional<BooleanClause> clause = Query.getIndexClause(type,
+                    path.getProperty(), filter);
+            if (!clause.isPresent()) {
+                return Optional.absent();
+            }
+            BooleanQuery query = new BooleanQuery();
+            query.add(clause.get());
+            Optional<CloseableIterable<Vertex>> hits = manager.queryVertices(type,
+                    query, null);
+            if (!hits.isPresent()) {
+                return Optional.absent();
+            }
+            try {
+                GremlinPipeline<Vertex, Vertex> pipe = Query.addTraversals(
+                        path.getTraversals(), true, new GremlinPipeline<Vertex, Vertex>(
+                        hits.get()).filter(getMatchFunction()));
+                for (Vertex vertex : pipe) {
+                    ids.add(vertex.getId());
+                }
+            } finally {
+                hits.get().close();
+            }
+        }
+        logger.debug("Semi-join for {} found {} items", path, ids.size());
+        return Optional.of(ids);
+    }
+
+    /**
+     * Get the possible types of the items at the end of the path.
+     *
+     * @return A set of types, or absent if they can't be determined
+     */
+    private Optional<Set<EntityClass>> getTargetTypes() {
+        Set<EntityClass> types = getTypes(cls);
+        for (Pair<String, Direction> step : path.getTraversals()) {
+            Set<EntityClass> next = EnumSet.noneOf(EntityClass.class);
+            for (EntityClass type : types) {
+                Set<EntityClass> adjacent = getAdjacentTypes(type.getEntityClass(), step);
+                if (adjacent.isEmpty()) {
+                    return Optional.absent();
+                }
+                next.addAll(adjacent);
+            }
+            types = next;
+        }
+        return types.isEmpty() ? Optional.<Set<EntityClass>>absent() : Optional.of(types);
+    }
+
+    private static Set<EntityClass> getTypes(Class<?> cls) {
+        Set<EntityClass> types = EnumSet.noneOf(EntityClass.class);
+        for (EntityClass type : EntityClass.values()) {
+            if (cls.isAssignableFrom(type.getEntityClass())) {
+                types.add(type);
+            }
+        }
+        return types;
+    }
+
+    private static Set<EntityClass> getAdjacentTypes(Class<?> cls,
+            Pair<String, Direction> step) {
+        Set<EntityClass> types = EnumSet.noneOf(EntityClass.class);
+        for (Method method : cls.getMethods()) {
+            Adjacency adjacency = method.getAnnotation(Adjacency.class);
+            if (adjacency != null && adjacency.label().equals(step.getA())
+                    && adjacency.direction() == step.getB()) {
+                Class<?> frameClass = getFrameClass(method.getGenericReturnType());
+                if (frameClass != null) {
+                    types.addAll(getTypes(frameClass));
+                }
+            }
+        }
+        return types;
+    }
+
+    private static Class<?> getFrameClass(Type type) {
+        if (type instanceof ParameterizedType) {
+            Type[] args = ((ParameterizedType) type).getActualTypeArguments();
+            return args.length == 1 && args[0] instanceof Class ? (Class<?>) args[0] : null;
+        }
+        return type instanceof Class && type != void.class ? (Class<?>) type : null;
+    }
+
+    @Override
+    public String toString() {
+        return path + " " + filter.getA() + " " + filter.getB();
+    }
+
+    private PipeFunction<Vertex, Boolean> getMatchFunction() {
+        return new PipeFunction<Vertex, Boolean>() {
+            public Boolean compute(Vertex vertex) {
+                return matcher.matches(vertex.getProperty(path.getProperty()));
+            }
+        };
+    }
+}
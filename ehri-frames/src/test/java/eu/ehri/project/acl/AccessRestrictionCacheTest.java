@@ -0,0 +1,53 @@
+package eu.ehri.project.acl;
+
+import com.google.common.collect.Sets;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import eu.ehri.project.models.DocumentaryUnit;
+import eu.ehri.project.models.UserProfile;
+import eu.ehri.project.test.ModelTestBase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class AccessRestrictionCacheTest extends ModelTestBase {
+
+    private AccessRestrictionCache cache;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        cache = AccessRestrictionCache.forDatabase(
+                ((Neo4jGraph) graph.getBaseGraph()).getRawGraph());
+    }
+
+    @Test
+    public void testHiddenItems() throws Exception {
+        AccessRestrictionCache.Restrictions restrictions = cache.getRestrictions(manager);
+        assertEquals(ids("c1", "c2", "c3"), restrictions.getHiddenIds(ids("reto", "kcl")));
+        assertEquals(ids("c1"), restrictions.getHiddenIds(ids("tim", "niod")));
+        assertSame(restrictions, cache.getRestrictions(manager));
+    }
+
+    @Test
+    public void testInvalidatedOnAccessChange() throws Exception {
+        assertEquals(ids("c1", "c2", "c3"),
+                cache.getRestrictions(manager).getHiddenIds(ids("reto", "kcl")));
+        manager.getFrame("c3", DocumentaryUnit.class).addAccessor(
+                manager.getFrame("reto", UserProfile.class));
+        graph.getBaseGraph().commit();
+        assertEquals(ids("c1", "c2"),
+                cache.getRestrictions(manager).getHiddenIds(ids("reto", "kcl")));
+    }
+
+    private Set<Object> ids(String... identifiers) throws Exception {
+        Set<Object> vertexIds = Sets.newHashSet();
+        for (String id : identifiers) {
+            vertexIds.add(manager.getVertex(id).getId());
+        }
+        return vertexIds;
+    }
+}
@@ -0,0 +1,118 @@
+package eu.ehri.project.acl;
+
+import com.google.common.collect.Lists;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import eu.ehri.project.models.DocumentaryUnit;
+import eu.ehri.project.models.Group;
+import eu.ehri.project.models.Repository;
+import eu.ehri.project.models.UserProfile;
+import eu.ehri.project.test.ModelTestBase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class AccessorClosureCacheTest extends ModelTestBase {
+
+    private AccessorClosureCache cache;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        cache = AccessorClosureCache.forDatabase(
+                ((Neo4jGraph) graph.getBaseGraph()).getRawGraph());
+    }
+
+    @Test
+    public void testClosureIncludesAllGroups() throws Exception {
+        UserProfile tim = manager.getFrame("tim", UserProfile.class);
+        Group niod = manager.getFrame("niod", Group.class);
+        Group admin = manager.getFrame(Group.ADMIN_GROUP_IDENTIFIER, Group.class);
+        AccessorClosureCache.Closure closure = cache.getClosure(tim);
+        assertEquals(3, closure.getIds().size());
+        assertTrue(closure.contains(tim.asVertex()));
+        assertTrue(closure.contains(niod.asVertex()));
+        assertTrue(closure.contains(admin.asVertex()));
+        assertTrue(closure.isAdmin());
+        assertSame(closure, cache.getClosure(tim));
+    }
+
+    @Test
+    public void testAnonymousClosureIsEmpty() throws Exception {
+        AccessorClosureCache.Closure closure = cache.getClosure(
+                AnonymousAccessor.getInstance());
+        assertTrue(closure.getIds().isEmpty());
+        assertFalse(closure.isAdmin());
+    }
+
+    @Test
+    public void testInvalidatedOnMembershipChange() throws Exception {
+        UserProfile reto = manager.getFrame("reto", UserProfile.class);
+        assertFalse(cache.getClosure(reto).isAdmin());
+        manager.getFrame(Group.ADMIN_GROUP_IDENTIFIER, Group.class).addMember(reto);
+        graph.getBaseGraph().commit();
+        assertTrue(cache.getClosure(reto).isAdmin());
+    }
+
+    @Test
+    public void testPermissionsIncludeScopedGrants() throws Exception {
+        AclNodeRegistry.NodeLookups lookups = AclNodeRegistry.getLookups(graph, manager);
+        UserProfile reto = manager.getFrame("reto", UserProfile.class);
+        Repository r1 = manager.getFrame("r1", Repository.class);
+        EffectivePermissions perms = cache.getPermissions(graph, reto, lookups);
+        Set<Object> noScopes = Collections.emptySet();
+        assertFalse(perms.hasContentTypePermission(ContentTypes.DOCUMENTARY_UNIT,
+                PermissionType.CREATE, noScopes));
+        assertTrue(perms.hasContentTypePermission(ContentTypes.DOCUMENTARY_UNIT,
+                PermissionType.CREATE, Collections.singleton(r1.asVertex().getId())));
+        assertSame(perms, cache.getPermissions(graph, reto, lookups));
+
+        UserProfile linda = manager.getFrame("linda", UserProfile.class);
+        assertTrue(cache.getPermissions(graph, linda, lookups).hasContentTypePermission(
+                ContentTypes.DOCUMENTARY_UNIT, PermissionType.CREATE, noScopes));
+    }
+
+    @Test
+    public void testPermissionsInvalidatedOnGrant() throws Exception {
+        AclNodeRegistry.NodeLookups lookups = AclNodeRegistry.getLookups(graph, manager);
+        UserProfile reto = manager.getFrame("reto", UserProfile.class);
+        Repository r1 = manager.getFrame("r1", Repository.class);
+        Set<Object> noScopes = Collections.emptySet();
+        assertFalse(cache.getPermissions(graph, reto, lookups).hasItemPermission(
+                r1.asVertex().getId(), PermissionType.UPDATE, noScopes));
+        new AclManager(graph).grantPermissions(reto, r1, PermissionType.OWNER);
+        graph.getBaseGraph().commit();
+        EffectivePermissions perms = cache.getPermissions(graph, reto, lookups);
+        assertTrue(perms.hasItemPermission(r1.asVertex().getId(),
+                PermissionType.UPDATE, noScopes));
+        assertFalse(perms.hasItemPermission(r1.asVertex().getId(),
+                PermissionType.GRANT, noScopes));
+        assertFalse(perms.hasContentTypePermission(ContentTypes.REPOSITORY,
+                PermissionType.UPDATE, noScopes));
+    }
+
+    @Test
+    public void testGrantIndexByTargetAndScope() throws Exception {
+        AclNodeRegistry.NodeLookups lookups = AclNodeRegistry.getLookups(graph, manager);
+        UserProfile reto = manager.getFrame("reto", UserProfile.class);
+        Repository r1 = manager.getFrame("r1", Repository.class);
+        DocumentaryUnit c4 = manager.getFrame("c4", DocumentaryUnit.class);
+        Set<Object> noScopes = Collections.emptySet();
+        GrantIndex index = cache.getGrantIndex(reto, lookups);
+        assertEquals(Lists.newArrayList(PermissionType.CREATE), index.getPermissions(
+                lookups.getContentTypeId(ContentTypes.DOCUMENTARY_UNIT), noScopes));
+        assertEquals(Lists.newArrayList(PermissionType.CREATE), index.getPermissions(
+                c4.asVertex().getId(), Collections.singleton(r1.asVertex().getId())));
+        assertTrue(index.getPermissions(c4.asVertex().getId(), noScopes).isEmpty());
+        assertSame(index, cache.getGrantIndex(reto, lookups));
+
+        new AclManager(graph).grantPermissions(reto, c4, PermissionType.UPDATE);
+        graph.getBaseGraph().commit();
+        assertEquals(Lists.newArrayList(PermissionType.UPDATE), cache.getGrantIndex(reto, lookups)
+                .getPermissions(c4.asVertex().getId(), noScopes));
+    }
+}
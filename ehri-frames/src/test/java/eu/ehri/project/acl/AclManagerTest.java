@@ -1,9 +1,14 @@
 package eu.ehri.project.acl;
 
+import com.google.common.collect.Lists;
 import eu.ehri.project.definitions.Ontology;
 import eu.ehri.project.models.*;
+import eu.ehri.project.models.base.AccessibleEntity;
 import eu.ehri.project.models.base.Accessor;
 import eu.ehri.project.persistance.Bundle;
+import eu.ehri.project.persistance.BundleDAO;
+import eu.ehri.project.persistance.MutationState;
+import eu.ehri.project.persistance.Serializer;
 import eu.ehri.project.test.GraphTestBase;
 import eu.ehri.project.test.TestData;
 import eu.ehri.project.test.utils.GraphCleaner;
@@ -88,7 +93,47 @@ public class AclManagerTest extends GraphTestBase {
 
     @Test
     public void testSetAccessors() throws Exception {
+        loader.loadTestData();
+        DocumentaryUnit c4 = manager.getFrame("c4", DocumentaryUnit.class);
+        UserProfile reto = manager.getFrame("reto", UserProfile.class);
+        UserProfile linda = manager.getFrame("linda", UserProfile.class);
+        AclManager acl = new AclManager(graph);
+        assertNull(c4.asVertex().getProperty(AccessibleEntity.RESTRICTED_KEY));
+        assertTrue(acl.getAclFilterFunction(linda).compute(c4.asVertex()));
+
+        acl.setAccessors(c4, Lists.<Accessor>newArrayList(reto));
+        assertEquals(true, c4.asVertex().getProperty(AccessibleEntity.RESTRICTED_KEY));
+        assertTrue(acl.getAclFilterFunction(reto).compute(c4.asVertex()));
+        assertFalse(acl.getAclFilterFunction(linda).compute(c4.asVertex()));
+
+        acl.removeAccessControl(c4, reto);
+        assertEquals(false, c4.asVertex().getProperty(AccessibleEntity.RESTRICTED_KEY));
+        assertTrue(acl.getAclFilterFunction(linda).compute(c4.asVertex()));
+    }
 
+    @Test
+    public void testRestrictionKeptOnUpdate() throws Exception {
+        loader.loadTestData();
+        DocumentaryUnit c4 = manager.getFrame("c4", DocumentaryUnit.class);
+        UserProfile reto = manager.getFrame("reto", UserProfile.class);
+        new AclManager(graph).setAccessors(c4, Lists.<Accessor>newArrayList(reto));
+        Bundle bundle = new Serializer(graph).vertexFrameToBundle(c4)
+                .withDataValue("otherIdentifiers", "changed");
+        assertEquals(MutationState.UPDATED,
+                new BundleDAO(graph).update(bundle, DocumentaryUnit.class).getState());
+        assertEquals(true, c4.asVertex().getProperty(AccessibleEntity.RESTRICTED_KEY));
+    }
+
+    @Test
+    public void testMarkRestrictedItems() throws Exception {
+        loader.loadTestData();
+        // The fixtures are written without restriction markers.
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        DocumentaryUnit c4 = manager.getFrame("c4", DocumentaryUnit.class);
+        assertNull(c1.asVertex().getProperty(AccessibleEntity.RESTRICTED_KEY));
+        assertTrue(AclManager.markRestrictedItems(graph) > 0L);
+        assertEquals(true, c1.asVertex().getProperty(AccessibleEntity.RESTRICTED_KEY));
+        assertEquals(false, c4.asVertex().getProperty(AccessibleEntity.RESTRICTED_KEY));
     }
 
     @Test
@@ -150,12 +195,35 @@ public class AclManagerTest extends GraphTestBase {
 
     @Test
     public void testGrantPermissions() throws Exception {
+        loader.loadTestData("permissions.yaml");
+        Group group1 = manager.getFrame("group1", Group.class);
+        UserProfile user1 = manager.getFrame("user1", UserProfile.class);
+        ContentType ct = manager.getFrame(DOCUMENTARY_UNIT.getName(), ContentType.class);
 
+        // An existing grant is reused, but not one to another accessor
+        AclManager acl = new AclManager(graph);
+        PermissionGrant existing = manager.getFrame("group1DocCreateGrant",
+                PermissionGrant.class);
+        assertEquals(existing, acl.grantPermissions(group1, ct, CREATE));
+        PermissionGrant grant = acl.grantPermissions(user1, ct, CREATE);
+        assertFalse(existing.equals(grant));
+        assertEquals(grant, acl.grantPermissions(user1, ct, CREATE));
+        assertEquals(1, Lists.newArrayList(user1.getPermissionGrants()).size());
     }
 
     @Test
     public void testRevokePermissions() throws Exception {
+        loader.loadTestData("permissions.yaml");
+        Group group1 = manager.getFrame("group1", Group.class);
+        UserProfile user1 = manager.getFrame("user1", UserProfile.class);
+        ContentType ct = manager.getFrame(DOCUMENTARY_UNIT.getName(), ContentType.class);
 
+        AclManager acl = new AclManager(graph);
+        acl.grantPermissions(user1, ct, CREATE);
+        acl.revokePermissions(user1, ct, CREATE);
+        assertTrue(Lists.newArrayList(user1.getPermissionGrants()).isEmpty());
+        // Other accessors' grants on the same target are left alone
+        assertTrue(acl.getGlobalPermissions(group1).get(DOCUMENTARY_UNIT).contains(CREATE));
     }
 
     @Test
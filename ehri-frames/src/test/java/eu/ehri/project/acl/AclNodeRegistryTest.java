@@ -0,0 +1,55 @@
+package eu.ehri.project.acl;
+
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import eu.ehri.project.models.ContentType;
+import eu.ehri.project.models.Permission;
+import eu.ehri.project.test.ModelTestBase;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AclNodeRegistryTest extends ModelTestBase {
+
+    private AclNodeRegistry registry;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        registry = AclNodeRegistry.forDatabase(
+                ((Neo4jGraph) graph.getBaseGraph()).getRawGraph());
+    }
+
+    @Test
+    public void testLookupsAreShared() throws Exception {
+        AclNodeRegistry.NodeLookups lookups = registry.getLookups(manager);
+        assertTrue(lookups.isComplete());
+        assertSame(lookups, AclNodeRegistry.getLookups(graph, manager));
+    }
+
+    @Test
+    public void testLookupsMapNodes() throws Exception {
+        AclNodeRegistry.NodeLookups lookups = registry.getLookups(manager);
+        ContentType ct = manager.getFrame(ContentTypes.DOCUMENTARY_UNIT.getName(),
+                ContentType.class);
+        Permission perm = manager.getFrame(PermissionType.CREATE.getName(),
+                Permission.class);
+        assertEquals(ContentTypes.DOCUMENTARY_UNIT, lookups.getContentType(ct.asVertex()));
+        assertEquals(ct.asVertex().getId(),
+                lookups.getContentTypeId(ContentTypes.DOCUMENTARY_UNIT));
+        assertEquals(PermissionType.CREATE, lookups.getPermissionType(perm.asVertex()));
+        assertEquals(perm.asVertex().getId(), lookups.getPermissionId(PermissionType.CREATE));
+    }
+
+    @Test
+    public void testInvalidatedOnChange() throws Exception {
+        AclNodeRegistry.NodeLookups lookups = registry.getLookups(manager);
+        manager.deleteVertex(PermissionType.CREATE.getName());
+        graph.getBaseGraph().commit();
+        AclNodeRegistry.NodeLookups reloaded = registry.getLookups(manager);
+        assertNotSame(lookups, reloaded);
+        assertFalse(reloaded.isComplete());
+        assertNull(reloaded.getPermissionId(PermissionType.CREATE));
+    }
+}
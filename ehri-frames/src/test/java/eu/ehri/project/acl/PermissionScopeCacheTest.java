@@ -0,0 +1,85 @@
+package eu.ehri.project.acl;
+
+import com.google.common.collect.Lists;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.frames.FramedGraph;
+import com.tinkerpop.frames.FramedGraphFactory;
+import com.tinkerpop.frames.modules.javahandler.JavaHandlerModule;
+import eu.ehri.project.models.DocumentaryUnit;
+import eu.ehri.project.models.Repository;
+import eu.ehri.project.models.base.PermissionScope;
+import eu.ehri.project.test.ModelTestBase;
+import eu.ehri.project.utils.TxCheckedNeo4jGraph;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PermissionScopeCacheTest extends ModelTestBase {
+
+    private PermissionScopeCache cache;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        cache = PermissionScopeCache.forDatabase(
+                ((Neo4jGraph) graph.getBaseGraph()).getRawGraph());
+    }
+
+    @Test
+    public void testScopeIdsNearestFirst() throws Exception {
+        assertEquals(ids("c2", "c1", "r1", "nl"), cache.getScopeIds(manager.getVertex("c3")));
+        assertEquals(ids("c1", "r1", "nl"), cache.getScopeIds(manager.getVertex("c2")));
+        assertEquals(ids("r1", "nl"), cache.getScopeIds(manager.getVertex("c4")));
+        assertTrue(cache.getScopeIds(manager.getVertex("nl")).isEmpty());
+
+        List<String> scopes = Lists.newArrayList();
+        for (PermissionScope scope : manager.getFrame("c3", DocumentaryUnit.class)
+                .getPermissionScopes()) {
+            scopes.add(scope.getId());
+        }
+        assertEquals(Lists.newArrayList("c2", "c1", "r1", "nl"), scopes);
+    }
+
+    @Test
+    public void testInvalidatedOnScopeChange() throws Exception {
+        assertEquals(ids("c2", "c1", "r1", "nl"), cache.getScopeIds(manager.getVertex("c3")));
+        manager.getFrame("c2", DocumentaryUnit.class).setPermissionScope(
+                manager.getFrame("r2", Repository.class));
+        graph.getBaseGraph().commit();
+        assertEquals(ids("c2", "r2", "gb"), cache.getScopeIds(manager.getVertex("c3")));
+    }
+
+    @Test
+    public void testScopeChangeWithinTransaction() throws Exception {
+        TxCheckedNeo4jGraph txGraph = new TxCheckedNeo4jGraph(
+                ((Neo4jGraph) graph.getBaseGraph()).getRawGraph());
+        FramedGraph<TxCheckedNeo4jGraph> txFramed = new FramedGraphFactory(
+                new JavaHandlerModule()).create(txGraph);
+        DocumentaryUnit c2 = txFramed.frame(manager.getVertex("c2"), DocumentaryUnit.class);
+        c2.asVertex().setProperty("test", "value");
+        assertTrue(txGraph.isInTransaction());
+        try {
+            assertEquals(ids("c2", "c1", "r1", "nl"), PermissionScopeCache.getScopeIds(
+                    txFramed, txGraph.getVertex(manager.getVertex("c3").getId())));
+            c2.setPermissionScope(txFramed.frame(manager.getVertex("r2"), Repository.class));
+            assertEquals(ids("c2", "r2", "gb"), PermissionScopeCache.getScopeIds(
+                    txFramed, txGraph.getVertex(manager.getVertex("c3").getId())));
+        } finally {
+            txGraph.rollback();
+        }
+        assertEquals(ids("c2", "c1", "r1", "nl"), PermissionScopeCache.getScopeIds(
+                txFramed, txGraph.getVertex(manager.getVertex("c3").getId())));
+    }
+
+    private List<Object> ids(String... identifiers) throws Exception {
+        List<Object> vertexIds = Lists.newArrayList();
+        for (String id : identifiers) {
+            vertexIds.add(manager.getVertex(id).getId());
+        }
+        return vertexIds;
+    }
+}
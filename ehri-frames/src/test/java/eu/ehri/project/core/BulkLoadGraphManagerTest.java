@@ -0,0 +1,98 @@
+package eu.ehri.project.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.kernel.impl.util.FileUtils;
+
+import com.google.common.collect.Iterables;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.frames.FramedGraph;
+import com.tinkerpop.frames.FramedGraphFactory;
+
+import eu.ehri.project.core.impl.BulkLoadGraphManager;
+import eu.ehri.project.definitions.Ontology;
+import eu.ehri.project.exceptions.IntegrityError;
+import eu.ehri.project.exceptions.ItemNotFound;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.utils.BulkLoadNeo4jGraph;
+
+public class BulkLoadGraphManagerTest {
+
+    private File directory;
+    private FramedGraph<BulkLoadNeo4jGraph> graph;
+    private GraphManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("bulkload", "db");
+        directory.delete();
+        graph = new FramedGraphFactory().create(
+                new BulkLoadNeo4jGraph(directory.getAbsolutePath()));
+        manager = GraphManagerFactory.getInstance(graph);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        graph.shutdown();
+        FileUtils.deleteRecursively(directory);
+    }
+
+    @Test
+    public void testFactoryReturnsBulkLoadManager() {
+        assertTrue(manager instanceof BulkLoadGraphManager);
+    }
+
+    @Test
+    public void testCreateAndLookup() throws Exception {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put(Ontology.IDENTIFIER_KEY, "foo");
+        Vertex v = manager.createVertex("id1", EntityClass.DOCUMENTARY_UNIT, data);
+        assertEquals(v, manager.getVertex("id1"));
+        assertEquals(v, manager.getVertex("id1", EntityClass.DOCUMENTARY_UNIT));
+        assertEquals(1L, manager.countVertices(EntityClass.DOCUMENTARY_UNIT));
+        assertEquals(1, Iterables.size(manager.getVertices(Ontology.IDENTIFIER_KEY,
+                "foo", EntityClass.DOCUMENTARY_UNIT)));
+        assertTrue(manager.propertyValueExists(Ontology.IDENTIFIER_KEY, "foo"));
+    }
+
+    @Test(expected = IntegrityError.class)
+    public void testDuplicateId() throws Exception {
+        manager.createVertex("id1", EntityClass.GROUP, new HashMap<String, Object>());
+        manager.createVertex("id1", EntityClass.GROUP, new HashMap<String, Object>());
+    }
+
+    @Test(expected = ItemNotFound.class)
+    public void testTypedLookup() throws Exception {
+        manager.createVertex("id1", EntityClass.GROUP, new HashMap<String, Object>());
+        manager.getVertex("id1", EntityClass.USER_PROFILE);
+    }
+
+    @Test
+    public void testUpdateRefused() throws Exception {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put(Ontology.IDENTIFIER_KEY, "foo");
+        Vertex v = manager.createVertex("id1", EntityClass.DOCUMENTARY_UNIT, data);
+        data.put(Ontology.IDENTIFIER_KEY, "bar");
+        try {
+            manager.updateVertex("id1", EntityClass.DOCUMENTARY_UNIT, data);
+            fail("Update should not be allowed during a bulk load");
+        } catch (UnsupportedOperationException e) {
+            assertEquals("foo", v.getProperty(Ontology.IDENTIFIER_KEY));
+        }
+    }
+
+    @Test
+    public void testIndexedAtShutdown() throws Exception {
+        manager.createVertex("id1", EntityClass.GROUP, new HashMap<String, Object>());
+        manager.createVertex("id2", EntityClass.GROUP, new HashMap<String, Object>());
+        graph.shutdown();
+        assertTrue(graph.getBaseGraph().verify().isEmpty());
+    }
+}
@@ -2,11 +2,13 @@ package eu.ehri.project.core;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import com.google.common.collect.Iterables;
 import com.tinkerpop.blueprints.TransactionalGraph;
 import com.tinkerpop.frames.FramedGraphFactory;
 import org.junit.After;
@@ -21,6 +23,9 @@ import com.tinkerpop.frames.FramedGraph;
 
 import eu.ehri.project.core.GraphManager;
 import eu.ehri.project.core.GraphManagerFactory;
+import eu.ehri.project.core.impl.SingleIndexGraphManager;
+import eu.ehri.project.core.impl.VertexIdCache;
+import eu.ehri.project.definitions.Ontology;
 import eu.ehri.project.exceptions.IndexNotFoundException;
 import eu.ehri.project.exceptions.IntegrityError;
 import eu.ehri.project.exceptions.ItemNotFound;
@@ -158,8 +163,128 @@ public class GraphManagerTest {
         assertEquals(null, vertex.getProperty(TEST_KEY));
     }
 
+    @Test
+    public void testUpdateVertexWritesChangedKeys() throws Exception {
+        SingleIndexGraphManager siManager = (SingleIndexGraphManager) manager;
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put(TEST_KEY, TEST_VALUE);
+        data.put("otherKey", "otherValue");
+        List<String> keys = Arrays.asList(TEST_KEY, "otherKey");
+        manager.createVertex(TEST_ID1, TEST_TYPE, data, keys);
+
+        // Nothing changed, so nothing should be written
+        long written = siManager.getWrittenKeyCount();
+        manager.updateVertex(TEST_ID1, TEST_TYPE, data, keys);
+        assertEquals(written, siManager.getWrittenKeyCount());
+
+        // One changed and one removed key
+        data.put(TEST_KEY, "newValue");
+        data.remove("otherKey");
+        manager.updateVertex(TEST_ID1, TEST_TYPE, data, keys);
+        assertEquals(written + 2L, siManager.getWrittenKeyCount());
+
+        // Index entries follow the changed values
+        assertEquals(1, Iterables.size(manager.getVertices(TEST_KEY, "newValue", TEST_TYPE)));
+        assertEquals(0, Iterables.size(manager.getVertices(TEST_KEY, TEST_VALUE, TEST_TYPE)));
+        assertEquals(0, Iterables.size(manager.getVertices("otherKey", "otherValue", TEST_TYPE)));
+    }
+
+    @Test
+    public void testIdCacheHits() throws Exception {
+        VertexIdCache cache = ((SingleIndexGraphManager) manager).getIdCache();
+        Vertex vertex = manager.createVertex(TEST_ID1, TEST_TYPE,
+                new HashMap<String, Object>());
+        graph.getBaseGraph().commit();
+
+        long hits = cache.stats().hitCount();
+        assertEquals(vertex, manager.getVertex(TEST_ID1));
+        assertEquals(vertex, manager.getVertex(TEST_ID1));
+        assertEquals(vertex, manager.getVertex(TEST_ID1, TEST_TYPE));
+        assertEquals(hits + 2L, cache.stats().hitCount());
+
+        // Cached ids must not bypass the type check
+        try {
+            manager.getVertex(TEST_ID1, EntityClass.GROUP);
+            fail("Fetching vertex with the wrong type should have failed");
+        } catch (ItemNotFound e) {
+            // ignore, this is OK
+        }
+
+        manager.deleteVertex(TEST_ID1);
+        graph.getBaseGraph().commit();
+        assertNull(cache.get(TEST_ID1));
+        assertFalse(manager.exists(TEST_ID1));
+    }
+
+    @Test(expected = ItemNotFound.class)
+    public void testIdCacheRollback() throws Exception {
+        manager.createVertex(TEST_ID1, TEST_TYPE, new HashMap<String, Object>());
+        // Caches the uncommitted vertex...
+        manager.getVertex(TEST_ID1);
+        graph.getBaseGraph().rollback();
+        manager.getVertex(TEST_ID1);
+    }
+
+    @Test
+    public void testGetVerticesByIds() throws Exception {
+        Vertex v1 = manager.createVertex("id1", TEST_TYPE, new HashMap<String, Object>());
+        Vertex v2 = manager.createVertex("id2", TEST_TYPE, new HashMap<String, Object>());
+        Vertex v3 = manager.createVertex("id-3", TEST_TYPE, new HashMap<String, Object>());
+        graph.getBaseGraph().commit();
+        // Cache one of them...
+        manager.getVertex("id2");
+
+        List<Vertex> verts = new LinkedList<Vertex>();
+        for (Vertex v : manager.getVertices(Arrays.asList("id-3", "id1", "id2", "id1"))) {
+            verts.add(v);
+        }
+        assertEquals(Arrays.asList(v3, v1, v2, v1), verts);
+
+        try {
+            manager.getVertices(Arrays.asList("id1", NON_EXISTING_ID, "id2"));
+            fail("Fetching a non-existing id should have failed");
+        } catch (ItemNotFound e) {
+            assertEquals(NON_EXISTING_ID, e.getValue());
+        }
+    }
+
+    @Test
+    public void testCountVertices() throws Exception {
+        manager.createVertex("id1", TEST_TYPE, new HashMap<String, Object>());
+        manager.createVertex("id2", TEST_TYPE, new HashMap<String, Object>());
+        graph.getBaseGraph().commit();
+        assertEquals(2L, manager.countVertices(TEST_TYPE));
+        assertEquals(0L, manager.countVertices(EntityClass.GROUP));
+
+        manager.createVertex("id3", TEST_TYPE, new HashMap<String, Object>());
+        graph.getBaseGraph().rollback();
+        assertEquals(2L, manager.countVertices(TEST_TYPE));
+
+        manager.createVertex("id3", TEST_TYPE, new HashMap<String, Object>());
+        manager.deleteVertex("id1");
+        manager.deleteVertex("id2");
+        graph.getBaseGraph().commit();
+        assertEquals(1L, manager.countVertices(TEST_TYPE));
+    }
+
     // TODO copy and change the other tests
 
+    @Test
+    public void testIndexPolicy() throws Exception {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put(Ontology.IDENTIFIER_KEY, "joe");
+        data.put(TEST_KEY, TEST_VALUE);
+        manager.createVertex(TEST_ID1, TEST_TYPE, data);
+
+        // Identifier is marked @Indexed, the test key isn't
+        assertTrue(IndexPolicy.isIndexed(TEST_TYPE, Ontology.IDENTIFIER_KEY));
+        assertFalse(IndexPolicy.isIndexed(TEST_TYPE, TEST_KEY));
+        assertEquals(1, Iterables.size(manager.getVertices(
+                Ontology.IDENTIFIER_KEY, "joe", TEST_TYPE)));
+        assertEquals(0, Iterables.size(manager.getVertices(
+                TEST_KEY, TEST_VALUE, TEST_TYPE)));
+    }
+
     @SuppressWarnings("serial")
     @Test
     public void testSelectiveIndexing() throws IndexNotFoundException,
@@ -1,9 +1,12 @@
 package eu.ehri.project.core;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.util.HashMap;
 
 import com.tinkerpop.blueprints.IndexableGraph;
@@ -39,6 +42,58 @@ public class GraphReindexerTest extends ModelTestBase {
     	checkIndex();
     }
     
+    @Test
+    public void reindexInBatches() {
+        HashMap<EntityClass, Long> countBefore = countTypes();
+        long count = new GraphReindexer(graph, 3, 5, null)
+                .reindex(GraphReindexer.INDEX_NAME);
+        assertTrue(count > 0L);
+        assertEquals(countBefore, countTypes());
+        checkIndex();
+    }
+
+    @Test
+    public void resumeReindex() throws Exception {
+        HashMap<EntityClass, Long> countBefore = countTypes();
+        // Pretend the first batch was committed by an earlier run,
+        // which leaves its items in the existing index.
+        File checkpoint = File.createTempFile("reindex", ".log");
+        FileWriter writer = new FileWriter(checkpoint);
+        writer.write("0 5\n");
+        writer.close();
+
+        new GraphReindexer(graph, 2, 5, checkpoint)
+                .reindex(GraphReindexer.INDEX_NAME);
+        assertEquals(countBefore, countTypes());
+        checkIndex();
+        assertFalse(checkpoint.exists());
+    }
+
+    @Test
+    public void resumeReindexWithDifferentBatchSize() throws Exception {
+        HashMap<EntityClass, Long> countBefore = countTypes();
+        File checkpoint = File.createTempFile("reindex", ".log");
+        FileWriter writer = new FileWriter(checkpoint);
+        writer.write("3 6\n0 3\n");
+        writer.close();
+
+        new GraphReindexer(graph, 2, 5, checkpoint)
+                .reindex(GraphReindexer.INDEX_NAME);
+        assertEquals(countBefore, countTypes());
+        checkIndex();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void resumeReindexWithUnrecognisedCheckpoint() throws Exception {
+        File checkpoint = File.createTempFile("reindex", ".log");
+        checkpoint.deleteOnExit();
+        FileWriter writer = new FileWriter(checkpoint);
+        writer.write("0\n");
+        writer.close();
+        new GraphReindexer(graph, 2, 5, checkpoint)
+                .reindex(GraphReindexer.INDEX_NAME);
+    }
+
     /**
      * create a 'histogram' with the counts for each type of entity being indexed
 	 *
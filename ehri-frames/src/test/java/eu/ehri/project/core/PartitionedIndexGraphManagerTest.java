@@ -0,0 +1,85 @@
+package eu.ehri.project.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+
+import eu.ehri.project.core.impl.PartitionedIndexGraphManager;
+import eu.ehri.project.exceptions.ItemNotFound;
+import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.test.ModelTestBase;
+
+public class PartitionedIndexGraphManagerTest extends ModelTestBase {
+
+    private PartitionedIndexGraphManager partitioned;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        partitioned = new PartitionedIndexGraphManager(graph);
+        partitioned.rebuildIndexes();
+    }
+
+    @Test
+    public void testRebuiltPartitionsMatchSingleIndex() throws Exception {
+        for (EntityClass type : EntityClass.values()) {
+            assertEquals(Iterables.size(manager.getVertices(type)),
+                    Iterables.size(partitioned.getVertices(type)));
+        }
+        Vertex c1 = manager.getVertex("c1");
+        assertEquals(c1, partitioned.getVertex("c1"));
+        assertEquals(c1, partitioned.getVertex("c1", EntityClass.DOCUMENTARY_UNIT));
+        assertEquals(c1, partitioned.getVertices("identifier", "c1",
+                EntityClass.DOCUMENTARY_UNIT).iterator().next());
+    }
+
+    @Test(expected = ItemNotFound.class)
+    public void testTypeScopedLookup() throws Exception {
+        partitioned.getVertex("c1", EntityClass.REPOSITORY);
+    }
+
+    @Test
+    public void testCreateAndDelete() throws Exception {
+        Vertex v = partitioned.createVertex("newitem", EntityClass.GROUP,
+                new HashMap<String, Object>());
+        assertTrue(partitioned.exists("newitem"));
+        assertEquals(v, partitioned.getVertex("newitem", EntityClass.GROUP));
+        assertTrue(Iterables.contains(partitioned.getVertices(EntityClass.GROUP), v));
+        partitioned.deleteVertex("newitem");
+        assertFalse(partitioned.exists("newitem"));
+        assertFalse(Iterables.contains(partitioned.getVertices(EntityClass.GROUP), v));
+    }
+
+    @Test
+    public void testReadsDoNotCreatePartitions() throws Exception {
+        Neo4jGraph baseGraph = (Neo4jGraph) graph.getBaseGraph();
+        List<EntityClass> missing = Lists.newArrayList();
+        for (EntityClass type : EntityClass.values()) {
+            if (baseGraph.getIndex(PartitionedIndexGraphManager.getPartitionName(type),
+                    Vertex.class) == null) {
+                missing.add(type);
+            }
+        }
+        assertFalse(missing.isEmpty());
+        assertFalse(partitioned.propertyValueExists("identifier", "nothing"));
+        for (EntityClass type : missing) {
+            assertEquals(0, Iterables.size(partitioned.getVertices(type)));
+            assertEquals(0L, partitioned.countVertices(type));
+            assertNull(baseGraph.getIndex(PartitionedIndexGraphManager.getPartitionName(type),
+                    Vertex.class));
+        }
+    }
+}
@@ -1,16 +1,26 @@
 package eu.ehri.project.models;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.List;
 
+import com.google.common.collect.Iterables;
+
 import eu.ehri.project.test.ModelTestBase;
+import com.tinkerpop.blueprints.Direction;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import eu.ehri.project.definitions.Ontology;
 import eu.ehri.project.exceptions.ItemNotFound;
 import eu.ehri.project.models.DocumentaryUnit;
+import eu.ehri.project.models.utils.HierarchyDepth;
+import eu.ehri.project.persistance.Bundle;
+import eu.ehri.project.persistance.BundleDAO;
+import eu.ehri.project.persistance.Serializer;
 
 public class HierarchyTest extends ModelTestBase {
 
@@ -51,4 +61,85 @@ public class HierarchyTest extends ModelTestBase {
         assertEquals(ancestors.get(0), c2);
         assertEquals(ancestors.get(1), c1);
     }
+
+    @Test
+    public void testHierarchyDepth() throws ItemNotFound {
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        DocumentaryUnit c3 = manager.getFrame("c3", DocumentaryUnit.class);
+        assertEquals(0, HierarchyDepth.getDepth(manager, c1.asVertex(), Ontology.DOC_IS_CHILD_OF));
+        assertEquals(2, HierarchyDepth.getDepth(manager, c3.asVertex(), Ontology.DOC_IS_CHILD_OF));
+        assertEquals(Integer.valueOf(2), HierarchyDepth.getStoredDepth(c3.asVertex(),
+                Ontology.DOC_IS_CHILD_OF, Direction.OUT));
+
+        // Adding a shorter path to the top updates the stored depth.
+        c1.addChild(c3);
+        assertEquals(Integer.valueOf(1), HierarchyDepth.getStoredDepth(c3.asVertex(),
+                Ontology.DOC_IS_CHILD_OF, Direction.OUT));
+    }
+
+    @Test
+    public void testFindDepthUsesShortestPath() throws ItemNotFound {
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        DocumentaryUnit c3 = manager.getFrame("c3", DocumentaryUnit.class);
+        // Add a second parent without storing any depths.
+        c3.asVertex().addEdge(Ontology.DOC_IS_CHILD_OF, c1.asVertex());
+        assertEquals(1, HierarchyDepth.findDepth(c3.asVertex(),
+                Ontology.DOC_IS_CHILD_OF, Direction.OUT, 10));
+        assertTrue(HierarchyDepth.findDepth(c3.asVertex(),
+                Ontology.DOC_IS_CHILD_OF, Direction.OUT, 0) > 0);
+        assertNull(HierarchyDepth.getStoredDepth(c3.asVertex(),
+                Ontology.DOC_IS_CHILD_OF, Direction.OUT));
+    }
+
+    @Test
+    public void testDepthsClearedOnDelete() throws Exception {
+        DocumentaryUnit c2 = manager.getFrame("c2", DocumentaryUnit.class);
+        DocumentaryUnit c3 = manager.getFrame("c3", DocumentaryUnit.class);
+        assertEquals(2, HierarchyDepth.getDepth(manager, c3.asVertex(), Ontology.DOC_IS_CHILD_OF));
+
+        new BundleDAO(graph).delete(new Serializer(graph).vertexFrameToBundle(c2));
+        assertNull(HierarchyDepth.getStoredDepth(c3.asVertex(),
+                Ontology.DOC_IS_CHILD_OF, Direction.OUT));
+        assertEquals(0, HierarchyDepth.getDepth(manager, c3.asVertex(), Ontology.DOC_IS_CHILD_OF));
+    }
+
+    @Test
+    public void testDepthIndexed() throws ItemNotFound {
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        DocumentaryUnit c3 = manager.getFrame("c3", DocumentaryUnit.class);
+        String key = HierarchyDepth.DEPTH_PREFIX + Ontology.DOC_IS_CHILD_OF;
+        assertEquals(2, HierarchyDepth.getDepth(manager, c3.asVertex(), Ontology.DOC_IS_CHILD_OF));
+        assertTrue(Iterables.contains(manager.getVertices(key, 2,
+                EntityClass.DOCUMENTARY_UNIT), c3.asVertex()));
+
+        c1.addChild(c3);
+        assertFalse(Iterables.contains(manager.getVertices(key, 2,
+                EntityClass.DOCUMENTARY_UNIT), c3.asVertex()));
+        assertTrue(Iterables.contains(manager.getVertices(key, 1,
+                EntityClass.DOCUMENTARY_UNIT), c3.asVertex()));
+    }
+
+    @Test
+    public void testDepthKeptOnUpdate() throws Exception {
+        DocumentaryUnit c3 = manager.getFrame("c3", DocumentaryUnit.class);
+        assertEquals(2, HierarchyDepth.getDepth(manager, c3.asVertex(), Ontology.DOC_IS_CHILD_OF));
+        Bundle bundle = new Serializer(graph).vertexFrameToBundle(c3)
+                .withDataValue("otherIdentifiers", "changed");
+        new BundleDAO(graph).update(bundle, DocumentaryUnit.class);
+        assertEquals(Integer.valueOf(2), HierarchyDepth.getStoredDepth(c3.asVertex(),
+                Ontology.DOC_IS_CHILD_OF, Direction.OUT));
+    }
+
+    @Test
+    public void testStoreDepths() throws Exception {
+        DocumentaryUnit c3 = manager.getFrame("c3", DocumentaryUnit.class);
+        // A depth left stale by an older version is recomputed.
+        c3.asVertex().setProperty(HierarchyDepth.DEPTH_PREFIX + Ontology.DOC_IS_CHILD_OF, 5);
+        assertTrue(HierarchyDepth.storeDepths(graph) > 0L);
+        assertEquals(Integer.valueOf(2), HierarchyDepth.getStoredDepth(c3.asVertex(),
+                Ontology.DOC_IS_CHILD_OF, Direction.OUT));
+        DocumentaryUnit c1 = manager.getFrame("c1", DocumentaryUnit.class);
+        assertEquals(Integer.valueOf(0), HierarchyDepth.getStoredDepth(c1.asVertex(),
+                Ontology.DOC_IS_CHILD_OF, Direction.OUT));
+    }
 }
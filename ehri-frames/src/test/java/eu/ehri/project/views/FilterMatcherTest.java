@@ -0,0 +1,30 @@
+package eu.ehri.project.views;
+
+import org.junit.Test;
+
+import eu.ehri.project.views.Query.FilterPredicate;
+
+import static org.junit.Assert.*;
+
+public class FilterMatcherTest {
+
+    @Test
+    public void testStringPredicates() throws Exception {
+        assertTrue(FilterMatcher.compile(FilterPredicate.ICONTAINS, "FOO").matches("a foo"));
+        assertTrue(FilterMatcher.compile(FilterPredicate.MATCHES, "^c\\d+$").matches("c12"));
+        assertFalse(FilterMatcher.compile(FilterPredicate.MATCHES, "c\\d").matches("c12"));
+        assertTrue(FilterMatcher.compile(FilterPredicate.LT, "c2").matches("c10"));
+        assertFalse(FilterMatcher.compile(FilterPredicate.EQUALS, "c1").matches(null));
+    }
+
+    @Test
+    public void testNumericPredicates() throws Exception {
+        assertTrue(FilterMatcher.compile(FilterPredicate.GT, "9").matches(10));
+        assertTrue(FilterMatcher.compile(FilterPredicate.LTE, "2.5").matches(2L));
+        assertTrue(FilterMatcher.compile(FilterPredicate.EQUALS, "3").matches(3.0));
+        assertFalse(FilterMatcher.compile(FilterPredicate.EQUALS, "3").matches(4));
+        // Non-numeric values are compared as strings.
+        assertTrue(FilterMatcher.compile(FilterPredicate.GT, "1a").matches(2));
+        assertTrue(FilterMatcher.compile(FilterPredicate.STARTSWITH, "12").matches(123));
+    }
+}
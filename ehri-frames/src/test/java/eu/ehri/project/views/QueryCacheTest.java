@@ -0,0 +1,57 @@
+package eu.ehri.project.views;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+
+import eu.ehri.project.test.GraphTestBase;
+
+import static org.junit.Assert.*;
+
+public class QueryCacheTest extends GraphTestBase {
+
+    private QueryCache cache;
+    private int loads;
+
+    private final Supplier<QueryCache.Result> loader = new Supplier<QueryCache.Result>() {
+        public QueryCache.Result get() {
+            loads++;
+            return new QueryCache.Result(ImmutableList.<Vertex>of(), loads, null);
+        }
+    };
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        cache = QueryCache.forDatabase(((Neo4jGraph) graph.getBaseGraph()).getRawGraph());
+        loads = 0;
+    }
+
+    @Test
+    public void testResultsAreCached() throws Exception {
+        List<String> spec = Lists.newArrayList("list", "foo");
+        assertEquals(1L, cache.get(spec, loader).getCount());
+        assertEquals(1L, cache.get(spec, loader).getCount());
+        assertEquals(2L, cache.get(Lists.newArrayList("list", "bar"), loader).getCount());
+        assertEquals(2, loads);
+    }
+
+    @Test
+    public void testCommitChangesVersion() throws Exception {
+        List<String> spec = Lists.newArrayList("list", "foo");
+        long version = cache.getVersion();
+        assertEquals(1L, cache.get(spec, loader).getCount());
+        graph.addVertex(null);
+        graph.getBaseGraph().commit();
+        assertTrue(cache.getVersion() > version);
+        assertEquals(2L, cache.get(spec, loader).getCount());
+    }
+}
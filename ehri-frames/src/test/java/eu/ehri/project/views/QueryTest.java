@@ -1,6 +1,7 @@
 package eu.ehri.project.views;
 
 import java.util.List;
+import java.util.Map;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -13,12 +14,15 @@ import org.junit.Test;
 
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.pipes.util.structures.Pair;
 
 import eu.ehri.project.acl.AclManager;
 import eu.ehri.project.exceptions.IndexNotFoundException;
+import eu.ehri.project.exceptions.InvalidCursor;
 import eu.ehri.project.exceptions.ItemNotFound;
 import eu.ehri.project.models.DocumentaryUnit;
 import eu.ehri.project.models.EntityClass;
+import eu.ehri.project.models.annotations.EntityType;
 import eu.ehri.project.models.base.Accessor;
 import eu.ehri.project.views.Query.Page;
 
@@ -91,6 +95,24 @@ public class QueryTest extends AbstractFixtureTest {
         assertFalse(list.contains(cantRead));
     }
 
+    @Test
+    public void testCountExcludesPrivate() throws IndexNotFoundException,
+            ItemNotFound {
+        Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph,
+                DocumentaryUnit.class);
+        Accessor accessor = manager.getFrame("reto", Accessor.class);
+        long visible = toList(query.list(accessor)).size();
+        assertTrue(visible < manager.countVertices(EntityClass.DOCUMENTARY_UNIT));
+
+        // Both the counter-based and the filtered counts skip c1.
+        assertEquals(Long.valueOf(visible), query.count(accessor));
+        assertEquals(Long.valueOf(visible), query.count(
+                manager.getVertices(EntityClass.DOCUMENTARY_UNIT), accessor));
+        assertEquals(Long.valueOf(visible), query.filter(Ontology.IDENTIFIER_KEY,
+                Query.FilterPredicate.STARTSWITH, "c").count(
+                EntityClass.DOCUMENTARY_UNIT, accessor));
+    }
+
     @Test
     public void testListWithFilter() throws IndexNotFoundException {
         Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph,
@@ -193,6 +215,36 @@ public class QueryTest extends AbstractFixtureTest {
 
     }
 
+    @Test
+    public void testListWithIndexedAndUnindexedFilters() throws IndexNotFoundException {
+        // The id prefix filter can be answered by the index and the
+        // identifier suffix filter has to be applied to the results.
+        Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph,
+                DocumentaryUnit.class)
+                .filter(EntityType.ID_KEY, Query.FilterPredicate.STARTSWITH, "c")
+                .filter(Ontology.IDENTIFIER_KEY, Query.FilterPredicate.ENDSWITH, "1");
+        List<DocumentaryUnit> list = toList(query.list(
+                EntityClass.DOCUMENTARY_UNIT, validUser));
+        assertEquals(1, list.size());
+        assertEquals("c1", list.get(0).getIdentifier());
+        assertEquals(Long.valueOf(1L), query.count(EntityClass.DOCUMENTARY_UNIT, validUser));
+        assertEquals(1L, query.page(EntityClass.DOCUMENTARY_UNIT, validUser).getCount());
+    }
+
+    @Test
+    public void testNumericFiltersNotIndexed() {
+        assertTrue(Query.getIndexClause(EntityClass.DOCUMENTARY_UNIT, EntityType.ID_KEY,
+                new Pair<Query.FilterPredicate, String>(Query.FilterPredicate.GT, "c3"))
+                .isPresent());
+        // Index entries compare as strings, so "10" would sort before "9".
+        assertFalse(Query.getIndexClause(EntityClass.DOCUMENTARY_UNIT, EntityType.ID_KEY,
+                new Pair<Query.FilterPredicate, String>(Query.FilterPredicate.GT, "9"))
+                .isPresent());
+        assertFalse(Query.getIndexClause(EntityClass.DOCUMENTARY_UNIT, EntityType.ID_KEY,
+                new Pair<Query.FilterPredicate, String>(Query.FilterPredicate.EQUALS, "3"))
+                .isPresent());
+    }
+
     @Test
     public void testListWithTraversalFilter() {
         Query<DocumentaryUnit> query1 = new Query<DocumentaryUnit>(graph,
@@ -213,6 +265,14 @@ public class QueryTest extends AbstractFixtureTest {
                 .filter(filters2).list(validUser);
         assertEquals(1, Iterables.size(list2));
 
+        // Description names are indexed, so this is a semi-join.
+        Query<DocumentaryUnit> query3 = new Query<DocumentaryUnit>(graph,
+                DocumentaryUnit.class);
+        List<DocumentaryUnit> list3 = toList(query3.filter(ImmutableList.of(
+                "<-describes.name:Documentary Unit 1")).list(validUser));
+        assertEquals(1, list3.size());
+        assertEquals("c1", list3.get(0).getIdentifier());
+
     }
 
     @Test
@@ -254,6 +314,158 @@ public class QueryTest extends AbstractFixtureTest {
         assertEquals("c4", toList(page.getIterable()).get(0).getIdentifier());
     }
 
+    @Test
+    public void testListWithSortAndRange() throws IndexNotFoundException {
+        Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph,
+                DocumentaryUnit.class).orderBy(Ontology.IDENTIFIER_KEY, Query.Sort.DESC);
+
+        List<DocumentaryUnit> list = toList(query.setOffset(1).setLimit(2)
+                .list(EntityClass.DOCUMENTARY_UNIT, validUser));
+        assertEquals(2, list.size());
+        assertEquals("c3", list.get(0).getIdentifier());
+        assertEquals("c2", list.get(1).getIdentifier());
+
+        // A window past the end of the results is empty.
+        Page<DocumentaryUnit> page = query.setOffset(10).setLimit(2)
+                .page(EntityClass.DOCUMENTARY_UNIT, validUser);
+        assertEquals(4L, page.getCount());
+        assertTrue(toList(page.getIterable()).isEmpty());
+    }
+
+    @Test
+    public void testPageWithLimitCountsAllItems() throws IndexNotFoundException {
+        Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph,
+                DocumentaryUnit.class).setLimit(2);
+        Page<DocumentaryUnit> page = query.page(EntityClass.DOCUMENTARY_UNIT, validUser);
+        assertEquals(4L, page.getCount());
+        assertEquals(2, toList(page.getIterable()).size());
+
+        page = query.setOffset(3).page(EntityType.TYPE_KEY,
+                EntityClass.DOCUMENTARY_UNIT.getName(), validUser);
+        assertEquals(4L, page.getCount());
+        assertEquals(1, toList(page.getIterable()).size());
+    }
+
+    @Test
+    public void testPageWithProfile() throws IndexNotFoundException {
+        QueryProfile profile = new QueryProfile();
+        Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph,
+                DocumentaryUnit.class).setProfile(profile).setLimit(1)
+                .depthFilter(Ontology.DOC_IS_CHILD_OF, Direction.OUT, 0)
+                .orderBy(Ontology.IDENTIFIER_KEY, Query.Sort.DESC);
+        Page<DocumentaryUnit> page = query.page(validUser);
+        assertEquals(Lists.newArrayList("c4"), getIdentifiers(page));
+
+        Map<String, QueryProfile.Stage> stages = profile.getStages();
+        assertEquals(Lists.newArrayList(QueryProfile.SOURCE, QueryProfile.ACL,
+                QueryProfile.DEPTH_FILTERS, QueryProfile.ORDER, QueryProfile.RANGE),
+                Lists.newArrayList(stages.keySet()));
+        assertEquals(4L, stages.get(QueryProfile.SOURCE).getOut());
+        assertEquals(4L, stages.get(QueryProfile.ACL).getOut());
+        assertEquals(4L, stages.get(QueryProfile.DEPTH_FILTERS).getIn());
+        assertEquals(2L, stages.get(QueryProfile.DEPTH_FILTERS).getOut());
+        assertEquals(2L, stages.get(QueryProfile.ORDER).getIn());
+        assertEquals(1L, stages.get(QueryProfile.RANGE).getOut());
+    }
+
+    @Test
+    public void testPageWithCursor() throws IndexNotFoundException {
+        // By id, from the index...
+        Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph,
+                DocumentaryUnit.class).setLimit(3).setCursor("");
+        Page<DocumentaryUnit> page = query.page(validUser);
+        assertEquals(3, toList(page.getIterable()).size());
+        assertNotNull(page.getNextCursor());
+        Page<DocumentaryUnit> next = query.setCursor(page.getNextCursor()).page(validUser);
+        assertEquals(Lists.newArrayList("c4"), getIdentifiers(next));
+        assertNull(next.getNextCursor());
+
+        // ...and by a sort key.
+        query = query.orderBy(Ontology.IDENTIFIER_KEY, Query.Sort.DESC);
+        page = query.page(validUser);
+        assertEquals(Lists.newArrayList("c4", "c3", "c2"), getIdentifiers(page));
+        next = query.setCursor(page.getNextCursor()).page(validUser);
+        assertEquals(Lists.newArrayList("c1"), getIdentifiers(next));
+        assertNull(next.getNextCursor());
+    }
+
+    @Test(expected = InvalidCursor.class)
+    public void testPageWithInvalidCursor() throws IndexNotFoundException {
+        new Query<DocumentaryUnit>(graph, DocumentaryUnit.class)
+                .orderBy(Ontology.IDENTIFIER_KEY, Query.Sort.ASC)
+                .setCursor("bad").page(validUser);
+    }
+
+    @Test(expected = InvalidCursor.class)
+    public void testPageWithCursorOnNumericKey() throws IndexNotFoundException {
+        item.asVertex().setProperty("weight", 1L);
+        new Query<DocumentaryUnit>(graph, DocumentaryUnit.class)
+                .orderBy("weight", Query.Sort.ASC)
+                .setCursor("").page(validUser);
+    }
+
+    @Test
+    public void testPageWithCursorOverMissingSortKey() throws Exception {
+        manager.removeProperty(manager.getVertex("c2"), Ontology.IDENTIFIER_KEY);
+        graph.getBaseGraph().commit();
+
+        // Items without the sort key come last...
+        Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph,
+                DocumentaryUnit.class).setLimit(2).setCursor("")
+                .orderBy(Ontology.IDENTIFIER_KEY, Query.Sort.ASC);
+        Page<DocumentaryUnit> page = query.page(validUser);
+        assertEquals(Lists.newArrayList("c1", "c3"), getIds(page));
+        Page<DocumentaryUnit> next = query.setCursor(page.getNextCursor()).page(validUser);
+        assertEquals(Lists.newArrayList("c4", "c2"), getIds(next));
+        assertNull(next.getNextCursor());
+
+        // ...or first, in descending order.
+        query = query.orderBy(Ontology.IDENTIFIER_KEY, Query.Sort.DESC);
+        page = query.page(validUser);
+        assertEquals(Lists.newArrayList("c2", "c4"), getIds(page));
+        next = query.setCursor(page.getNextCursor()).page(validUser);
+        assertEquals(Lists.newArrayList("c3", "c1"), getIds(next));
+        assertNull(next.getNextCursor());
+    }
+
+    @Test(expected = InvalidCursor.class)
+    public void testPageWithCursorOnUnindexedKey() throws IndexNotFoundException {
+        new Query<DocumentaryUnit>(graph, DocumentaryUnit.class)
+                .orderBy("unindexed", Query.Sort.ASC)
+                .setCursor("").page(validUser);
+    }
+
+    @Test(expected = InvalidCursor.class)
+    public void testPageWithCursorOnManyKeys() throws IndexNotFoundException {
+        new Query<DocumentaryUnit>(graph, DocumentaryUnit.class)
+                .orderBy(Ontology.IDENTIFIER_KEY, Query.Sort.ASC)
+                .orderBy(EntityType.ID_KEY, Query.Sort.ASC)
+                .setCursor("").page(validUser);
+    }
+
+    @Test(expected = InvalidCursor.class)
+    public void testPageOfItemsWithCursor() throws IndexNotFoundException {
+        new Query<DocumentaryUnit>(graph, DocumentaryUnit.class).setCursor("")
+                .page(manager.getFrames(EntityClass.DOCUMENTARY_UNIT,
+                        DocumentaryUnit.class), validUser);
+    }
+
+    private List<String> getIds(Page<DocumentaryUnit> page) {
+        List<String> ids = Lists.newArrayList();
+        for (DocumentaryUnit doc : page.getIterable()) {
+            ids.add(doc.getId());
+        }
+        return ids;
+    }
+
+    private List<String> getIdentifiers(Page<DocumentaryUnit> page) {
+        List<String> ids = Lists.newArrayList();
+        for (DocumentaryUnit doc : page.getIterable()) {
+            ids.add(doc.getIdentifier());
+        }
+        return ids;
+    }
+
     @Test
     public void testListWithGlobFilter() throws IndexNotFoundException {
         Query<DocumentaryUnit> query = new Query<DocumentaryUnit>(graph,
@@ -0,0 +1,124 @@
+package eu.ehri.project.importers;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.kernel.impl.util.FileUtils;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph;
+import com.tinkerpop.frames.FramedGraph;
+import com.tinkerpop.frames.FramedGraphFactory;
+import com.tinkerpop.frames.modules.javahandler.JavaHandlerModule;
+
+import eu.ehri.project.acl.SystemScope;
+import eu.ehri.project.core.GraphManager;
+import eu.ehri.project.core.GraphManagerFactory;
+import eu.ehri.project.definitions.EventTypes;
+import eu.ehri.project.models.DocumentaryUnit;
+import eu.ehri.project.models.HistoricalAgent;
+import eu.ehri.project.models.Repository;
+import eu.ehri.project.models.UserProfile;
+import eu.ehri.project.models.events.SystemEvent;
+import eu.ehri.project.persistance.ActionManager;
+import eu.ehri.project.utils.BulkLoadNeo4jGraph;
+import eu.ehri.project.utils.fixtures.FixtureLoaderFactory;
+
+/**
+ * Offline imports into an initialised database whose event chains
+ * already have events.
+ */
+public class BulkLoadImportTest {
+
+    private static final String EXISTING_EVENT = "Existing event";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("bulkimport", "db");
+        directory.delete();
+        Neo4jGraph neo4jGraph = new Neo4jGraph(directory.getAbsolutePath());
+        try {
+            FramedGraph<Neo4jGraph> graph = new FramedGraphFactory(
+                    new JavaHandlerModule()).create(neo4jGraph);
+            FixtureLoaderFactory.getInstance(graph).loadTestData();
+            UserProfile user = GraphManagerFactory.getInstance(graph)
+                    .getFrame("mike", UserProfile.class);
+            new ActionManager(graph).logEvent(user, EventTypes.modification, EXISTING_EVENT);
+            neo4jGraph.commit();
+        } finally {
+            neo4jGraph.shutdown();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteRecursively(directory);
+    }
+
+    @Test
+    public void testOfflineEadAndEacImport() throws Exception {
+        FramedGraph<BulkLoadNeo4jGraph> graph = new FramedGraphFactory(
+                new JavaHandlerModule()).create(
+                new BulkLoadNeo4jGraph(directory.getAbsolutePath()));
+        GraphManager manager = GraphManagerFactory.getInstance(graph);
+        UserProfile user = manager.getFrame("mike", UserProfile.class);
+        Repository repository = manager.getFrame("r2", Repository.class);
+
+        new SaxImportManager(graph, repository, user, IcaAtomEadImporter.class,
+                IcaAtomEadHandler.class).setTolerant(Boolean.TRUE)
+                .importFile(ClassLoader.getSystemResourceAsStream("single-ead.xml"),
+                        "single-ead.xml");
+        // Import abwehr last, so its relations resolve to the other agents
+        // via their description URLs.
+        String[] eacFiles = { "geheime-feldpolizei.xml", "ss-rasse.xml", "abwehr.xml" };
+        for (String eacFile : eacFiles) {
+            new SaxImportManager(graph, SystemScope.getInstance(), user, EacImporter.class,
+                    EacHandler.class).setTolerant(Boolean.TRUE)
+                    .importFile(ClassLoader.getSystemResourceAsStream(eacFile), eacFile);
+        }
+        graph.shutdown();
+        assertFalse(graph.getBaseGraph().isFailed());
+        assertTrue(graph.getBaseGraph().verify().isEmpty());
+
+        Neo4jGraph neo4jGraph = new Neo4jGraph(directory.getAbsolutePath());
+        try {
+            FramedGraph<Neo4jGraph> check = new FramedGraphFactory(
+                    new JavaHandlerModule()).create(neo4jGraph);
+            GraphManager checkManager = GraphManagerFactory.getInstance(check);
+            List<String> expected = Lists.newArrayList("abwehr.xml", "ss-rasse.xml",
+                    "geheime-feldpolizei.xml", "single-ead.xml", EXISTING_EVENT);
+
+            assertEquals(expected, getLogMessages(
+                    new ActionManager(check).getLatestGlobalEvents(), expected.size()));
+            assertEquals(expected, getLogMessages(checkManager.getFrame(
+                    "mike", UserProfile.class).getActions(), expected.size()));
+
+            assertEquals(2, Iterables.size(checkManager.getFrame(
+                    "381", HistoricalAgent.class).getLinks()));
+
+            Iterable<Vertex> docs = check.getVertices("identifier", "C00001");
+            assertTrue(docs.iterator().hasNext());
+            DocumentaryUnit unit = check.frame(docs.iterator().next(), DocumentaryUnit.class);
+            assertEquals(1, Iterables.size(unit.getHistory()));
+        } finally {
+            neo4jGraph.shutdown();
+        }
+    }
+
+    private List<String> getLogMessages(Iterable<SystemEvent> events, int limit) {
+        List<String> messages = Lists.newArrayList();
+        for (SystemEvent event : Iterables.limit(events, limit)) {
+            messages.add(event.getLogMessage());
+        }
+        return messages;
+    }
+}